@@ -0,0 +1,44 @@
+package com.cs6650;
+
+import java.io.File;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+
+// Servers of one cluster running in the benchmark process, they call each other directly instead of over RMI
+public class BenchmarkServers {
+
+	private BenchmarkServers() {
+	}
+
+	public static Server[] create(int count, boolean multiPaxos) throws RemoteException {
+		new File("logs").mkdirs();
+		Server[] servers = new Server[count];
+		LinkedHashMap<String, DatastoreInterface> members = new LinkedHashMap<String, DatastoreInterface>();
+		for(int i = 0; i < count; i++) {
+			servers[i] = new Server("benchmark_"+i, null, 0);
+			servers[i].setMultiPaxosEnabled(multiPaxos);
+			servers[i].setRandomAcceptorFailureNumber(0);
+			members.put(servers[i].getServerID(), servers[i]);
+		}
+		// Every server shares one logger, file logging would dominate the measurements
+		servers[0].logger.setLevel(Level.WARNING);
+		for(Server server : servers) {
+			server.getPeers().setMembers(members);
+		}
+		return servers;
+	}
+
+	public static void shutdown(Server[] servers) {
+		for(Server server : servers) {
+			try {
+				UnicastRemoteObject.unexportObject(server, true);
+			}
+			catch(NoSuchObjectException e) {
+				continue;
+			}
+		}
+	}
+}
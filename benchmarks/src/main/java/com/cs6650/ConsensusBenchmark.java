@@ -0,0 +1,98 @@
+package com.cs6650;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A full invokeProposer round, prepare (unless a multi-paxos leader skips it), accept and learn, against
+// acceptors in the same process. Measures the consensus code itself without network or disk.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConsensusBenchmark {
+
+	// Holds the servers, the JMH states below add the parameters
+	public abstract static class InProcessCluster {
+
+		private Server[] cluster;
+
+		private AtomicLong nextKey = new AtomicLong();
+
+		protected void start(int servers, boolean multiPaxos) throws RemoteException {
+			this.cluster = BenchmarkServers.create(servers, multiPaxos);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			BenchmarkServers.shutdown(this.cluster);
+		}
+
+		protected void propose() throws RemoteException, TimeoutException {
+			Transaction transaction = new Transaction();
+			transaction.setType("put");
+			transaction.setKey("key"+(this.nextKey.getAndIncrement() % 10000));
+			transaction.setValue("value");
+			this.cluster[0].invokeProposer(transaction);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Cluster extends InProcessCluster {
+
+		@Param({"3", "5"})
+		public int servers;
+
+		@Param({"true", "false"})
+		public boolean multiPaxos;
+
+		@Setup(Level.Trial)
+		public void setUp() throws RemoteException {
+			start(this.servers, this.multiPaxos);
+		}
+	}
+
+	// Without a leader the rounds of a shard on one server run one at a time, and rounds that lose to another
+	// server back off with a random delay, so pipelining is only measured with a multi-paxos leader
+	@State(Scope.Benchmark)
+	public static class LeaderCluster extends InProcessCluster {
+
+		@Param({"3", "5"})
+		public int servers;
+
+		@Setup(Level.Trial)
+		public void setUp() throws RemoteException {
+			start(this.servers, true);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void proposeRound(Cluster cluster) throws RemoteException, TimeoutException {
+		cluster.propose();
+	}
+
+	// Concurrent proposals fill the pipeline window of the leader
+	@Benchmark
+	@Threads(8)
+	public void proposePipelined(LeaderCluster cluster) throws RemoteException, TimeoutException {
+		cluster.propose();
+	}
+}
@@ -0,0 +1,167 @@
+package com.cs6650;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Encoding and decoding the Paxos and client messages with Java serialization, as RMI does,
+// and with the BinaryCodec of the NIO transport and the write-ahead log
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+	@Param({"transaction", "promise", "accepted", "response"})
+	public String message;
+
+	// Writes in a batch transaction and accepted values in a promise
+	@Param({"1", "64"})
+	public int batchSize;
+
+	private Object value;
+
+	private byte[] javaBytes;
+
+	private byte[] binaryBytes;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		Transaction transaction = batchSize == 1 ? put(0) : batch(batchSize);
+		if(message.equals("transaction")) {
+			this.value = transaction;
+		}
+		else if(message.equals("accepted")) {
+			this.value = accepted(1, transaction);
+		}
+		else if(message.equals("promise")) {
+			Promise promise = new Promise();
+			promise.setServerID("127.0.0.1_8001");
+			promise.setProposalNumber(System.currentTimeMillis());
+			promise.setLastAppliedSlot(1000);
+			List<Accepted> acceptedValues = new ArrayList<Accepted>();
+			for(int i = 0; i < batchSize; i++) {
+				acceptedValues.add(accepted(1001 + i, put(i)));
+			}
+			promise.setAcceptedValues(acceptedValues);
+			this.value = promise;
+		}
+		else {
+			Response response = new Response();
+			response.setType("get");
+			response.setReturnValue("value-0123456789");
+			response.setMessage("successfully retrieved entry from storage");
+			this.value = response;
+		}
+		this.javaBytes = javaEncode(this.value);
+		this.binaryBytes = binaryEncode(this.value);
+	}
+
+	@Benchmark
+	public byte[] javaSerialize() throws IOException {
+		return javaEncode(this.value);
+	}
+
+	@Benchmark
+	public Object javaDeserialize() throws IOException, ClassNotFoundException {
+		try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(this.javaBytes))) {
+			return in.readObject();
+		}
+	}
+
+	@Benchmark
+	public byte[] binaryEncode() throws IOException {
+		return binaryEncode(this.value);
+	}
+
+	@Benchmark
+	public Object binaryDecode() throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(this.binaryBytes));
+		if(this.value instanceof Transaction) {
+			return BinaryCodec.readTransaction(in);
+		}
+		if(this.value instanceof Accepted) {
+			return BinaryCodec.readAccepted(in);
+		}
+		if(this.value instanceof Promise) {
+			return BinaryCodec.readPromise(in);
+		}
+		return BinaryCodec.readResponse(in);
+	}
+
+	private static byte[] javaEncode(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] binaryEncode(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		if(value instanceof Transaction) {
+			BinaryCodec.writeTransaction(out, (Transaction) value);
+		}
+		else if(value instanceof Accepted) {
+			BinaryCodec.writeAccepted(out, (Accepted) value);
+		}
+		else if(value instanceof Promise) {
+			BinaryCodec.writePromise(out, (Promise) value);
+		}
+		else {
+			BinaryCodec.writeResponse(out, (Response) value);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Transaction put(int i) {
+		Transaction transaction = new Transaction();
+		transaction.setType("put");
+		transaction.setKey("user"+i);
+		transaction.setValue("value-0123456789-"+i);
+		return transaction;
+	}
+
+	private static Transaction batch(int size) {
+		List<Transaction> transactions = new ArrayList<Transaction>();
+		for(int i = 0; i < size; i++) {
+			transactions.add(put(i));
+		}
+		Transaction batch = new Transaction();
+		batch.setType("batch");
+		batch.setTransactions(transactions);
+		return batch;
+	}
+
+	private static Accepted accepted(long slot, Transaction value) {
+		Accepted accepted = new Accepted();
+		accepted.setServerID("127.0.0.1_8001");
+		accepted.setProposalNumber(System.currentTimeMillis());
+		accepted.setSlot(slot);
+		accepted.setValue(value);
+		return accepted;
+	}
+}
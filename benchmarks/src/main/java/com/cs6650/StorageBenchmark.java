@@ -0,0 +1,95 @@
+package com.cs6650;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Server.get and Server.invokeLearner on one server, alone and while the other one runs on other threads
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class StorageBenchmark {
+
+	@Param({"100000"})
+	public int keys;
+
+	private Server[] servers;
+
+	private Server server;
+
+	// Learned slots have to be consecutive for the learner to apply them
+	private AtomicLong nextSlot = new AtomicLong(1);
+
+	@Setup(Level.Trial)
+	public void setUp() throws RemoteException {
+		this.servers = BenchmarkServers.create(1, true);
+		this.server = this.servers[0];
+		for(int i = 0; i < this.keys; i++) {
+			learn("key"+i);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		BenchmarkServers.shutdown(this.servers);
+	}
+
+	@Benchmark
+	@GroupThreads(4)
+	@Group("getOnly")
+	public Response get() throws RemoteException {
+		return this.server.get("key"+ThreadLocalRandom.current().nextInt(this.keys));
+	}
+
+	@Benchmark
+	@GroupThreads(4)
+	@Group("learnOnly")
+	public void learn() throws RemoteException {
+		learn("key"+ThreadLocalRandom.current().nextInt(this.keys));
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public Response contendedGet() throws RemoteException {
+		return this.server.get("key"+ThreadLocalRandom.current().nextInt(this.keys));
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void contendedLearn() throws RemoteException {
+		learn("key"+ThreadLocalRandom.current().nextInt(this.keys));
+	}
+
+	private void learn(String key) throws RemoteException {
+		Transaction transaction = new Transaction();
+		transaction.setType("put");
+		transaction.setKey(key);
+		transaction.setValue("value"+this.nextSlot.get());
+		Accepted accepted = new Accepted();
+		accepted.setSlot(this.nextSlot.getAndIncrement());
+		accepted.setValue(transaction);
+		this.server.invokeLearner(0, accepted);
+	}
+}
@@ -0,0 +1,32 @@
+#!/bin/bash
+# Starts or stops a cluster of servers on this machine, one process per server
+# usage: scripts/local-cluster.sh start [servers] [first_port]
+#        scripts/local-cluster.sh stop
+# Run it from the project folder after compiling to bin. The first two servers must be the
+# discovery nodes of resources/config.properties (localhost:8001,localhost:8002 by default).
+
+command=$1
+servers=${2:-3}
+first_port=${3:-8001}
+
+mkdir -p logs
+if [ "$command" = "start" ]; then
+	for ((i = 0; i < servers; i++)); do
+		port=$((first_port + i))
+		nohup java -cp bin com.cs6650.Server $port > logs/server_$port.out 2>&1 &
+		echo $! > logs/server_$port.pid
+		echo "Started server on port $port"
+		# Servers join one at a time
+		sleep 2
+	done
+elif [ "$command" = "stop" ]; then
+	for pidfile in logs/server_*.pid; do
+		[ -f "$pidfile" ] || continue
+		kill $(cat "$pidfile") 2>/dev/null
+		rm -f "$pidfile"
+	done
+	echo "Stopped local cluster"
+else
+	echo "usage: $0 start [servers] [first_port] | stop"
+	exit 1
+fi
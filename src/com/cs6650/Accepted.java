@@ -8,6 +8,9 @@ public class Accepted implements Serializable {
 	
 	private long proposalNumber;
 	
+	// Log slot the value was accepted for
+	private long slot;
+	
 	private Transaction value;
 
 	public long getProposalNumber() {
@@ -18,6 +21,14 @@ public class Accepted implements Serializable {
 		this.proposalNumber = proposalNumber;
 	}
 
+	public long getSlot() {
+		return slot;
+	}
+
+	public void setSlot(long slot) {
+		this.slot = slot;
+	}
+
 	public Transaction getValue() {
 		return value;
 	}
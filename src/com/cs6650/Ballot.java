@@ -0,0 +1,49 @@
+package com.cs6650;
+
+// Paxos proposal numbers built from a (round, proposer) pair packed into a long: the round in the upper 32 bits and
+// a number identifying the proposer in the lower 32. Ballots of two proposers never collide, and a proposer outbids
+// every ballot it has seen by taking the round after it. Proposers that pick the same round are ordered by their
+// number mixed with the round, so no proposer wins every tie.
+public class Ballot {
+
+	private Ballot() {
+	}
+
+	// Smallest ballot of the proposer in a round above the round of highest
+	public static long next(long highest, int proposer) {
+		long round = round(highest) + 1;
+		return round << 32 | ((proposer ^ tieBreaker(round)) & 0xFFFFFFFFL);
+	}
+
+	public static long round(long ballot) {
+		return ballot >>> 32;
+	}
+
+	public static int proposer(long ballot) {
+		return (int) ballot ^ tieBreaker(round(ballot));
+	}
+
+	// Scrambles the order of the proposers differently in every round, XOR keeps their numbers distinct
+	private static int tieBreaker(long round) {
+		return (int) ((round * 0x9E3779B97F4A7C15L) >>> 32);
+	}
+
+	// Number identifying the server in its ballots. An ID of the form <IPv4 address>_<port> gives the last two bytes
+	// of the address and the port, which no two servers of one /16 network share. Other IDs fall back to their hash.
+	public static int proposerOf(String serverID) {
+		int separator = serverID.lastIndexOf('_');
+		if(separator > 0) {
+			String[] address = serverID.substring(0, separator).split("\\.");
+			try {
+				int port = Integer.parseInt(serverID.substring(separator + 1));
+				if(address.length == 4 && port >= 0 && port < 65536) {
+					return Integer.parseInt(address[2]) << 24 | Integer.parseInt(address[3]) << 16 | port;
+				}
+			}
+			catch(NumberFormatException e) {
+				// Not an address and port
+			}
+		}
+		return serverID.hashCode();
+	}
+}
@@ -0,0 +1,298 @@
+package com.cs6650;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.FileHandler;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+// Non-interactive load generator in the style of YCSB. Loads recordCount keys, then runs a mix of
+// reads, updates and deletes over them and reports latency percentiles and throughput over time.
+// Settings are read from resources/benchmark.properties or the file given as first argument.
+public class BenchmarkClient {
+
+	private static final String INSERT = "insert";
+
+	private static final String READ = "read";
+
+	private static final String UPDATE = "update";
+
+	private static final String DELETE = "delete";
+
+	private DatastoreClient client;
+
+	private long recordCount;
+
+	// Run phase stops after this many operations or this many seconds, whichever comes first, 0 means no limit
+	private long operationCount;
+
+	private long durationSeconds;
+
+	private double readProportion;
+
+	private double updateProportion;
+
+	// Picks the record each operation works on
+	private ZipfianGenerator zipfian;
+
+	private int valueSize;
+
+	// Operations started per second, 0 starts them as fast as the in-flight bound allows
+	private double targetOpsPerSecond;
+
+	private int reportIntervalSeconds;
+
+	private Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+
+	private Map<String, AtomicLong> errors = new LinkedHashMap<String, AtomicLong>();
+
+	private AtomicLong completed = new AtomicLong();
+
+	// Operations completed in every report interval of the run phase
+	private List<Long> throughputSeries = new ArrayList<Long>();
+
+	// Random characters values are cut from
+	private char[] valueSource;
+
+	public BenchmarkClient(DatastoreClient client, Properties prop) {
+		this.client = client;
+		this.recordCount = Long.parseLong(prop.getProperty("record.count", "10000"));
+		this.operationCount = Long.parseLong(prop.getProperty("operation.count", "100000"));
+		this.durationSeconds = Long.parseLong(prop.getProperty("duration.seconds", "0"));
+		this.readProportion = Double.parseDouble(prop.getProperty("read.proportion", "0.95"));
+		this.updateProportion = Double.parseDouble(prop.getProperty("update.proportion", "0.05"));
+		if("zipfian".equalsIgnoreCase(prop.getProperty("request.distribution", "zipfian"))) {
+			this.zipfian = new ZipfianGenerator(this.recordCount, Double.parseDouble(prop.getProperty("zipfian.theta", String.valueOf(ZipfianGenerator.DEFAULT_THETA))));
+		}
+		this.valueSize = Integer.parseInt(prop.getProperty("value.size", "100"));
+		this.targetOpsPerSecond = Double.parseDouble(prop.getProperty("target.ops.per.second", "0"));
+		this.reportIntervalSeconds = Integer.parseInt(prop.getProperty("report.interval.seconds", "10"));
+
+		for(String type : Arrays.asList(INSERT, READ, UPDATE, DELETE)) {
+			this.histograms.put(type, new LatencyHistogram());
+			this.errors.put(type, new AtomicLong());
+		}
+		this.valueSource = new char[Math.max(this.valueSize * 2, 1024)];
+		for(int i = 0; i < this.valueSource.length; i++) {
+			this.valueSource[i] = (char) ('a' + ThreadLocalRandom.current().nextInt(26));
+		}
+	}
+
+	// Writes every record once, as fast as the in-flight bound allows
+	public void load() {
+		System.out.println("Loading "+this.recordCount+" records");
+		long start = System.nanoTime();
+		for(long record = 0; record < this.recordCount; record++) {
+			issue(INSERT, record, System.nanoTime());
+		}
+		awaitCompletion(this.recordCount);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Loaded %d records in %.1f s (%.1f ops/sec)%n", this.recordCount, seconds, this.recordCount / seconds);
+	}
+
+	// Returns the run time in nanoseconds
+	public long run() {
+		this.completed.set(0);
+		for(String type : Arrays.asList(READ, UPDATE, DELETE)) {
+			this.histograms.put(type, new LatencyHistogram());
+			this.errors.get(type).set(0);
+		}
+
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "benchmark-reporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long start = System.nanoTime();
+		AtomicLong lastCompleted = new AtomicLong();
+		reporter.scheduleAtFixedRate(() -> {
+			long completed = this.completed.get();
+			long interval = completed - lastCompleted.getAndSet(completed);
+			synchronized(this.throughputSeries) {
+				this.throughputSeries.add(interval);
+			}
+			System.out.printf("%d sec: %d operations; %.1f current ops/sec; [READ p99=%d us] [UPDATE p99=%d us]%n",
+					TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), completed, (double) interval / this.reportIntervalSeconds,
+					this.histograms.get(READ).getPercentile(99), this.histograms.get(UPDATE).getPercentile(99));
+		}, this.reportIntervalSeconds, this.reportIntervalSeconds, TimeUnit.SECONDS);
+
+		long deadline = this.durationSeconds > 0 ? start + TimeUnit.SECONDS.toNanos(this.durationSeconds) : Long.MAX_VALUE;
+		long limit = this.operationCount > 0 ? this.operationCount : Long.MAX_VALUE;
+		double intervalNanos = this.targetOpsPerSecond > 0 ? 1e9 / this.targetOpsPerSecond : 0;
+		long issued = 0;
+		while(issued < limit && System.nanoTime() < deadline) {
+			// With a target rate latency is measured from when the operation was due, not from when it could be
+			// sent, so a stalled cluster shows up in the percentiles instead of just slowing the generator down
+			long due = System.nanoTime();
+			if(intervalNanos > 0) {
+				due = start + (long) (issued * intervalNanos);
+				long wait = due - System.nanoTime();
+				if(wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			}
+			issue(nextOperation(), nextRecord(), due);
+			issued++;
+		}
+		awaitCompletion(issued);
+		reporter.shutdownNow();
+		return System.nanoTime() - start;
+	}
+
+	public void writeResults(File file, long runNanos, Properties prop) throws IOException {
+		if(file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		double seconds = runNanos / 1e9;
+		try(PrintWriter out = new PrintWriter(file, "UTF-8")) {
+			out.println("# Workload");
+			for(String name : new TreeSet<String>(prop.stringPropertyNames())) {
+				out.println(name+"="+prop.getProperty(name));
+			}
+			out.println();
+			out.println("# Overall");
+			out.printf("runtime_ms=%d%n", TimeUnit.NANOSECONDS.toMillis(runNanos));
+			out.printf("operations=%d%n", this.completed.get());
+			out.printf("throughput_ops_per_sec=%.1f%n", this.completed.get() / seconds);
+			out.println();
+			out.println("# Latency in microseconds");
+			out.println("operation,count,errors,mean,p50,p99,p999,max");
+			for(Map.Entry<String, LatencyHistogram> entry : this.histograms.entrySet()) {
+				LatencyHistogram histogram = entry.getValue();
+				out.printf("%s,%d,%d,%.1f,%d,%d,%d,%d%n", entry.getKey(), histogram.getCount(), this.errors.get(entry.getKey()).get(),
+						histogram.getMean(), histogram.getPercentile(50), histogram.getPercentile(99), histogram.getPercentile(99.9), histogram.getMax());
+			}
+			out.println();
+			out.println("# Throughput every "+this.reportIntervalSeconds+" seconds");
+			out.println("second,ops_per_sec");
+			synchronized(this.throughputSeries) {
+				for(int i = 0; i < this.throughputSeries.size(); i++) {
+					out.printf("%d,%.1f%n", (i + 1) * this.reportIntervalSeconds, (double) this.throughputSeries.get(i) / this.reportIntervalSeconds);
+				}
+			}
+		}
+		System.out.println("Results written to "+file);
+	}
+
+	public void printSummary(long runNanos) {
+		System.out.printf("Run: %d operations in %.1f s, %.1f ops/sec%n", this.completed.get(), runNanos / 1e9, this.completed.get() / (runNanos / 1e9));
+		for(Map.Entry<String, LatencyHistogram> entry : this.histograms.entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			if(histogram.getCount() > 0) {
+				System.out.printf("[%s] count=%d errors=%d p50=%d us p99=%d us p999=%d us max=%d us%n", entry.getKey().toUpperCase(), histogram.getCount(),
+						this.errors.get(entry.getKey()).get(), histogram.getPercentile(50), histogram.getPercentile(99), histogram.getPercentile(99.9), histogram.getMax());
+			}
+		}
+		NearCache nearCache = this.client.getNearCache();
+		if(nearCache != null) {
+			System.out.printf("Near cache: %d hits, %d misses, %d entries%n", nearCache.getHitCount(), nearCache.getMissCount(), nearCache.size());
+		}
+	}
+
+	private String nextOperation() {
+		double draw = ThreadLocalRandom.current().nextDouble();
+		if(draw < this.readProportion) {
+			return READ;
+		}
+		if(draw < this.readProportion + this.updateProportion) {
+			return UPDATE;
+		}
+		return DELETE;
+	}
+
+	private long nextRecord() {
+		return this.zipfian != null ? this.zipfian.next() : ThreadLocalRandom.current().nextLong(this.recordCount);
+	}
+
+	private String nextValue() {
+		int offset = ThreadLocalRandom.current().nextInt(this.valueSource.length - this.valueSize + 1);
+		return new String(this.valueSource, offset, this.valueSize);
+	}
+
+	private void issue(String type, long record, long due) {
+		String key = "user"+record;
+		CompletableFuture<Response> response;
+		if(type.equals(READ)) {
+			response = this.client.getAsync(key);
+		}
+		else if(type.equals(DELETE)) {
+			response = this.client.deleteAsync(key);
+		}
+		else {
+			response = this.client.putAsync(key, nextValue());
+		}
+		response.whenComplete((result, failure) -> {
+			this.histograms.get(type).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+			if(failure != null || "Request timed out".equals(result.getMessage())) {
+				this.errors.get(type).incrementAndGet();
+			}
+			this.completed.incrementAndGet();
+		});
+	}
+
+	private void awaitCompletion(long operations) {
+		while(this.completed.get() < operations) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+		}
+	}
+
+	private static Logger getLogger(String logFile) {
+		Logger logger = Logger.getLogger("benchmark_log");
+		try {
+			logger.setUseParentHandlers(false);
+			FileHandler fh = new FileHandler(logFile, true);
+			fh.setFormatter(new SimpleFormatter());
+			logger.addHandler(fh);
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+		return logger;
+	}
+
+	public static void main(String args[]) {
+		try {
+			Properties prop = new Properties();
+			try(InputStream input = new FileInputStream(args.length > 0 ? args[0] : "resources/benchmark.properties")) {
+				prop.load(input);
+			}
+
+			DatastoreClient client = new DatastoreClient(Arrays.asList(prop.getProperty("servers", "localhost:8001").split(",")),
+					"nio".equalsIgnoreCase(prop.getProperty("transport", "rmi")), Integer.parseInt(prop.getProperty("concurrency", "64")),
+					getLogger("logs/benchmark.log"));
+			int nearCacheEntries = Integer.parseInt(prop.getProperty("nearcache.entries", "0"));
+			if(nearCacheEntries > 0) {
+				client.enableNearCache("", nearCacheEntries, Long.parseLong(prop.getProperty("nearcache.lease.ms", "5000")));
+			}
+			BenchmarkClient benchmark = new BenchmarkClient(client, prop);
+			if(Boolean.parseBoolean(prop.getProperty("load", "true"))) {
+				benchmark.load();
+			}
+			long runNanos = benchmark.run();
+			benchmark.printSummary(runNanos);
+			benchmark.writeResults(new File(prop.getProperty("result.file", "logs/benchmark-results.txt")), runNanos, prop);
+			client.close();
+		}
+		catch(IOException e) {
+			System.err.println("Benchmark failed: " + e);
+			System.exit(1);
+		}
+	}
+}
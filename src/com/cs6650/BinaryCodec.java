@@ -0,0 +1,355 @@
+package com.cs6650;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary encoding of the values kept on disk and sent over the NIO transport, strings are length prefixed UTF-8
+// and types of transactions, responses and changes are one byte codes
+public class BinaryCodec {
+
+	// Type names with a code, the code of a name is its index plus one. Codes are stored on disk, new names go at the end.
+	private static final String[] TYPES = {"put", "delete", "batch", "noop", "expire", "get", "multiget", "scan"};
+
+	private static final byte NULL_TYPE = 126;
+
+	// Followed by the name of a type that has no code
+	private static final byte NAMED_TYPE = 127;
+
+	// No frame or log record holds more bytes
+	private static final int MAX_LENGTH = WireProtocol.MAX_FRAME_LENGTH;
+
+	private BinaryCodec() {
+	}
+
+	// Returns the count or length read off the input if that many items of at least minBytes each fit in the bytes
+	// left, so a corrupt or hostile frame can't make the reader allocate more than the frame holds
+	private static int checkSize(DataInput in, int size, int minBytes) throws IOException {
+		long left = in instanceof InputStream ? ((InputStream) in).available() : MAX_LENGTH;
+		if(size < 0 || (long) size * minBytes > Math.min(left, MAX_LENGTH)) {
+			throw new IOException("Invalid size "+size+" with "+left+" bytes left");
+		}
+		return size;
+	}
+
+	public static void writeType(DataOutput out, String type) throws IOException {
+		if(type == null) {
+			out.writeByte(NULL_TYPE);
+			return;
+		}
+		for(int i = 0; i < TYPES.length; i++) {
+			if(TYPES[i].equals(type)) {
+				out.writeByte(i + 1);
+				return;
+			}
+		}
+		out.writeByte(NAMED_TYPE);
+		writeString(out, type);
+	}
+
+	public static String readType(DataInput in) throws IOException {
+		byte code = in.readByte();
+		if(code == NULL_TYPE) {
+			return null;
+		}
+		if(code == NAMED_TYPE) {
+			return readString(in);
+		}
+		if(code == 0 || code == -1) {
+			// Log records written before types had codes start with the length of the type name, whose high byte is 0,
+			// or -1 for none
+			int length = code << 24 | in.readUnsignedByte() << 16 | in.readUnsignedShort();
+			if(length < 0) {
+				return null;
+			}
+			byte[] bytes = new byte[checkSize(in, length, 1)];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		if(code < 0 || code > TYPES.length) {
+			throw new IOException("Unknown type code "+code);
+		}
+		return TYPES[code - 1];
+	}
+
+	public static void writeString(DataOutput out, String value) throws IOException {
+		if(value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if(length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[checkSize(in, length, 1)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static void writeTransaction(DataOutput out, Transaction transaction) throws IOException {
+		writeType(out, transaction.getType());
+		writeString(out, transaction.getKey());
+		writeString(out, transaction.getValue());
+		List<Transaction> transactions = transaction.getTransactions();
+		if(transactions == null) {
+			// -2 is followed by the expiry, records without one read the same as before expiries existed
+			if(transaction.getExpiresAt() != 0) {
+				out.writeInt(-2);
+				out.writeLong(transaction.getExpiresAt());
+			}
+			else {
+				out.writeInt(-1);
+			}
+			return;
+		}
+		out.writeInt(transactions.size());
+		for(Transaction batched : transactions) {
+			writeTransaction(out, batched);
+		}
+	}
+
+	public static Transaction readTransaction(DataInput in) throws IOException {
+		Transaction transaction = new Transaction();
+		transaction.setType(readType(in));
+		transaction.setKey(readString(in));
+		transaction.setValue(readString(in));
+		int size = in.readInt();
+		if(size == -2) {
+			transaction.setExpiresAt(in.readLong());
+		}
+		else if(size >= 0) {
+			// A transaction takes at least its type code, two string lengths and its size
+			List<Transaction> transactions = new ArrayList<Transaction>(checkSize(in, size, 13));
+			for(int i = 0; i < size; i++) {
+				transactions.add(readTransaction(in));
+			}
+			transaction.setTransactions(transactions);
+		}
+		return transaction;
+	}
+
+	public static void writeAccepted(DataOutput out, Accepted accepted) throws IOException {
+		writeString(out, accepted.getServerID());
+		out.writeLong(accepted.getProposalNumber());
+		out.writeLong(accepted.getSlot());
+		writeTransaction(out, accepted.getValue());
+	}
+
+	public static Accepted readAccepted(DataInput in) throws IOException {
+		Accepted accepted = new Accepted();
+		accepted.setServerID(readString(in));
+		accepted.setProposalNumber(in.readLong());
+		accepted.setSlot(in.readLong());
+		accepted.setValue(readTransaction(in));
+		return accepted;
+	}
+
+	public static void writeAcceptedList(DataOutput out, List<Accepted> accepteds) throws IOException {
+		out.writeInt(accepteds.size());
+		for(Accepted accepted : accepteds) {
+			writeAccepted(out, accepted);
+		}
+	}
+
+	public static List<Accepted> readAcceptedList(DataInput in) throws IOException {
+		// The server ID's length, proposal number, slot and a transaction
+		int size = checkSize(in, in.readInt(), 33);
+		List<Accepted> accepteds = new ArrayList<Accepted>(size);
+		for(int i = 0; i < size; i++) {
+			accepteds.add(readAccepted(in));
+		}
+		return accepteds;
+	}
+
+	public static void writePromise(DataOutput out, Promise promise) throws IOException {
+		writeString(out, promise.getServerID());
+		out.writeLong(promise.getProposalNumber());
+		out.writeLong(promise.getLastAppliedSlot());
+		writeAcceptedList(out, promise.getAcceptedValues());
+	}
+
+	public static Promise readPromise(DataInput in) throws IOException {
+		Promise promise = new Promise();
+		promise.setServerID(readString(in));
+		promise.setProposalNumber(in.readLong());
+		promise.setLastAppliedSlot(in.readLong());
+		promise.setAcceptedValues(readAcceptedList(in));
+		return promise;
+	}
+
+	public static void writeResponse(DataOutput out, Response response) throws IOException {
+		writeType(out, response.getType());
+		writeString(out, response.getKey());
+		writeString(out, response.getReturnValue());
+		writeString(out, response.getMessage());
+		List<Response> results = response.getResults();
+		if(results == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(results.size());
+		for(Response result : results) {
+			writeResponse(out, result);
+		}
+	}
+
+	public static Response readResponse(DataInput in) throws IOException {
+		Response response = new Response();
+		response.setType(readType(in));
+		response.setKey(readString(in));
+		response.setReturnValue(readString(in));
+		response.setMessage(readString(in));
+		int size = in.readInt();
+		if(size >= 0) {
+			// A response takes at least its type code, three string lengths and its size
+			List<Response> results = new ArrayList<Response>(checkSize(in, size, 17));
+			for(int i = 0; i < size; i++) {
+				results.add(readResponse(in));
+			}
+			response.setResults(results);
+		}
+		return response;
+	}
+
+	// Arguments of a scan request, the client and the server to server transport encode them the same way
+	public static void writeScan(DataOutput out, String startKey, String endKey, int limit, String cursor) throws IOException {
+		writeString(out, startKey);
+		writeString(out, endKey);
+		out.writeInt(limit);
+		writeString(out, cursor);
+	}
+
+	public static void writeStateChunk(DataOutput out, StateChunk chunk) throws IOException {
+		out.writeLong(chunk.getTransferID());
+		out.writeLong(chunk.getStartSlot());
+		writeString(out, chunk.getCursor());
+		out.writeBoolean(chunk.isLast());
+		out.writeInt(chunk.getKeys().size());
+		for(int i = 0; i < chunk.getKeys().size(); i++) {
+			writeString(out, chunk.getKeys().get(i));
+			writeString(out, chunk.getValues().get(i));
+			out.writeLong(chunk.getExpirations().get(i));
+		}
+	}
+
+	public static StateChunk readStateChunk(DataInput in) throws IOException {
+		StateChunk chunk = new StateChunk();
+		chunk.setTransferID(in.readLong());
+		chunk.setStartSlot(in.readLong());
+		chunk.setCursor(readString(in));
+		chunk.setLast(in.readBoolean());
+		int size = checkSize(in, in.readInt(), 16);
+		for(int i = 0; i < size; i++) {
+			chunk.addEntry(readString(in), readString(in), in.readLong());
+		}
+		return chunk;
+	}
+
+	public static void writeChangeBatch(DataOutput out, ChangeBatch batch) throws IOException {
+		out.writeLong(batch.getSubscriptionID());
+		writeSlots(out, batch.getPositions());
+		out.writeBoolean(batch.isCompacted());
+		out.writeInt(batch.getChanges().size());
+		for(Change change : batch.getChanges()) {
+			out.writeInt(change.getShard());
+			out.writeLong(change.getSlot());
+			writeType(out, change.getType());
+			writeString(out, change.getKey());
+			writeString(out, change.getValue());
+			out.writeLong(change.getExpiresAt());
+		}
+	}
+
+	public static ChangeBatch readChangeBatch(DataInput in) throws IOException {
+		ChangeBatch batch = new ChangeBatch();
+		batch.setSubscriptionID(in.readLong());
+		batch.setPositions(readSlots(in));
+		batch.setCompacted(in.readBoolean());
+		// Shard, slot, type code, two string lengths and the expiry
+		int size = checkSize(in, in.readInt(), 29);
+		List<Change> changes = new ArrayList<Change>(size);
+		for(int i = 0; i < size; i++) {
+			Change change = new Change();
+			change.setShard(in.readInt());
+			change.setSlot(in.readLong());
+			change.setType(readType(in));
+			change.setKey(readString(in));
+			change.setValue(readString(in));
+			change.setExpiresAt(in.readLong());
+			changes.add(change);
+		}
+		batch.setChanges(changes);
+		return batch;
+	}
+
+	// One slot per shard, null is written as -1
+	public static void writeSlots(DataOutput out, long[] slots) throws IOException {
+		if(slots == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(slots.length);
+		for(long slot : slots) {
+			out.writeLong(slot);
+		}
+	}
+
+	public static long[] readSlots(DataInput in) throws IOException {
+		int size = in.readInt();
+		if(size < 0) {
+			return null;
+		}
+		long[] slots = new long[checkSize(in, size, 8)];
+		for(int i = 0; i < size; i++) {
+			slots[i] = in.readLong();
+		}
+		return slots;
+	}
+
+	public static void writeStringList(DataOutput out, List<String> values) throws IOException {
+		out.writeInt(values.size());
+		for(String value : values) {
+			writeString(out, value);
+		}
+	}
+
+	public static List<String> readStringList(DataInput in) throws IOException {
+		int size = checkSize(in, in.readInt(), 4);
+		List<String> values = new ArrayList<String>(size);
+		for(int i = 0; i < size; i++) {
+			values.add(readString(in));
+		}
+		return values;
+	}
+
+	public static void writeStorage(DataOutput out, Map<String, String> storage) throws IOException {
+		out.writeInt(storage.size());
+		for(Map.Entry<String, String> entry : storage.entrySet()) {
+			writeString(out, entry.getKey());
+			writeString(out, entry.getValue());
+		}
+	}
+
+	public static HashMap<String, String> readStorage(DataInput in) throws IOException {
+		int size = checkSize(in, in.readInt(), 8);
+		// Linked so entries keep the order they were written in
+		HashMap<String, String> storage = new LinkedHashMap<String, String>();
+		for(int i = 0; i < size; i++) {
+			storage.put(readString(in), readString(in));
+		}
+		return storage;
+	}
+}
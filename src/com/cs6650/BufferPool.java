@@ -0,0 +1,50 @@
+package com.cs6650;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Reuses the byte buffers frames are read into and encoded in, so steady traffic allocates no buffers.
+// Buffers larger than the pooled size are allocated for the one frame that needs them and dropped after.
+public class BufferPool {
+
+	private ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private AtomicInteger pooled = new AtomicInteger();
+
+	// Capacity of every pooled buffer
+	private int bufferSize;
+
+	// Buffers released beyond this many are left to the garbage collector
+	private int maxPooled;
+
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	// Returns a cleared buffer with at least the given capacity
+	public ByteBuffer acquire(int minCapacity) {
+		if(minCapacity > this.bufferSize) {
+			return ByteBuffer.allocate(minCapacity);
+		}
+		ByteBuffer buffer = this.buffers.poll();
+		if(buffer == null) {
+			return ByteBuffer.allocate(this.bufferSize);
+		}
+		this.pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		if(buffer == null || buffer.capacity() != this.bufferSize) {
+			return;
+		}
+		if(this.pooled.incrementAndGet() > this.maxPooled) {
+			this.pooled.decrementAndGet();
+			return;
+		}
+		this.buffers.offer(buffer);
+	}
+}
@@ -0,0 +1,78 @@
+package com.cs6650;
+
+import java.io.Serializable;
+
+// One change to a watched key as it was applied at a slot of its shard
+public class Change implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int shard;
+
+	private long slot;
+
+	// put, delete or expire
+	private String type;
+
+	private String key;
+
+	// Value of a put, null otherwise
+	private String value;
+
+	// Time in milliseconds a put's entry expires at, 0 = never
+	private long expiresAt;
+
+	public int getShard() {
+		return shard;
+	}
+
+	public void setShard(int shard) {
+		this.shard = shard;
+	}
+
+	public long getSlot() {
+		return slot;
+	}
+
+	public void setSlot(long slot) {
+		this.slot = slot;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public void setKey(String key) {
+		this.key = key;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public void setValue(String value) {
+		this.value = value;
+	}
+
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+	public void setExpiresAt(long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
+	@Override
+	public String toString() {
+		return "Change [shard=" + shard + ", slot=" + slot + ", type=" + type + ", key=" + key + ", value=" + value
+				+ (expiresAt != 0 ? ", expiresAt=" + expiresAt : "") + "]";
+	}
+}
@@ -0,0 +1,63 @@
+package com.cs6650;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Changes a watch subscription receives in one poll, in slot order within every shard
+public class ChangeBatch implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// Subscription on the serving server, pass it back to poll the next batch
+	private long subscriptionID;
+
+	private List<Change> changes = new ArrayList<Change>();
+
+	// Every change up to this slot of each shard has been delivered, a new watch started from these positions
+	// on any server carries on where this one left off
+	private long[] positions;
+
+	// The server no longer has the changes after positions, the subscription is closed and the subscriber has
+	// to read the current state again before it watches from new positions
+	private boolean compacted;
+
+	public long getSubscriptionID() {
+		return subscriptionID;
+	}
+
+	public void setSubscriptionID(long subscriptionID) {
+		this.subscriptionID = subscriptionID;
+	}
+
+	public List<Change> getChanges() {
+		return changes;
+	}
+
+	public void setChanges(List<Change> changes) {
+		this.changes = changes;
+	}
+
+	public long[] getPositions() {
+		return positions;
+	}
+
+	public void setPositions(long[] positions) {
+		this.positions = positions;
+	}
+
+	public boolean isCompacted() {
+		return compacted;
+	}
+
+	public void setCompacted(boolean compacted) {
+		this.compacted = compacted;
+	}
+
+	@Override
+	public String toString() {
+		return "ChangeBatch [subscriptionID=" + subscriptionID + ", changes=" + changes.size()
+				+ ", positions=" + Arrays.toString(positions) + ", compacted=" + compacted + "]";
+	}
+}
@@ -0,0 +1,268 @@
+package com.cs6650;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Streams the changes applied to storage to watch subscriptions.
+// The learner appends the changes of the watched keys to a bounded buffer per subscription as it applies slots,
+// polls take them out in batches or wait for them. A subscriber that falls behind never holds up the learner:
+// once its buffer is full it stops receiving and its polls read the following slots back from the log history.
+// Changes are in slot order within every shard, a key lives in one shard so the changes of a key are in order.
+public class ChangeFeed {
+
+	private ConcurrentHashMap<Long, Subscription> subscriptions = new ConcurrentHashMap<Long, Subscription>();
+
+	// Starts from the clock so a restarted server doesn't reuse the IDs of the subscriptions it lost
+	private AtomicLong nextSubscriptionID = new AtomicLong(System.currentTimeMillis() << 16);
+
+	// Changes every subscription buffers at most, the changes of one slot are never split
+	private int bufferSize;
+
+	// Slots of a shard read from the log history per step while a subscription catches up
+	private int replaySlots;
+
+	// Subscriptions that are not polled for this long are dropped, their subscriber is gone
+	private long idleMillis;
+
+	public ChangeFeed(int bufferSize, int replaySlots, long idleMillis) {
+		this.bufferSize = bufferSize;
+		this.replaySlots = replaySlots;
+		this.idleMillis = idleMillis;
+	}
+
+	public long getIdleMillis() {
+		return idleMillis;
+	}
+
+	// Subscribes to the keys starting with prefix from the slots after fromSlots, one per shard,
+	// or from the slots applied next if fromSlots is null
+	public ChangeBatch subscribe(Shard[] shards, String prefix, long[] fromSlots) {
+		dropIdle();
+		Subscription subscription = new Subscription(this.nextSubscriptionID.getAndIncrement(), prefix != null ? prefix : "", shards.length);
+		if(fromSlots != null) {
+			subscription.publishedSlots = fromSlots.clone();
+		}
+		// Registered while every shard replays so nothing is published to it before its start is set
+		Arrays.fill(subscription.replaying, true);
+		this.subscriptions.put(subscription.id, subscription);
+		if(fromSlots == null) {
+			for(Shard shard : shards) {
+				synchronized(shard.getApplyLock()) {
+					synchronized(subscription) {
+						subscription.publishedSlots[shard.getId()] = shard.getLog().getLastAppliedSlot();
+						subscription.replaying[shard.getId()] = false;
+					}
+				}
+			}
+		}
+		synchronized(subscription) {
+			return subscription.take(0);
+		}
+	}
+
+	// Called for every slot as it is applied, with the apply lock of its shard held
+	public void publish(Shard shard, long slot, Transaction value) {
+		if(this.subscriptions.isEmpty()) {
+			return;
+		}
+		for(Subscription subscription : this.subscriptions.values()) {
+			subscription.publish(shard.getId(), slot, value);
+		}
+	}
+
+	// Returns the changes buffered for the subscription, waiting up to waitMillis for the first one.
+	// Returns null if there is no such subscription.
+	public ChangeBatch poll(Shard[] shards, long subscriptionID, int maxChanges, long waitMillis) throws InterruptedException {
+		Subscription subscription = this.subscriptions.get(subscriptionID);
+		if(subscription == null) {
+			return null;
+		}
+		subscription.lastPoll = System.currentTimeMillis();
+		// A poll waiting longer than the idle time would find its subscription dropped
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(waitMillis, this.idleMillis / 2));
+		try {
+			while(true) {
+				replay(shards, subscription);
+				synchronized(subscription) {
+					long remaining = deadline - System.nanoTime();
+					if(!subscription.buffer.isEmpty() || subscription.compacted || remaining <= 0) {
+						ChangeBatch batch = subscription.take(maxChanges);
+						if(batch.isCompacted()) {
+							this.subscriptions.remove(subscriptionID);
+						}
+						return batch;
+					}
+					if(!subscription.isReplaying()) {
+						TimeUnit.NANOSECONDS.timedWait(subscription, remaining);
+					}
+				}
+			}
+		}
+		finally {
+			subscription.lastPoll = System.currentTimeMillis();
+		}
+	}
+
+	public void cancel(long subscriptionID) {
+		this.subscriptions.remove(subscriptionID);
+	}
+
+	public int size() {
+		return this.subscriptions.size();
+	}
+
+	// Refills the buffer of the subscription from the log history for every shard it fell behind on. Runs under
+	// the apply lock of the shard so no slot is applied between the last one read back and the first one published.
+	private void replay(Shard[] shards, Subscription subscription) {
+		for(Shard shard : shards) {
+			int id = shard.getId();
+			synchronized(shard.getApplyLock()) {
+				synchronized(subscription) {
+					if(!subscription.replaying[id] || subscription.compacted) {
+						continue;
+					}
+					List<Accepted> decisions = shard.getLog().getDecisions(subscription.publishedSlots[id] + 1, this.replaySlots);
+					if(decisions == null) {
+						subscription.compacted = true;
+						return;
+					}
+					for(Accepted decision : decisions) {
+						if(!subscription.append(id, decision.getSlot(), decision.getValue())) {
+							break;
+						}
+					}
+					if(subscription.publishedSlots[id] >= shard.getLog().getLastAppliedSlot()) {
+						subscription.replaying[id] = false;
+					}
+				}
+			}
+		}
+	}
+
+	private void dropIdle() {
+		long now = System.currentTimeMillis();
+		Iterator<Subscription> iterator = this.subscriptions.values().iterator();
+		while(iterator.hasNext()) {
+			if(now - iterator.next().lastPoll > this.idleMillis) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private class Subscription {
+
+		private long id;
+
+		private String prefix;
+
+		private ArrayDeque<Change> buffer = new ArrayDeque<Change>();
+
+		// Last slot of every shard whose changes went into the buffer
+		private long[] publishedSlots;
+
+		// Shards whose next slots are read from the log history instead of being published as they are applied
+		private boolean[] replaying;
+
+		// The log history no longer has the slots after publishedSlots
+		private boolean compacted;
+
+		private volatile long lastPoll = System.currentTimeMillis();
+
+		private Subscription(long id, String prefix, int shards) {
+			this.id = id;
+			this.prefix = prefix;
+			this.publishedSlots = new long[shards];
+			this.replaying = new boolean[shards];
+		}
+
+		private synchronized void publish(int shard, long slot, Transaction value) {
+			if(this.replaying[shard] || slot <= this.publishedSlots[shard]) {
+				return;
+			}
+			// A gap means the shard installed a state transfer, the replay finds out the slots are gone
+			if(slot != this.publishedSlots[shard] + 1 || !append(shard, slot, value)) {
+				this.replaying[shard] = true;
+				notifyAll();
+			}
+		}
+
+		// Adds the changes of a slot to the buffer, returns false if they don't fit
+		private boolean append(int shard, long slot, Transaction value) {
+			List<Change> changes = new ArrayList<Change>();
+			collect(shard, slot, value, changes);
+			// An empty buffer takes a slot of any size, a batch larger than the buffer would block the subscription forever
+			if(!changes.isEmpty() && !this.buffer.isEmpty() && this.buffer.size() + changes.size() > bufferSize) {
+				return false;
+			}
+			this.buffer.addAll(changes);
+			this.publishedSlots[shard] = slot;
+			if(!changes.isEmpty()) {
+				notifyAll();
+			}
+			return true;
+		}
+
+		private void collect(int shard, long slot, Transaction value, List<Change> changes) {
+			if(value.getTransactions() != null) {
+				for(Transaction batched : value.getTransactions()) {
+					collect(shard, slot, batched, changes);
+				}
+				return;
+			}
+			String type = value.getType();
+			if(value.getKey() == null || !value.getKey().startsWith(this.prefix)
+					|| !(type.equals("put") || type.equals("delete") || type.equals("expire"))) {
+				return;
+			}
+			Change change = new Change();
+			change.setShard(shard);
+			change.setSlot(slot);
+			// A put of null removes the key like a delete
+			change.setType(type.equals("put") && value.getValue() == null ? "delete" : type);
+			change.setKey(value.getKey());
+			change.setValue(value.getValue());
+			change.setExpiresAt(type.equals("put") ? value.getExpiresAt() : 0);
+			changes.add(change);
+		}
+
+		// Takes at least maxChanges changes out of the buffer, finishing the slot of the last one
+		private ChangeBatch take(int maxChanges) {
+			List<Change> changes = new ArrayList<Change>(Math.min(maxChanges, this.buffer.size()));
+			Change last = null;
+			while(!this.buffer.isEmpty()) {
+				Change next = this.buffer.peekFirst();
+				if(changes.size() >= maxChanges && (last == null || next.getShard() != last.getShard() || next.getSlot() != last.getSlot())) {
+					break;
+				}
+				last = this.buffer.pollFirst();
+				changes.add(last);
+			}
+			long[] positions = this.publishedSlots.clone();
+			for(Change remaining : this.buffer) {
+				positions[remaining.getShard()] = Math.min(positions[remaining.getShard()], remaining.getSlot() - 1);
+			}
+
+			ChangeBatch batch = new ChangeBatch();
+			batch.setSubscriptionID(this.id);
+			batch.setChanges(changes);
+			batch.setPositions(positions);
+			batch.setCompacted(this.compacted && this.buffer.isEmpty());
+			return batch;
+		}
+
+		private boolean isReplaying() {
+			for(boolean replaying : this.replaying) {
+				if(replaying) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
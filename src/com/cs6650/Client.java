@@ -9,6 +9,12 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 import java.io.*; 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Client 
 { 
@@ -17,23 +23,32 @@ public class Client
 
 	private String address;
 	private int port;
+	// "nio" connects to the binary transport of the server, the port is then its NIO port
+	private String transport;
 
 	private BufferedReader reader =  new BufferedReader(new InputStreamReader(System.in));
 
 	// Client log is stored in logs folder
 	private Logger logger = getLogger("logs/client.log");
 
-	public Client(String address, int port) 
+	public Client(String address, int port, String transport) 
 	{ 
 		this.address = address;
 		this.port = port;
+		this.transport = transport;
 	} 
 
 	public void start() {
 		while(true) {
 			try
 			{
-				datastore = (DatastoreInterface) Naming.lookup("//"+address+":"+port+"/Server");
+				if(transport.equals("nio")) {
+					datastore = new NioDatastoreClient(new InetSocketAddress(address, port), new BufferPool(16 * 1024, 16), 30000, logger);
+					datastore.getServerID();
+				}
+				else {
+					datastore = (DatastoreInterface) Naming.lookup("//"+address+":"+port+"/Server");
+				}
 
 				System.out.println("Remote connection established  [ host:"+address+", port:"+port+" ]");
 				logger.info("Remote connection established  [ host:"+address+", port:"+port+" ]");
@@ -46,7 +61,7 @@ public class Client
 					try
 					{ 
 						// Reads the request command from the user
-						System.out.print("Enter request type (put/get/delete/exit): ");
+						System.out.print("Enter request type (put/get/delete/multiput/multiget/multidelete/scan/watch/exit): ");
 						reader = new BufferedReader(new InputStreamReader(System.in));
 						command = reader.readLine().toLowerCase().trim();
 
@@ -56,10 +71,13 @@ public class Client
 							String key = reader.readLine();
 							System.out.print("Enter value: ");
 							String value = reader.readLine();
-							logger.info("Request Query [ipaddress=" + this.address + ", type=" + command + ", key=" + key + ", value=" + value + "]");
+							System.out.print("Enter TTL in seconds (empty to keep the entry until it is deleted): ");
+							String ttl = reader.readLine().trim();
+							long ttlMillis = ttl.isEmpty() ? 0 : (long) (Double.parseDouble(ttl) * 1000);
+							logger.info("Request Query [ipaddress=" + this.address + ", type=" + command + ", key=" + key + ", value=" + value + ", ttlMillis=" + ttlMillis + "]");
 
 							// calls a remote procedure 'put'
-							Response response = datastore.put(key, value);
+							Response response = datastore.put(key, value, ttlMillis);
 							logger.info(response.toString());
 							System.out.println("Response Message: "+response.getMessage());
 
@@ -85,6 +103,100 @@ public class Client
 							logger.info(response.toString());
 							System.out.println("Response Message: "+response.getMessage());
 						}
+						else if(command.equals("multiput")) {
+							System.out.print("Enter key=value pairs separated by commas: ");
+							Map<String, String> entries = new LinkedHashMap<String, String>();
+							for(String pair : reader.readLine().split(",")) {
+								String[] entry = pair.split("=", 2);
+								entries.put(entry[0].trim(), entry.length > 1 ? entry[1].trim() : "");
+							}
+							logger.info("Request Query [ipaddress=" + this.address + ", type=" + command + ", entries=" + entries + "]");
+
+							// calls a remote procedure 'multiPut'
+							Response response = datastore.multiPut(entries);
+							logger.info(response.toString());
+							System.out.println("Response Message: "+response.getMessage());
+						}
+						else if(command.equals("multiget") || command.equals("multidelete")) {
+							System.out.print("Enter keys separated by commas: ");
+							List<String> keys = new ArrayList<String>();
+							for(String key : reader.readLine().split(",")) {
+								keys.add(key.trim());
+							}
+							logger.info("Request Query [ipaddress=" + this.address + ", type=" + command + ", keys=" + keys + "]");
+
+							// calls a remote procedure 'multiGet' or 'multiDelete'
+							Response response = command.equals("multiget") ? datastore.multiGet(keys) : datastore.multiDelete(keys);
+							logger.info(response.toString());
+							System.out.println("Response Message: "+response.getMessage());
+							for(int i = 0; i < keys.size(); i++) {
+								Response result = response.getResults().get(i);
+								System.out.println(keys.get(i)+": "+(command.equals("multiget") ? result.getReturnValue() : result.getMessage()));
+							}
+						}
+						else if(command.equals("scan")) {
+							System.out.print("Enter start key (empty for the first key): ");
+							String startKey = reader.readLine().trim();
+							System.out.print("Enter end key, exclusive (empty for no end): ");
+							String endKey = reader.readLine().trim();
+							System.out.print("Enter page size: ");
+							int limit = Integer.parseInt(reader.readLine().trim());
+							logger.info("Request Query [ipaddress=" + this.address + ", type=" + command + ", startKey=" + startKey + ", endKey=" + endKey + ", limit=" + limit + "]");
+
+							// calls the remote procedure 'scan' once per page, the cursor of a page leads to the next one
+							String cursor = null;
+							do {
+								Response response = datastore.scan(startKey.isEmpty() ? null : startKey, endKey.isEmpty() ? null : endKey, limit, cursor);
+								logger.info(response.toString());
+								System.out.println("Response Message: "+response.getMessage());
+								if(response.getResults() == null) {
+									break;
+								}
+								for(Response result : response.getResults()) {
+									System.out.println(result.getKey()+": "+result.getReturnValue());
+								}
+								cursor = response.getReturnValue();
+								if(cursor != null) {
+									System.out.print("Press enter for the next page, q to stop: ");
+									if(reader.readLine().trim().equalsIgnoreCase("q")) {
+										break;
+									}
+								}
+							} while(cursor != null);
+						}
+						else if(command.equals("watch")) {
+							System.out.print("Enter key prefix (empty for every key): ");
+							String prefix = reader.readLine().trim();
+							logger.info("Request Query [ipaddress=" + this.address + ", type=" + command + ", prefix=" + prefix + "]");
+
+							// calls the remote procedure 'watch', then polls its changes on another thread until enter is pressed
+							ChangeBatch subscription = datastore.watch(prefix, null);
+							System.out.println("Watching from slots "+Arrays.toString(subscription.getPositions())+", press enter to stop");
+							AtomicBoolean stopped = new AtomicBoolean();
+							Thread poller = new Thread(() -> {
+								try {
+									while(!stopped.get()) {
+										ChangeBatch batch = datastore.pollChanges(subscription.getSubscriptionID(), 100, 1000);
+										for(Change change : batch.getChanges()) {
+											System.out.println(change.getType()+" "+change.getKey()+(change.getValue() != null ? ": "+change.getValue() : ""));
+										}
+										if(batch.isCompacted()) {
+											System.out.println("The watch fell behind the log and was closed");
+											break;
+										}
+									}
+								}
+								catch(RemoteException e) {
+									System.out.println("Watch failed: "+e.getMessage());
+									logger.log(Level.WARNING, "Watch failed", e);
+								}
+							}, "client-watch");
+							poller.start();
+							reader.readLine();
+							stopped.set(true);
+							poller.join();
+							datastore.cancelWatch(subscription.getSubscriptionID());
+						}
 					}
 					catch(Exception e) {
 						System.out.println("Request cannot be completed, trying to re-establish connection");
@@ -145,7 +257,7 @@ public class Client
 	public static void main(String args[]) 
 	{ 
 		try {
-			Client client = new Client(args[0], Integer.parseInt(args[1]));
+			Client client = new Client(args[0], Integer.parseInt(args[1]), args.length > 2 ? args[2].toLowerCase() : "rmi");
 			client.start();
 		} 
 		catch(ArrayIndexOutOfBoundsException e) {
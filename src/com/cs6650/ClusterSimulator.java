@@ -0,0 +1,413 @@
+package com.cs6650;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+// Runs a whole cluster in one process over a SimulatedNetwork and drives it with client threads, so consensus
+// behaviour under latency, message loss, partitions and node loss can be measured on one machine.
+// Settings are read from resources/simulation.properties or the file given as first argument.
+public class ClusterSimulator {
+
+	private static final String STEADY = "steady";
+
+	// Every client proposes on its own server without a leader
+	private static final String DUELING = "dueling";
+
+	// One server answers slowly for the whole run
+	private static final String SLOW_REPLICA = "slow-replica";
+
+	// The leader of shard 0 crashes and comes back later
+	private static final String NODE_LOSS = "node-loss";
+
+	// The leader of shard 0 is cut off from the rest of the cluster and the partition heals later
+	private static final String PARTITION = "partition";
+
+	private String scenario;
+
+	private Server[] servers;
+
+	private String[] serverIDs;
+
+	private SimulatedNetwork network;
+
+	private int clients;
+
+	private long durationSeconds;
+
+	private int keyCount;
+
+	// When the fault of the scenario starts and how long it lasts, 0 lasts until the end of the run
+	private long faultAtSeconds;
+
+	private long faultDurationSeconds;
+
+	private long slowLatencyMillis;
+
+	private LatencyHistogram latencies = new LatencyHistogram();
+
+	private AtomicLong commits = new AtomicLong();
+
+	private AtomicLong timeouts = new AtomicLong();
+
+	private AtomicLong errors = new AtomicLong();
+
+	// Share of operations that read back the key the client wrote last, a read that doesn't return that value is stale
+	private double readProportion;
+
+	// Background catch-up interval of the servers, 0 when it is off
+	private long catchUpIntervalMillis;
+
+	// Operations every client starts per second, 0 runs every client as fast as its operations complete
+	private double clientOpsPerSecond;
+
+	private LatencyHistogram readLatencies = new LatencyHistogram();
+
+	private AtomicLong staleReads = new AtomicLong();
+
+	private AtomicLong readTimeouts = new AtomicLong();
+
+	private long seed;
+
+	// Best commits of one second before the fault, and the commits and second when it healed, 0 if it never did
+	private long commitsBeforeFault;
+
+	private long commitsAtHeal;
+
+	private long healedAtSecond;
+
+	private volatile boolean running;
+
+	public ClusterSimulator(Properties prop) throws RemoteException {
+		this.scenario = prop.getProperty("scenario", STEADY);
+		this.clients = Integer.parseInt(prop.getProperty("clients", "8"));
+		this.durationSeconds = Long.parseLong(prop.getProperty("duration.seconds", "10"));
+		this.keyCount = Integer.parseInt(prop.getProperty("keys", "1000"));
+		this.faultAtSeconds = Long.parseLong(prop.getProperty("fault.at.seconds", "3"));
+		this.faultDurationSeconds = Long.parseLong(prop.getProperty("fault.duration.seconds", "3"));
+		this.slowLatencyMillis = Long.parseLong(prop.getProperty("slow.latency.ms", "20"));
+
+		this.readProportion = Double.parseDouble(prop.getProperty("read.proportion", "0"));
+		this.clientOpsPerSecond = Double.parseDouble(prop.getProperty("client.ops.per.second", "0"));
+		long seed = Long.parseLong(prop.getProperty("seed", "1"));
+		this.seed = seed;
+		this.network = new SimulatedNetwork(seed, Long.parseLong(prop.getProperty("latency.ms", "1")),
+				Long.parseLong(prop.getProperty("jitter.ms", "1")), Double.parseDouble(prop.getProperty("drop.rate", "0")));
+
+		int count = Integer.parseInt(prop.getProperty("servers", "3"));
+		boolean multiPaxos = !DUELING.equals(this.scenario) && Boolean.parseBoolean(prop.getProperty("paxos.multi", "true"));
+		long clockSkewMillis = Long.parseLong(prop.getProperty("clock.skew.ms", "0"));
+		Random random = new Random(seed);
+
+		new File("logs").mkdirs();
+		this.servers = new Server[count];
+		this.serverIDs = new String[count];
+		for(int i = 0; i < count; i++) {
+			this.serverIDs[i] = "sim_"+i;
+			Server server = new Server(this.serverIDs[i], null, 0);
+			server.setShardCount(Integer.parseInt(prop.getProperty("shards", "1")));
+			server.setMultiPaxosEnabled(multiPaxos);
+			server.setRandomAcceptorFailureNumber(Long.parseLong(prop.getProperty("acceptor.failure.number", "0")));
+			server.setPipelineWindow(Integer.parseInt(prop.getProperty("paxos.pipeline.window", "32")));
+			server.setPhaseTimeouts(Long.parseLong(prop.getProperty("paxos.prepare.timeout.ms", "1000")),
+					Long.parseLong(prop.getProperty("paxos.accept.timeout.ms", "1000")),
+					Long.parseLong(prop.getProperty("paxos.learn.timeout.ms", "1000")));
+			server.setBatching(Long.parseLong(prop.getProperty("batch.window.ms", "0")), Integer.parseInt(prop.getProperty("batch.max.size", "64")));
+			server.setRetryBackoff(Long.parseLong(prop.getProperty("paxos.retry.base.us", "250")),
+					Long.parseLong(prop.getProperty("paxos.retry.max.ms", "200")),
+					Long.parseLong(prop.getProperty("paxos.retry.timeout.ms", "3000")));
+			if("lease".equalsIgnoreCase(prop.getProperty("read.mode", "local"))) {
+				server.setLeaseReads(Long.parseLong(prop.getProperty("lease.duration.ms", "2000")),
+						Long.parseLong(prop.getProperty("lease.drift.ms", "200")),
+						Long.parseLong(prop.getProperty("read.max.staleness.ms", "0")),
+						Long.parseLong(prop.getProperty("read.timeout.ms", "1000")));
+			}
+			this.catchUpIntervalMillis = Long.parseLong(prop.getProperty("catchup.interval.ms", "1000"));
+			if(this.catchUpIntervalMillis > 0) {
+				server.setCatchUp(this.catchUpIntervalMillis, Double.parseDouble(prop.getProperty("catchup.rate.slots", "5000")));
+			}
+			// Only expiry times come from the clock, ballots are built from rounds and server IDs whatever the skew
+			long skew = clockSkewMillis > 0 ? random.nextInt((int) (2 * clockSkewMillis + 1)) - clockSkewMillis : 0;
+			server.setClock(Clock.offset(Clock.systemUTC(), Duration.ofMillis(skew)));
+			this.servers[i] = server;
+		}
+		// Every server shares one logger
+		this.servers[0].logger.setLevel(Level.parse(prop.getProperty("log.level", "WARNING")));
+
+		// A server calls itself directly and every other server over its link in the network
+		for(int from = 0; from < count; from++) {
+			LinkedHashMap<String, DatastoreInterface> members = new LinkedHashMap<String, DatastoreInterface>();
+			for(int to = 0; to < count; to++) {
+				members.put(this.serverIDs[to], from == to ? this.servers[to] : this.network.connect(this.serverIDs[from], this.serverIDs[to], this.servers[to]));
+			}
+			this.servers[from].getPeers().setMembers(members);
+		}
+	}
+
+	public void run() throws InterruptedException {
+		System.out.println("Simulating "+this.scenario+" with "+this.servers.length+" servers and "+this.clients+" clients for "+this.durationSeconds+" s");
+		if(SLOW_REPLICA.equals(this.scenario)) {
+			this.network.setSlow(this.serverIDs[this.serverIDs.length - 1], this.slowLatencyMillis);
+		}
+
+		this.running = true;
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < this.clients; i++) {
+			int client = i;
+			Thread thread = new Thread(() -> runClient(client), "sim-client-"+i);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+
+		String faulty = null;
+		long lastCommits = 0;
+		for(long second = 1; second <= this.durationSeconds; second++) {
+			TimeUnit.SECONDS.sleep(1);
+			String event = "";
+			if(second == this.faultAtSeconds) {
+				faulty = injectFault();
+				if(faulty != null) {
+					event = " ["+this.scenario+" "+faulty+"]";
+				}
+			}
+			else if(faulty != null && this.faultDurationSeconds > 0 && second == this.faultAtSeconds + this.faultDurationSeconds) {
+				this.network.restore(faulty);
+				this.network.heal();
+				event = " [recovered "+faulty+"]";
+				faulty = null;
+				this.commitsAtHeal = this.commits.get();
+				this.healedAtSecond = second;
+			}
+			long commits = this.commits.get();
+			if(second <= this.faultAtSeconds) {
+				this.commitsBeforeFault = Math.max(this.commitsBeforeFault, commits - lastCommits);
+			}
+			System.out.printf("%d sec: %d commits/sec, %d timeouts, %d errors, p99=%d us, leaders %s%s%n", second, commits - lastCommits,
+					this.timeouts.get(), this.errors.get(), this.latencies.getPercentile(99), leadersOf(liveServer()), event);
+			lastCommits = commits;
+		}
+
+		this.running = false;
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		this.network.heal();
+		for(String serverID : this.serverIDs) {
+			this.network.restore(serverID);
+		}
+		// A shard is checked for missed slots once it stopped applying, that takes up to two intervals
+		if(this.catchUpIntervalMillis > 0) {
+			TimeUnit.MILLISECONDS.sleep(3 * this.catchUpIntervalMillis);
+		}
+	}
+
+	public void printSummary() throws RemoteException {
+		long commits = this.commits.get();
+		System.out.printf("Commits: %d (%.1f/sec), timeouts: %d, errors: %d%n", commits, (double) commits / this.durationSeconds, this.timeouts.get(), this.errors.get());
+		System.out.printf("Commit latency: p50=%d us p99=%d us p999=%d us max=%d us%n", this.latencies.getPercentile(50),
+				this.latencies.getPercentile(99), this.latencies.getPercentile(99.9), this.latencies.getMax());
+		if(this.readProportion > 0) {
+			System.out.printf("Reads: %d, stale: %d, timeouts: %d, latency p50=%d us p99=%d us max=%d us%n", this.readLatencies.getCount(), this.staleReads.get(),
+					this.readTimeouts.get(), this.readLatencies.getPercentile(50), this.readLatencies.getPercentile(99), this.readLatencies.getMax());
+		}
+		// Leaders that can't take over after a partition or crash show up as throughput that stays low once it healed
+		if(this.healedAtSecond > 0 && this.healedAtSecond < this.durationSeconds) {
+			double recovered = (double) (commits - this.commitsAtHeal) / (this.durationSeconds - this.healedAtSecond);
+			System.out.printf("Recovery: %.1f commits/sec after the heal, %.0f%% of the best second before the fault%n", recovered,
+					this.commitsBeforeFault > 0 ? 100 * recovered / this.commitsBeforeFault : 0);
+		}
+
+		// Every round sends one message of its phase to each server, more rounds than commits are retries
+		StringBuilder messages = new StringBuilder("Messages:");
+		for(Map.Entry<String, AtomicLong> entry : this.network.getMessages().entrySet()) {
+			messages.append(" ").append(entry.getKey()).append("=").append(entry.getValue().get());
+		}
+		System.out.println(messages+", dropped="+this.network.getDropped());
+		long prepareRounds = count("prepare") / Math.max(this.servers.length - 1, 1);
+		long acceptRounds = count("accept") / Math.max(this.servers.length - 1, 1);
+		System.out.printf("Rounds: prepare=%d accept=%d, %.2f accept rounds per commit%n", prepareRounds, acceptRounds,
+				commits > 0 ? (double) acceptRounds / commits : 0);
+
+		// A learner that missed a slot stays behind until it catches up, with catch-up off it doesn't agree with the others
+		Map<HashMap<String, String>, List<String>> states = new LinkedHashMap<HashMap<String, String>, List<String>>();
+		for(int i = 0; i < this.servers.length; i++) {
+			states.computeIfAbsent(this.servers[i].getStorage(), state -> new ArrayList<String>()).add(this.serverIDs[i]);
+		}
+		List<String> described = new ArrayList<String>();
+		for(Map.Entry<HashMap<String, String>, List<String>> state : states.entrySet()) {
+			described.add(state.getValue()+" "+state.getKey().size()+" keys");
+		}
+		System.out.println("Storage: "+states.size()+" distinct states "+described);
+	}
+
+	public void shutdown() {
+		for(Server server : this.servers) {
+			try {
+				UnicastRemoteObject.unexportObject(server, true);
+			}
+			catch(NoSuchObjectException e) {
+				continue;
+			}
+		}
+	}
+
+	// Every client writes keys of its own, so a read of the key it wrote last has exactly one right answer
+	private void runClient(int client) {
+		Random random = new Random(this.seed * 31 + client);
+		int keysPerClient = Math.max(this.keyCount / this.clients, 1);
+		String lastKey = null;
+		String lastValue = null;
+		long operation = 0;
+		double intervalNanos = this.clientOpsPerSecond > 0 ? 1e9 / this.clientOpsPerSecond : 0;
+		long first = System.nanoTime();
+		while(this.running) {
+			Server server = pickServer(client, operation);
+			// With a rate latency is measured from when the operation was due, so a client stuck on one operation
+			// shows up in the percentiles of the ones queued behind it
+			long start = System.nanoTime();
+			if(intervalNanos > 0) {
+				start = first + (long) (operation * intervalNanos);
+				long wait = start - System.nanoTime();
+				if(wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			}
+			try {
+				if(lastKey != null && random.nextDouble() < this.readProportion) {
+					Response response = server.get(lastKey);
+					if("Request timed out".equals(response.getMessage())) {
+						this.readTimeouts.incrementAndGet();
+					}
+					else {
+						this.readLatencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+						if(!lastValue.equals(response.getReturnValue())) {
+							this.staleReads.incrementAndGet();
+						}
+					}
+				}
+				else {
+					String key = "key"+client+"_"+(operation % keysPerClient);
+					String value = "value"+operation;
+					Response response = server.put(key, value);
+					if("Request timed out".equals(response.getMessage())) {
+						this.timeouts.incrementAndGet();
+					}
+					else {
+						this.latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+						this.commits.incrementAndGet();
+						lastKey = key;
+						lastValue = value;
+					}
+				}
+			}
+			catch(RemoteException e) {
+				this.errors.incrementAndGet();
+			}
+			operation++;
+		}
+	}
+
+	// Dueling clients stay on their own server, the others spread over the servers that are up
+	private Server pickServer(int client, long operation) {
+		if(DUELING.equals(this.scenario)) {
+			return this.servers[client % this.servers.length];
+		}
+		for(int i = 0; i < this.servers.length; i++) {
+			int index = (int) ((client + operation + i) % this.servers.length);
+			if(!this.network.isCrashed(this.serverIDs[index])) {
+				return this.servers[index];
+			}
+		}
+		return this.servers[client % this.servers.length];
+	}
+
+	// Returns the server the fault hit, null if the scenario has none
+	private String injectFault() {
+		if(!NODE_LOSS.equals(this.scenario) && !PARTITION.equals(this.scenario)) {
+			return null;
+		}
+		String target = leaderOf(liveServer(), 0);
+		if(target == null) {
+			target = this.serverIDs[0];
+		}
+		if(NODE_LOSS.equals(this.scenario)) {
+			this.network.crash(target);
+		}
+		else {
+			this.network.partition(Collections.singletonList(target));
+		}
+		return target;
+	}
+
+	private Server liveServer() {
+		for(int i = 0; i < this.servers.length; i++) {
+			if(!this.network.isCrashed(this.serverIDs[i])) {
+				return this.servers[i];
+			}
+		}
+		return this.servers[0];
+	}
+
+	private long count(String message) {
+		AtomicLong count = this.network.getMessages().get(message);
+		return count != null ? count.get() : 0;
+	}
+
+	private static String leaderOf(Server server, int shard) {
+		try {
+			return server.getLeaderID(shard);
+		}
+		catch(RemoteException e) {
+			return null;
+		}
+	}
+
+	// Leader of every shard as the given server sees it
+	private static String leadersOf(Server server) {
+		StringBuilder leaders = new StringBuilder();
+		for(int shard = 0; shard < server.getShardCount(); shard++) {
+			leaders.append(shard > 0 ? "," : "").append(leaderOf(server, shard));
+		}
+		return leaders.toString();
+	}
+
+	public static void main(String args[]) {
+		try {
+			Properties prop = new Properties();
+			try(InputStream input = new FileInputStream(args.length > 0 ? args[0] : "resources/simulation.properties")) {
+				prop.load(input);
+			}
+			ClusterSimulator simulator = new ClusterSimulator(prop);
+			simulator.run();
+			simulator.printSummary();
+			simulator.shutdown();
+		}
+		catch(IOException e) {
+			System.err.println("Simulation failed: " + e);
+			System.exit(1);
+		}
+		catch(InterruptedException e) {
+			System.err.println("Simulation interrupted");
+			System.exit(1);
+		}
+	}
+}
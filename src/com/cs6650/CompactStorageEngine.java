@@ -0,0 +1,581 @@
+package com.cs6650;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+// Storage in large byte array pages indexed by an open-addressing hash table, with no objects per entry.
+// Every entry is a record [int key length][int value length][key UTF-8][value UTF-8] appended to the current page,
+// records never change once written. A put of an existing key appends a new record and the old one becomes garbage,
+// the pages are compacted once the garbage outgrows the live records. The table holds the address of every live
+// record with the hash of its key, linear probing with backward-shift removal keeps it free of tombstones.
+// Key order for scans is kept in an array of record addresses that new keys are merged into when a scan needs it.
+// The thread applying learned values is the only writer. Readers validate an optimistic read and only take the
+// read lock when a write got in between.
+public class CompactStorageEngine implements StorageEngine {
+
+	private static final int PAGE_SIZE = 1 << 20;
+
+	private static final int RECORD_HEADER = 8;
+
+	// The table is doubled once it is more than three quarters full
+	private static final int MIN_CAPACITY = 1024;
+
+	// Garbage is only compacted away once there is at least this much of it
+	private static final long MIN_COMPACTION_BYTES = 16L * PAGE_SIZE;
+
+	private final StampedLock lock = new StampedLock();
+
+	// Record pages, the address of a record is its page index in the upper and its offset in the lower 32 bits
+	private byte[][] pages = new byte[1][];
+
+	private int pageCount;
+
+	// Write position in the last page
+	private int pagePosition = PAGE_SIZE;
+
+	// Record address + 1 of every slot, 0 for an empty slot
+	private long[] slots = new long[MIN_CAPACITY];
+
+	private int[] hashes = new int[MIN_CAPACITY];
+
+	private int size;
+
+	private long liveBytes;
+
+	private long garbageBytes;
+
+	// Addresses of records in key order, removed keys stay in it until the next compaction and are skipped by scans
+	private KeyOrder order = new KeyOrder(this.pages, new long[0]);
+
+	// Addresses of the keys inserted since the order was last merged, in insertion order
+	private long[] added = new long[16];
+
+	private int addedCount;
+
+	// Changes whenever the pages are replaced, a merge started before that is thrown away
+	private long generation;
+
+	// One scan merges the inserted keys at a time, the others wait for its order
+	private final Object mergeLock = new Object();
+
+	public String get(String key) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		return read(keyBytes, 0, keyBytes.length);
+	}
+
+	public void put(String key, String value) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(keyBytes, 0, keyBytes.length);
+		long stamp = this.lock.writeLock();
+		try {
+			long address = append(keyBytes, 0, keyBytes.length, valueBytes, 0, valueBytes.length);
+			int slot = find(keyBytes, 0, keyBytes.length, hash);
+			if(slot >= 0) {
+				long previous = this.slots[slot] - 1;
+				this.garbageBytes += recordLength(previous);
+				this.liveBytes -= recordLength(previous);
+				this.slots[slot] = address + 1;
+			}
+			else {
+				if(this.size + 1 > this.slots.length / 4 * 3) {
+					resize(this.slots.length * 2);
+				}
+				insert(address, hash);
+				this.size++;
+				if(this.addedCount == this.added.length) {
+					this.added = Arrays.copyOf(this.added, this.added.length * 2);
+				}
+				this.added[this.addedCount++] = address;
+			}
+			this.liveBytes += recordLength(address);
+			compactIfNeeded();
+		}
+		finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	public void remove(String key) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(keyBytes, 0, keyBytes.length);
+		long stamp = this.lock.writeLock();
+		try {
+			int slot = find(keyBytes, 0, keyBytes.length, hash);
+			if(slot < 0) {
+				return;
+			}
+			long address = this.slots[slot] - 1;
+			this.garbageBytes += recordLength(address);
+			this.liveBytes -= recordLength(address);
+			deleteSlot(slot);
+			this.size--;
+			compactIfNeeded();
+		}
+		finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	public int size() {
+		long stamp = this.lock.readLock();
+		try {
+			return this.size;
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	public void clear() {
+		long stamp = this.lock.writeLock();
+		try {
+			this.pages = new byte[1][];
+			this.pageCount = 0;
+			this.pagePosition = PAGE_SIZE;
+			this.slots = new long[MIN_CAPACITY];
+			this.hashes = new int[MIN_CAPACITY];
+			this.size = 0;
+			this.liveBytes = 0;
+			this.garbageBytes = 0;
+			this.order = new KeyOrder(this.pages, new long[0]);
+			this.added = new long[16];
+			this.addedCount = 0;
+			this.generation++;
+		}
+		finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	// Merges the keys inserted since the last scan into the key order first, O(n + k log k) for k new keys
+	// without holding up writers. The iterator then walks the order without a lock and reads every value live.
+	public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey) {
+		KeyOrder order = mergeAdded();
+		int from = startKey != null ? lowerBound(order, startKey.getBytes(StandardCharsets.UTF_8)) : 0;
+		byte[] end = endKey != null ? endKey.getBytes(StandardCharsets.UTF_8) : null;
+		return new ScanIterator(order, from, end);
+	}
+
+	// Bytes held by live records and by garbage not compacted yet, for reporting
+	public long getLiveBytes() {
+		return liveBytes;
+	}
+
+	public long getGarbageBytes() {
+		return garbageBytes;
+	}
+
+	// Value of the key in length bytes of keyBytes from offset, or null
+	private String read(byte[] keyBytes, int offset, int length) {
+		int hash = hash(keyBytes, offset, length);
+		long stamp = this.lock.tryOptimisticRead();
+		if(stamp != 0) {
+			try {
+				String value = lookup(keyBytes, offset, length, hash);
+				if(this.lock.validate(stamp)) {
+					return value;
+				}
+			}
+			catch(RuntimeException e) {
+				// Arrays read while a write replaced them, the read is done again under the lock
+			}
+		}
+		stamp = this.lock.readLock();
+		try {
+			return lookup(keyBytes, offset, length, hash);
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	private String lookup(byte[] keyBytes, int keyOffset, int keyLength, int hash) {
+		int slot = find(keyBytes, keyOffset, keyLength, hash);
+		if(slot < 0) {
+			return null;
+		}
+		long address = this.slots[slot] - 1;
+		byte[] page = this.pages[(int) (address >>> 32)];
+		int offset = (int) address;
+		int valueLength = readInt(page, offset + 4);
+		int valueOffset = offset + RECORD_HEADER + readInt(page, offset);
+		// A torn optimistic read could see any length, it must not allocate by it
+		if(valueLength < 0 || valueOffset < 0 || valueOffset + valueLength > page.length) {
+			throw new IllegalStateException("Inconsistent record");
+		}
+		return new String(page, valueOffset, valueLength, StandardCharsets.UTF_8);
+	}
+
+	// Slot holding the key, or -1
+	private int find(byte[] keyBytes, int keyOffset, int keyLength, int hash) {
+		long[] slots = this.slots;
+		int[] hashes = this.hashes;
+		int mask = slots.length - 1;
+		for(int slot = hash & mask, probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+			long entry = slots[slot];
+			if(entry == 0) {
+				return -1;
+			}
+			if(hashes[slot] == hash && keyEquals(entry - 1, keyBytes, keyOffset, keyLength)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(long address, int hash) {
+		int mask = this.slots.length - 1;
+		int slot = hash & mask;
+		while(this.slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		this.slots[slot] = address + 1;
+		this.hashes[slot] = hash;
+	}
+
+	// Moves later entries of the probe sequence back into the freed slot so lookups never stop early
+	private void deleteSlot(int slot) {
+		int mask = this.slots.length - 1;
+		int free = slot;
+		int next = (free + 1) & mask;
+		while(this.slots[next] != 0) {
+			int home = this.hashes[next] & mask;
+			// The entry at next may move to free if its home slot is not between free and next
+			if(((next - home) & mask) >= ((next - free) & mask)) {
+				this.slots[free] = this.slots[next];
+				this.hashes[free] = this.hashes[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.slots[free] = 0;
+		this.hashes[free] = 0;
+	}
+
+	private void resize(int capacity) {
+		long[] oldSlots = this.slots;
+		int[] oldHashes = this.hashes;
+		this.slots = new long[capacity];
+		this.hashes = new int[capacity];
+		for(int i = 0; i < oldSlots.length; i++) {
+			if(oldSlots[i] != 0) {
+				insert(oldSlots[i] - 1, oldHashes[i]);
+			}
+		}
+	}
+
+	private long append(byte[] key, int keyOffset, int keyLength, byte[] value, int valueOffset, int valueLength) {
+		int length = RECORD_HEADER + keyLength + valueLength;
+		if(this.pageCount == 0 || this.pagePosition + length > this.pages[this.pageCount - 1].length) {
+			if(this.pageCount == this.pages.length) {
+				this.pages = Arrays.copyOf(this.pages, this.pages.length * 2);
+			}
+			// A record larger than a page gets a page of its own
+			this.pages[this.pageCount++] = new byte[Math.max(PAGE_SIZE, length)];
+			this.pagePosition = 0;
+		}
+		byte[] page = this.pages[this.pageCount - 1];
+		int offset = this.pagePosition;
+		writeInt(page, offset, keyLength);
+		writeInt(page, offset + 4, valueLength);
+		System.arraycopy(key, keyOffset, page, offset + RECORD_HEADER, keyLength);
+		System.arraycopy(value, valueOffset, page, offset + RECORD_HEADER + keyLength, valueLength);
+		this.pagePosition += length;
+		return ((long) (this.pageCount - 1) << 32) | offset;
+	}
+
+	private int recordLength(long address) {
+		byte[] page = this.pages[(int) (address >>> 32)];
+		int offset = (int) address;
+		return RECORD_HEADER + readInt(page, offset) + readInt(page, offset + 4);
+	}
+
+	private boolean keyEquals(long address, byte[] keyBytes, int keyOffset, int keyLength) {
+		byte[] page = this.pages[(int) (address >>> 32)];
+		int offset = (int) address;
+		if(readInt(page, offset) != keyLength) {
+			return false;
+		}
+		int start = offset + RECORD_HEADER;
+		for(int i = 0; i < keyLength; i++) {
+			if(page[start + i] != keyBytes[keyOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Sorts the keys inserted so far and merges them into the key order, dropping repeats of a key that was removed
+	// and inserted again. Only the copy and the install take the lock, a compaction in between means starting over.
+	private KeyOrder mergeAdded() {
+		synchronized(this.mergeLock) {
+			while(true) {
+				byte[][] pages;
+				long[] sorted;
+				long[] added;
+				long generation;
+				long stamp = this.lock.readLock();
+				try {
+					if(this.addedCount == 0) {
+						return this.order;
+					}
+					pages = this.pages;
+					sorted = this.order.addresses;
+					added = Arrays.copyOf(this.added, this.addedCount);
+					generation = this.generation;
+				}
+				finally {
+					this.lock.unlockRead(stamp);
+				}
+
+				sort(pages, added);
+				long[] merged = new long[sorted.length + added.length];
+				int count = 0;
+				int i = 0;
+				int j = 0;
+				while(i < sorted.length || j < added.length) {
+					long next;
+					if(j == added.length || (i < sorted.length && compareKeys(pages, sorted[i], added[j]) <= 0)) {
+						next = sorted[i++];
+					}
+					else {
+						next = added[j++];
+					}
+					if(count == 0 || compareKeys(pages, merged[count - 1], next) != 0) {
+						merged[count++] = next;
+					}
+				}
+
+				stamp = this.lock.writeLock();
+				try {
+					if(this.generation == generation) {
+						this.order = new KeyOrder(pages, Arrays.copyOf(merged, count));
+						// Keys inserted during the merge wait for the next one
+						this.addedCount -= added.length;
+						System.arraycopy(this.added, added.length, this.added, 0, this.addedCount);
+						return this.order;
+					}
+				}
+				finally {
+					this.lock.unlockWrite(stamp);
+				}
+			}
+		}
+	}
+
+	// Copies the live records to new pages once garbage outweighs them, the keys of the order first and the inserted
+	// ones after them, so both keep their sequence and the removed keys drop out of the order. Runs with the write
+	// lock held, scans already running keep reading the old pages.
+	private void compactIfNeeded() {
+		if(this.garbageBytes < MIN_COMPACTION_BYTES || this.garbageBytes < this.liveBytes) {
+			return;
+		}
+		// Slots of the live keys in the sequence their records are copied in
+		int[] moves = new int[this.size];
+		boolean[] moved = new boolean[this.slots.length];
+		int count = 0;
+		for(long address : this.order.addresses) {
+			count = addMove(address, moves, moved, count);
+		}
+		int sortedCount = count;
+		for(int i = 0; i < this.addedCount; i++) {
+			count = addMove(this.added[i], moves, moved, count);
+		}
+
+		byte[][] oldPages = this.pages;
+		long[] sorted = new long[sortedCount];
+		long[] added = new long[Math.max(16, count - sortedCount)];
+		this.pages = new byte[oldPages.length][];
+		this.pageCount = 0;
+		this.pagePosition = PAGE_SIZE;
+		for(int i = 0; i < count; i++) {
+			long live = this.slots[moves[i]] - 1;
+			byte[] page = oldPages[(int) (live >>> 32)];
+			int offset = (int) live;
+			int keyLength = readInt(page, offset);
+			long address = append(page, offset + RECORD_HEADER, keyLength, page, offset + RECORD_HEADER + keyLength, readInt(page, offset + 4));
+			this.slots[moves[i]] = address + 1;
+			if(i < sortedCount) {
+				sorted[i] = address;
+			}
+			else {
+				added[i - sortedCount] = address;
+			}
+		}
+		this.order = new KeyOrder(this.pages, sorted);
+		this.added = added;
+		this.addedCount = count - sortedCount;
+		this.garbageBytes = 0;
+		this.generation++;
+	}
+
+	// Adds the slot of the record's key to moves if the key is live and not added yet, returns the new count
+	private int addMove(long address, int[] moves, boolean[] moved, int count) {
+		byte[] page = this.pages[(int) (address >>> 32)];
+		int keyOffset = (int) address + RECORD_HEADER;
+		int keyLength = readInt(page, (int) address);
+		int slot = find(page, keyOffset, keyLength, hash(page, keyOffset, keyLength));
+		if(slot < 0 || moved[slot]) {
+			return count;
+		}
+		moved[slot] = true;
+		moves[count] = slot;
+		return count + 1;
+	}
+
+	// First position in the order whose key is not below key
+	private static int lowerBound(KeyOrder order, byte[] key) {
+		int low = 0;
+		int high = order.addresses.length;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(compareKey(order.pages, order.addresses[middle], key) < 0) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	// Merge sort of record addresses by key
+	private static void sort(byte[][] pages, long[] addresses) {
+		long[] buffer = new long[addresses.length];
+		for(int width = 1; width < addresses.length; width *= 2) {
+			for(int low = 0; low < addresses.length - width; low += 2 * width) {
+				int middle = low + width;
+				int high = Math.min(low + 2 * width, addresses.length);
+				int i = low;
+				int j = middle;
+				int k = low;
+				while(i < middle && j < high) {
+					buffer[k++] = compareKeys(pages, addresses[i], addresses[j]) <= 0 ? addresses[i++] : addresses[j++];
+				}
+				while(i < middle) {
+					buffer[k++] = addresses[i++];
+				}
+				while(j < high) {
+					buffer[k++] = addresses[j++];
+				}
+				System.arraycopy(buffer, low, addresses, low, high - low);
+			}
+		}
+	}
+
+	private static int compareKeys(byte[][] pages, long first, long second) {
+		byte[] secondPage = pages[(int) (second >>> 32)];
+		int secondOffset = (int) second;
+		return compare(pages[(int) (first >>> 32)], (int) first, secondPage, secondOffset + RECORD_HEADER, readInt(secondPage, secondOffset));
+	}
+
+	private static int compareKey(byte[][] pages, long address, byte[] key) {
+		return compare(pages[(int) (address >>> 32)], (int) address, key, 0, key.length);
+	}
+
+	// Compares the key of the record at offset with length bytes of other from otherStart in the order of
+	// String.compareTo. UTF-8 bytes sort by code point, UTF-16 puts the surrogates of supplementary characters
+	// (lead bytes F0-F4) below U+E000-U+FFFF (lead bytes EE-EF), so those lead bytes are weighed in between ED and EE.
+	private static int compare(byte[] page, int offset, byte[] other, int otherStart, int length) {
+		int keyLength = readInt(page, offset);
+		int start = offset + RECORD_HEADER;
+		int common = Math.min(keyLength, length);
+		for(int i = 0; i < common; i++) {
+			int a = page[start + i] & 0xff;
+			int b = other[otherStart + i] & 0xff;
+			if(a != b) {
+				return weight(a) - weight(b);
+			}
+		}
+		return keyLength - length;
+	}
+
+	private static int weight(int b) {
+		return b >= 0xF0 ? 2 * 0xED + 1 : 2 * b;
+	}
+
+	private static int hash(byte[] bytes, int offset, int length) {
+		int hash = 1;
+		for(int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + bytes[i];
+		}
+		// Spreads the bits the table index uses
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int readInt(byte[] page, int offset) {
+		return (page[offset] << 24) | ((page[offset + 1] & 0xff) << 16) | ((page[offset + 2] & 0xff) << 8) | (page[offset + 3] & 0xff);
+	}
+
+	private static void writeInt(byte[] page, int offset, int value) {
+		page[offset] = (byte) (value >>> 24);
+		page[offset + 1] = (byte) (value >>> 16);
+		page[offset + 2] = (byte) (value >>> 8);
+		page[offset + 3] = (byte) value;
+	}
+
+	// Record addresses in key order with the pages they point into, never changed once built
+	private static class KeyOrder {
+
+		private byte[][] pages;
+
+		private long[] addresses;
+
+		private KeyOrder(byte[][] pages, long[] addresses) {
+			this.pages = pages;
+			this.addresses = addresses;
+		}
+	}
+
+	// Walks the key order of the moment the scan started, values are read live so removed keys are skipped
+	private class ScanIterator implements Iterator<Map.Entry<String, String>> {
+
+		private KeyOrder order;
+
+		private int position;
+
+		private byte[] endKey;
+
+		private Map.Entry<String, String> next;
+
+		private ScanIterator(KeyOrder order, int position, byte[] endKey) {
+			this.order = order;
+			this.position = position;
+			this.endKey = endKey;
+		}
+
+		public boolean hasNext() {
+			long[] addresses = this.order.addresses;
+			while(this.next == null && this.position < addresses.length) {
+				long address = addresses[this.position++];
+				if(this.endKey != null && compareKey(this.order.pages, address, this.endKey) >= 0) {
+					this.position = addresses.length;
+					break;
+				}
+				byte[] page = this.order.pages[(int) (address >>> 32)];
+				int keyOffset = (int) address + RECORD_HEADER;
+				int keyLength = readInt(page, (int) address);
+				String value = read(page, keyOffset, keyLength);
+				if(value != null) {
+					this.next = new AbstractMap.SimpleImmutableEntry<String, String>(new String(page, keyOffset, keyLength, StandardCharsets.UTF_8), value);
+				}
+			}
+			return this.next != null;
+		}
+
+		public Map.Entry<String, String> next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, String> entry = this.next;
+			this.next = null;
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,616 @@
+package com.cs6650;
+
+import java.io.Closeable;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Programmatic client of the datastore. Every operation returns at once with a future, requests are spread
+// round robin over the given servers and a request that fails on one server is retried on the next.
+// Over the NIO transport any number of requests share one connection per server, over RMI every request
+// in flight holds a thread of the client.
+public class DatastoreClient implements Closeable {
+
+	// One operation as an RMI call, used when the client talks RMI
+	private interface RmiCall {
+		Response call(DatastoreInterface server) throws RemoteException;
+	}
+
+	// Receives the changes of a watch
+	public interface WatchListener {
+		// Called with every batch in order on the thread of the watch, the next batch is fetched once it returns.
+		// A poll that found no changes hands over an empty batch, which shows the watch is alive. A listener that
+		// throws gets the batch again. A compacted batch is the last one, the subscriber has to read the current
+		// state again and watch anew.
+		void onChanges(ChangeBatch batch);
+	}
+
+	private List<Endpoint> endpoints = new ArrayList<Endpoint>();
+
+	private AtomicInteger nextEndpoint = new AtomicInteger();
+
+	private boolean nio;
+
+	// Bounds the requests in flight, a caller blocks once the bound is reached
+	private Semaphore inFlight;
+
+	private int maxAttempts = 3;
+
+	// Waited before a retry, multiplied by the number of attempts so far
+	private long retryDelayMillis = 100;
+
+	// A server that failed is skipped for this long as long as another server is up
+	private long downMillis = 5000;
+
+	private long requestTimeoutMillis = 30000;
+
+	// How long a watch poll waits for changes, below the request timeout
+	private long watchPollMillis = 10000;
+
+	// Changes a watch asks for per poll
+	private int watchBatchSize = 1000;
+
+	// Values read before, kept coherent by a watch, null when the near cache is off
+	private volatile NearCache nearCache;
+
+	// Keys starting with this are cached
+	private String nearCachePrefix;
+
+	private volatile Watch nearCacheWatch;
+
+	private BufferPool bufferPool = new BufferPool(16 * 1024, 256);
+
+	private ExecutorService rmiExecutor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "client-rmi-call");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Times out requests and schedules retries
+	private ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+		Thread thread = new Thread(runnable, "client-timer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private Logger logger;
+
+	// Servers are given as host:port, the port is the RMI port or, with nio, the NIO port of the server
+	public DatastoreClient(List<String> servers, boolean nio, int maxInFlight, Logger logger) {
+		this.nio = nio;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.logger = logger;
+		// Timeouts of answered requests are cancelled, they must not pile up in the timer queue
+		this.timer.setRemoveOnCancelPolicy(true);
+		for(String server : servers) {
+			String[] address = server.trim().split(":");
+			this.endpoints.add(new Endpoint(address[0], Integer.parseInt(address[1])));
+		}
+		if(this.endpoints.isEmpty()) {
+			throw new IllegalArgumentException("No servers given");
+		}
+	}
+
+	public void setRetries(int maxAttempts, long retryDelayMillis, long downMillis) {
+		this.maxAttempts = maxAttempts;
+		this.retryDelayMillis = retryDelayMillis;
+		this.downMillis = downMillis;
+	}
+
+	public void setRequestTimeout(long requestTimeoutMillis) {
+		this.requestTimeoutMillis = requestTimeoutMillis;
+	}
+
+	public void setWatchPolling(long watchPollMillis, int watchBatchSize) {
+		this.watchPollMillis = watchPollMillis;
+		this.watchBatchSize = watchBatchSize;
+	}
+
+	// Caches the values of the keys starting with prefix that are read with get, at most maxEntries of them. A watch on
+	// the prefix keeps the cache coherent, reads skip the cache once leaseMillis passed without hearing from it.
+	// Reads that miss it go to the server the watch is on.
+	public void enableNearCache(String prefix, int maxEntries, long leaseMillis) {
+		NearCache cache = new NearCache(maxEntries, leaseMillis);
+		this.nearCachePrefix = prefix;
+		this.nearCache = cache;
+		watchNearCache(cache, leaseMillis);
+	}
+
+	public NearCache getNearCache() {
+		return nearCache;
+	}
+
+	public CompletableFuture<Response> putAsync(String key, String value) {
+		return write(Collections.singletonList(key), () -> submit(WireProtocol.PUT, out -> {
+			BinaryCodec.writeString(out, key);
+			BinaryCodec.writeString(out, value);
+		}, server -> server.put(key, value)));
+	}
+
+	// The entry expires ttlMillis after the server receives the put
+	public CompletableFuture<Response> putAsync(String key, String value, long ttlMillis) {
+		return write(Collections.singletonList(key), () -> submit(WireProtocol.PUT_TTL, out -> {
+			BinaryCodec.writeString(out, key);
+			BinaryCodec.writeString(out, value);
+			out.writeLong(ttlMillis);
+		}, server -> server.put(key, value, ttlMillis)));
+	}
+
+	public CompletableFuture<Response> getAsync(String key) {
+		NearCache cache = this.nearCache;
+		if(cache == null || !key.startsWith(this.nearCachePrefix)) {
+			return submit(WireProtocol.GET, out -> BinaryCodec.writeString(out, key), server -> server.get(key));
+		}
+		String cached = cache.get(key);
+		if(cached != null) {
+			Response response = new Response();
+			response.setType("get");
+			response.setReturnValue(cached);
+			response.setMessage("successfully retrieved entry from near cache");
+			return CompletableFuture.completedFuture(response);
+		}
+		// A value read from another server may be older than a change the watch already delivered
+		Watch watch = this.nearCacheWatch;
+		Endpoint watched = watch != null ? watch.endpoint : null;
+		if(watched == null) {
+			return submit(WireProtocol.GET, out -> BinaryCodec.writeString(out, key), server -> server.get(key));
+		}
+		return readThrough(cache, key, watched);
+	}
+
+	public CompletableFuture<Response> deleteAsync(String key) {
+		return write(Collections.singletonList(key), () -> submit(WireProtocol.DELETE, out -> BinaryCodec.writeString(out, key), server -> server.delete(key)));
+	}
+
+	public CompletableFuture<Response> multiGetAsync(List<String> keys) {
+		return submit(WireProtocol.MULTI_GET, out -> BinaryCodec.writeStringList(out, keys), server -> server.multiGet(keys));
+	}
+
+	public CompletableFuture<Response> multiPutAsync(Map<String, String> entries) {
+		return write(entries.keySet(), () -> submit(WireProtocol.MULTI_PUT, out -> BinaryCodec.writeStorage(out, entries), server -> server.multiPut(entries)));
+	}
+
+	public CompletableFuture<Response> multiDeleteAsync(List<String> keys) {
+		return write(keys, () -> submit(WireProtocol.MULTI_DELETE, out -> BinaryCodec.writeStringList(out, keys), server -> server.multiDelete(keys)));
+	}
+
+	public CompletableFuture<Response> scanAsync(String startKey, String endKey, int limit, String cursor) {
+		return submit(WireProtocol.SCAN, out -> BinaryCodec.writeScan(out, startKey, endKey, limit, cursor), server -> server.scan(startKey, endKey, limit, cursor));
+	}
+
+	public Response put(String key, String value) throws RemoteException {
+		return await(putAsync(key, value));
+	}
+
+	public Response put(String key, String value, long ttlMillis) throws RemoteException {
+		return await(putAsync(key, value, ttlMillis));
+	}
+
+	public Response get(String key) throws RemoteException {
+		return await(getAsync(key));
+	}
+
+	public Response delete(String key) throws RemoteException {
+		return await(deleteAsync(key));
+	}
+
+	public Response scan(String startKey, String endKey, int limit, String cursor) throws RemoteException {
+		return await(scanAsync(startKey, endKey, limit, cursor));
+	}
+
+	// Streams the entries from startKey (inclusive) to endKey (exclusive) in key order, fetching pages of at most
+	// pageSize entries as the caller iterates. Pages may come from different servers, the cursor is just a key.
+	// A failed page throws an UncheckedIOException wrapping the RemoteException.
+	public Iterator<Map.Entry<String, String>> scanAll(String startKey, String endKey, int pageSize) {
+		return new ScanIterator(startKey, endKey, pageSize);
+	}
+
+	// Streams the changes of the keys starting with prefix to the listener, from the slots after fromSlots or from
+	// now if it is null. The watch long-polls one server and moves on to the next with the positions of its last
+	// batch when that server fails, so no change is lost or seen twice. Close the watch to stop it.
+	public Watch watch(String prefix, long[] fromSlots, WatchListener listener) {
+		return startWatch(prefix, fromSlots, listener, this.watchPollMillis);
+	}
+
+	public void close() {
+		Watch watch = this.nearCacheWatch;
+		if(watch != null) {
+			watch.close();
+		}
+		this.timer.shutdownNow();
+		this.rmiExecutor.shutdownNow();
+	}
+
+	private Watch startWatch(String prefix, long[] fromSlots, WatchListener listener, long pollMillis) {
+		Watch watch = new Watch(prefix, fromSlots, listener, pollMillis);
+		Thread thread = new Thread(watch, "client-watch");
+		thread.setDaemon(true);
+		thread.start();
+		return watch;
+	}
+
+	// Polls at least twice per lease so a healthy watch renews it in time. A watch that fell behind the log is
+	// replaced by a new one from now, the cache clears itself before it trusts the new one.
+	private void watchNearCache(NearCache cache, long leaseMillis) {
+		this.nearCacheWatch = startWatch(this.nearCachePrefix, null, batch -> {
+			cache.onChanges(batch);
+			if(batch.isCompacted()) {
+				watchNearCache(cache, leaseMillis);
+			}
+		}, leaseMillis / 2);
+	}
+
+	// Drops the keys from the near cache before the write is sent and again once it is done. A read that started
+	// before the write was applied may have filled the cache with the value it replaced in between.
+	private CompletableFuture<Response> write(Collection<String> keys, Supplier<CompletableFuture<Response>> send) {
+		NearCache cache = this.nearCache;
+		if(cache == null) {
+			return send.get();
+		}
+		for(String key : keys) {
+			cache.invalidate(key);
+		}
+		return send.get().whenComplete((response, failure) -> {
+			for(String key : keys) {
+				cache.invalidate(key);
+			}
+		});
+	}
+
+	private CompletableFuture<Response> submit(byte opcode, NioDatastoreClient.Encoder encoder, RmiCall rmiCall) {
+		CompletableFuture<Response> result = startRequest();
+		if(!result.isDone()) {
+			attempt(opcode, encoder, rmiCall, 1, result);
+		}
+		return result;
+	}
+
+	// Reads the key from the server the near cache's watch is on and caches the value. If that server fails the
+	// watch leaves it as well, the read is retried on the others like any request but its value is not cached.
+	private CompletableFuture<Response> readThrough(NearCache cache, String key, Endpoint watched) {
+		NioDatastoreClient.Encoder encoder = out -> BinaryCodec.writeString(out, key);
+		RmiCall rmiCall = server -> server.get(key);
+		CompletableFuture<Response> result = startRequest();
+		if(result.isDone()) {
+			return result;
+		}
+		Object reservation = cache.reserve(key);
+		watched.send(WireProtocol.GET, encoder, rmiCall).whenComplete((response, failure) -> {
+			if(failure == null) {
+				cache.fill(key, reservation, response.getReturnValue());
+				result.complete(response);
+				return;
+			}
+			if(watched.markDown()) {
+				logger.info("Server "+watched+" failed, skipping it for "+this.downMillis+" ms: "+failure);
+			}
+			attempt(WireProtocol.GET, encoder, rmiCall, 2, result);
+		});
+		return result;
+	}
+
+	// Takes a slot of the in flight bound for a request, the returned future frees it once completed. It is already
+	// completed exceptionally if the caller was interrupted while waiting for a slot.
+	private CompletableFuture<Response> startRequest() {
+		CompletableFuture<Response> result = new CompletableFuture<Response>();
+		try {
+			this.inFlight.acquire();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.completeExceptionally(new RemoteException("Interrupted while waiting to send a request"));
+			return result;
+		}
+		result.whenComplete((response, failure) -> this.inFlight.release());
+		return result;
+	}
+
+	private void attempt(byte opcode, NioDatastoreClient.Encoder encoder, RmiCall rmiCall, int attempt, CompletableFuture<Response> result) {
+		Endpoint endpoint = pickEndpoint();
+		endpoint.send(opcode, encoder, rmiCall).whenComplete((response, failure) -> {
+			if(failure == null) {
+				result.complete(response);
+				return;
+			}
+			Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+			if(endpoint.markDown()) {
+				logger.info("Server "+endpoint+" failed, skipping it for "+this.downMillis+" ms: "+cause);
+			}
+			if(attempt >= this.maxAttempts || !(cause instanceof RemoteException)) {
+				result.completeExceptionally(cause);
+				return;
+			}
+			logger.fine("Request to "+endpoint+" failed, retrying on another server: "+cause);
+			try {
+				this.timer.schedule(() -> attempt(opcode, encoder, rmiCall, attempt + 1, result), this.retryDelayMillis * attempt, TimeUnit.MILLISECONDS);
+			}
+			catch(RuntimeException e) {
+				// The client was closed
+				result.completeExceptionally(cause);
+			}
+		});
+	}
+
+	// Next server in round robin order that is not marked down, or the next one if every server is down
+	private Endpoint pickEndpoint() {
+		int start = Math.floorMod(this.nextEndpoint.getAndIncrement(), this.endpoints.size());
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < this.endpoints.size(); i++) {
+			Endpoint endpoint = this.endpoints.get((start + i) % this.endpoints.size());
+			if(endpoint.downUntil <= now) {
+				return endpoint;
+			}
+		}
+		return this.endpoints.get(start);
+	}
+
+	private static Response await(CompletableFuture<Response> response) throws RemoteException {
+		try {
+			return response.get();
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof RemoteException) {
+				throw (RemoteException) e.getCause();
+			}
+			throw new RemoteException("Request failed", e.getCause());
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for a response");
+		}
+	}
+
+	private class ScanIterator implements Iterator<Map.Entry<String, String>> {
+
+		private String startKey;
+
+		private String endKey;
+
+		private int pageSize;
+
+		private Iterator<Response> page = Collections.emptyIterator();
+
+		// Cursor of the next page, null once the last page was fetched
+		private String cursor;
+
+		private boolean started;
+
+		private ScanIterator(String startKey, String endKey, int pageSize) {
+			this.startKey = startKey;
+			this.endKey = endKey;
+			this.pageSize = pageSize;
+		}
+
+		public boolean hasNext() {
+			while(!this.page.hasNext() && (!this.started || this.cursor != null)) {
+				Response response;
+				try {
+					response = scan(this.startKey, this.endKey, this.pageSize, this.cursor);
+				}
+				catch(RemoteException e) {
+					throw new UncheckedIOException(e);
+				}
+				if(response.getResults() == null) {
+					throw new UncheckedIOException(new RemoteException("Scan failed: "+response.getMessage()));
+				}
+				this.started = true;
+				this.cursor = response.getReturnValue();
+				this.page = response.getResults().iterator();
+			}
+			return this.page.hasNext();
+		}
+
+		public Map.Entry<String, String> next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Response result = this.page.next();
+			return new AbstractMap.SimpleImmutableEntry<String, String>(result.getKey(), result.getReturnValue());
+		}
+	}
+
+	public class Watch implements Runnable, Closeable {
+
+		private String prefix;
+
+		// Positions after the last batch the listener got, null until the first subscription
+		private volatile long[] positions;
+
+		private WatchListener listener;
+
+		// How long a poll waits for changes
+		private long pollMillis;
+
+		private volatile boolean closed;
+
+		// Server the watch is subscribed on, null while it is between servers
+		private volatile Endpoint endpoint;
+
+		private Watch(String prefix, long[] fromSlots, WatchListener listener, long pollMillis) {
+			this.prefix = prefix;
+			this.positions = fromSlots;
+			this.listener = listener;
+			this.pollMillis = pollMillis;
+		}
+
+		// Positions to start a new watch from after this one is closed
+		public long[] getPositions() {
+			return positions;
+		}
+
+		public void run() {
+			int failures = 0;
+			while(!this.closed) {
+				Endpoint endpoint = pickEndpoint();
+				try {
+					DatastoreInterface server = endpoint.connect();
+					ChangeBatch subscription = server.watch(this.prefix, this.positions);
+					this.positions = subscription.getPositions();
+					this.endpoint = endpoint;
+					ChangeBatch batch = subscription;
+					while(!this.closed) {
+						batch = server.pollChanges(subscription.getSubscriptionID(), watchBatchSize, this.pollMillis);
+						failures = 0;
+						if(!deliver(batch)) {
+							break;
+						}
+						this.positions = batch.getPositions();
+						if(batch.isCompacted()) {
+							this.closed = true;
+						}
+					}
+					this.endpoint = null;
+					// The server drops a subscription that is not polled anyway, cancelling just frees it sooner
+					if(!batch.isCompacted()) {
+						server.cancelWatch(subscription.getSubscriptionID());
+					}
+				}
+				catch(Exception e) {
+					this.endpoint = null;
+					if(this.closed) {
+						break;
+					}
+					failures++;
+					if(endpoint.markDown()) {
+						logger.info("Watch on "+endpoint+" failed, moving to another server: "+e);
+					}
+					try {
+						Thread.sleep(retryDelayMillis * Math.min(failures, maxAttempts));
+					}
+					catch(InterruptedException interrupted) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+		}
+
+		// Hands the batch to the listener until it returns, false if the watch was closed or interrupted first. A
+		// listener that throws says nothing about the server, the watch keeps its subscription and retries the batch.
+		private boolean deliver(ChangeBatch batch) {
+			for(int attempts = 1; !this.closed; attempts++) {
+				try {
+					this.listener.onChanges(batch);
+					return true;
+				}
+				catch(RuntimeException e) {
+					logger.log(Level.WARNING, "Watch listener failed, handing it the batch again", e);
+				}
+				try {
+					Thread.sleep(retryDelayMillis * Math.min(attempts, maxAttempts));
+				}
+				catch(InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					this.closed = true;
+				}
+			}
+			return false;
+		}
+
+		public void close() {
+			this.closed = true;
+		}
+	}
+
+	private class Endpoint {
+
+		private String host;
+
+		private int port;
+
+		// Connected lazily and dropped when a request fails so the next one connects again
+		private volatile DatastoreInterface server;
+
+		private volatile long downUntil;
+
+		private Endpoint(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		private CompletableFuture<Response> send(byte opcode, NioDatastoreClient.Encoder encoder, RmiCall rmiCall) {
+			CompletableFuture<Response> response;
+			try {
+				DatastoreInterface server = connect();
+				if(nio) {
+					response = ((NioDatastoreClient) server).invokeAsync(opcode, encoder, BinaryCodec::readResponse);
+				}
+				else {
+					CompletableFuture<Response> call = new CompletableFuture<Response>();
+					rmiExecutor.execute(() -> {
+						try {
+							call.complete(rmiCall.call(server));
+						}
+						catch(RemoteException | RuntimeException e) {
+							call.completeExceptionally(e);
+						}
+					});
+					response = call;
+				}
+			}
+			catch(Exception e) {
+				response = new CompletableFuture<Response>();
+				response.completeExceptionally(e instanceof RemoteException ? e : new RemoteException("Could not reach "+this, e));
+				return response;
+			}
+			CompletableFuture<Response> timed = response;
+			ScheduledFuture<?> timeout = timer.schedule(() -> timed.completeExceptionally(new RemoteException("No response from "+this+" within "+requestTimeoutMillis+" ms")),
+					requestTimeoutMillis, TimeUnit.MILLISECONDS);
+			timed.whenComplete((result, failure) -> timeout.cancel(false));
+			return timed;
+		}
+
+		private DatastoreInterface connect() throws Exception {
+			DatastoreInterface server = this.server;
+			if(server == null) {
+				if(nio) {
+					server = new NioDatastoreClient(new InetSocketAddress(this.host, this.port), bufferPool, requestTimeoutMillis, logger);
+				}
+				else {
+					server = (DatastoreInterface) Naming.lookup("//"+this.host+":"+this.port+"/Server");
+				}
+				this.server = server;
+			}
+			return server;
+		}
+
+		// Returns false if the server was already marked down
+		private boolean markDown() {
+			long now = System.currentTimeMillis();
+			boolean wasUp = this.downUntil <= now;
+			this.downUntil = now + downMillis;
+			// A new NIO client would connect anew, the old one reconnects by itself
+			if(!nio) {
+				this.server = null;
+			}
+			return wasUp;
+		}
+
+		@Override
+		public String toString() {
+			return this.host+":"+this.port;
+		}
+	}
+}
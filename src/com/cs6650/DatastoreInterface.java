@@ -6,17 +6,33 @@ import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
 
 // RMI Interface
 public interface DatastoreInterface extends Remote{
 	public Response put(String key, String value) throws RemoteException;
+	public Response put(String key, String value, long ttlMillis) throws RemoteException;
 	public Response get(String key) throws RemoteException;
 	public Response delete(String key) throws RemoteException;
+	public Response multiGet(List<String> keys) throws RemoteException;
+	public Response multiPut(Map<String, String> entries) throws RemoteException;
+	public Response multiDelete(List<String> keys) throws RemoteException;
+	public Response scan(String startKey, String endKey, int limit, String cursor) throws RemoteException;
+	public ChangeBatch watch(String prefix, long[] fromSlots) throws RemoteException;
+	public ChangeBatch pollChanges(long subscriptionID, int maxChanges, long waitMillis) throws RemoteException;
+	public void cancelWatch(long subscriptionID) throws RemoteException;
 	public HashMap<String, String> getStorage() throws RemoteException;
+	public StateChunk getStateChunk(int shard, long transferID, String cursor, int maxEntries) throws RemoteException;
+	public List<Accepted> getDecisions(int shard, long fromSlot, int maxSlots) throws RemoteException;
 	public String getServerID() throws RemoteException;
-	public Promise prepare(long proposalNumber) throws RemoteException;
-	public Accepted accept(long proposalNumber, Transaction value) throws RemoteException;
-	public void invokeLearner(Accepted accepted) throws RemoteException;
+	public String getLeaderID(int shard) throws RemoteException;
+	public void propose(Transaction transaction) throws RemoteException, TimeoutException;
+	public Promise prepare(int shard, String proposerID, long proposalNumber) throws RemoteException;
+	public Accepted accept(int shard, String proposerID, long proposalNumber, long slot, Transaction value) throws RemoteException;
+	public void invokeLearner(int shard, Accepted accepted) throws RemoteException;
+	public void grantLease(int shard, String proposerID, long proposalNumber, long leaseMillis, long commitSlot) throws RemoteException;
+	public long getReadIndex(int shard) throws RemoteException;
 	public void registerNewServer(String currentServerID, DatastoreInterface server) throws RemoteException, AlreadyBoundException;
 }
 
@@ -0,0 +1,51 @@
+package com.cs6650;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Encodes one frame into a pooled buffer, the frame length is filled in by finish().
+// Frame layout: [int length][long request id][byte opcode or status][payload], the length excludes itself.
+public class FrameOutputStream extends OutputStream {
+
+	private BufferPool pool;
+
+	private ByteBuffer buffer;
+
+	public FrameOutputStream(BufferPool pool, long requestID, byte code) {
+		this.pool = pool;
+		this.buffer = pool.acquire(0);
+		this.buffer.putInt(0);
+		this.buffer.putLong(requestID);
+		this.buffer.put(code);
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(1);
+		this.buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		this.buffer.put(bytes, offset, length);
+	}
+
+	// Returns the frame ready to be written to a channel, release it to the pool once it's written
+	public ByteBuffer finish() {
+		this.buffer.putInt(0, this.buffer.position() - 4);
+		this.buffer.flip();
+		return this.buffer;
+	}
+
+	private void ensureCapacity(int length) {
+		if(this.buffer.remaining() >= length) {
+			return;
+		}
+		ByteBuffer larger = this.pool.acquire(Math.max(this.buffer.capacity() * 2, this.buffer.position() + length));
+		this.buffer.flip();
+		larger.put(this.buffer);
+		this.pool.release(this.buffer);
+		this.buffer = larger;
+	}
+}
@@ -0,0 +1,83 @@
+package com.cs6650;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free histogram of latencies in microseconds. Values below 128 are counted exactly, larger values
+// in 64 buckets per power of two, so a reported percentile is at most about 1.6% below the real value.
+public class LatencyHistogram {
+
+	private static final int EXACT = 128;
+
+	private static final int SUB_BUCKET_BITS = 6;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Enough powers of two for any long
+	private static final int BUCKETS = EXACT + (64 - 7) * SUB_BUCKETS;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private AtomicLong count = new AtomicLong();
+
+	private AtomicLong sum = new AtomicLong();
+
+	private AtomicLong max = new AtomicLong();
+
+	public void record(long micros) {
+		micros = Math.max(micros, 0);
+		this.counts.incrementAndGet(index(micros));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(micros);
+		this.max.accumulateAndGet(micros, Math::max);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = this.count.get();
+		return count == 0 ? 0 : (double) this.sum.get() / count;
+	}
+
+	// Smallest recorded value that at least the given percentage of values are lower than or equal to
+	public long getPercentile(double percentile) {
+		long total = this.count.get();
+		if(total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += this.counts.get(i);
+			if(seen >= rank) {
+				return Math.min(valueOf(i), this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	private static int index(long value) {
+		if(value < EXACT) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return EXACT + (exponent - 7) * SUB_BUCKETS + subBucket;
+	}
+
+	// Lowest value counted in the bucket
+	private static long valueOf(int index) {
+		if(index < EXACT) {
+			return index;
+		}
+		int exponent = 7 + (index - EXACT) / SUB_BUCKETS;
+		int subBucket = (index - EXACT) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+}
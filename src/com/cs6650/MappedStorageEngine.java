@@ -0,0 +1,1101 @@
+package com.cs6650;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Storage that keeps its entries off the heap in memory-mapped segment files, so a shard can hold more than the heap
+// and the page cache of the operating system holds the working set. Every write appends a record
+// [int key length + 1][int value length, -1 for a removal][key UTF-8][value UTF-8] to the newest segment, records never
+// change once written. An on-heap open-addressing table of record addresses indexes the live records and key order is
+// kept like in CompactStorageEngine, neither holds an object per entry. A background cleaner copies the live records of
+// the oldest segment to the newest one once overwritten and removed records outweigh the live ones.
+// A persistent engine lives in a storage-* folder of its shard. A checkpoint forces the segments to disk and records
+// which segments and bytes hold the state of an applied slot. A restart maps them again and rebuilds the index from
+// the records instead of loading a snapshot. Segments the cleaner emptied are deleted after the next checkpoint.
+public class MappedStorageEngine implements StorageEngine {
+
+	private static final int RECORD_HEADER = 8;
+
+	// The table is doubled once it is more than three quarters full
+	private static final int MIN_CAPACITY = 1024;
+
+	private static final int CHECKPOINT_MAGIC = 0x4B564D31;
+
+	// Bytes of the oldest segment the cleaner goes through per hold of the write lock
+	private static final int CLEAN_STEP = 1 << 20;
+
+	private static final long CLEAN_INTERVAL_MILLIS = 100;
+
+	// Segments cleaned before the key order follows the moved records, the merge walks the whole order
+	private static final int CLEAN_BATCH = 16;
+
+	// One thread cleans the segments of every engine of the server
+	private static final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "storage-cleaner");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Folder of the segments and the checkpoint, null for an engine that is not persisted. Segments of such an engine
+	// are deleted as soon as they are mapped, their space goes back to the disk once they are unmapped.
+	private File directory;
+
+	// Size of a new segment, a larger record gets a segment of its own
+	private long segmentBytes;
+
+	private volatile boolean destroyed;
+
+	private final StampedLock lock = new StampedLock();
+
+	// Mapped segments by sequence number, an address is the sequence number in the upper and the offset in the lower 32 bits
+	private MappedByteBuffer[] segments = new MappedByteBuffer[16];
+
+	// Bytes written to every segment
+	private int[] ends = new int[16];
+
+	// Segment appended to, -1 before the first one
+	private int head = -1;
+
+	// Oldest segment the cleaner has not emptied yet
+	private int tail;
+
+	// Segments emptied by the cleaner whose addresses may still be in the key order
+	private List<Integer> cleaned = new ArrayList<Integer>();
+
+	// Segments emptied by the cleaner whose files the last checkpoint still needs
+	private List<Integer> retired = new ArrayList<Integer>();
+
+	// Segments from this one on were appended to since the last checkpoint
+	private int unforced;
+
+	private long checkpointSlot;
+
+	// Record address + 1 of every slot, 0 for an empty slot
+	private long[] slots = new long[MIN_CAPACITY];
+
+	private int[] hashes = new int[MIN_CAPACITY];
+
+	private int size;
+
+	private long liveBytes;
+
+	// Bytes of overwritten and removed records and of removal records
+	private long garbageBytes;
+
+	// Addresses of records in key order, removed keys stay in it until their segment is cleaned and are skipped by scans
+	private KeyOrder order = new KeyOrder(this.segments, new long[0]);
+
+	// Addresses of the keys inserted since the order was last merged, in insertion order
+	private long[] added = new long[16];
+
+	private int addedCount;
+
+	// Changes when the engine is cleared, a merge started before that is thrown away
+	private long generation;
+
+	// One merge or cleaning at a time, a cleaning moves records the merge would have to follow. Fair so scans merging
+	// back to back don't keep the cleaner out.
+	private final ReentrantLock mergeLock = new ReentrantLock(true);
+
+	// Creates an empty engine in a new storage-* folder under parent, or one that is not persisted if parent is null
+	public MappedStorageEngine(File parent, long segmentBytes) {
+		this.segmentBytes = segmentBytes;
+		if(parent != null) {
+			try {
+				parent.mkdirs();
+				this.directory = Files.createTempDirectory(parent.toPath(), "storage-").toFile();
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		scheduleCleaning(this);
+	}
+
+	private MappedStorageEngine(File directory, long segmentBytes, boolean clean) {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		if(clean) {
+			scheduleCleaning(this);
+		}
+	}
+
+	// Opens the engine with the newest intact checkpoint among the storage-* folders under parent and puts the
+	// expirations of its checkpoint into expirations. The other folders are deleted. Returns null if there is none.
+	public static MappedStorageEngine recover(File parent, long segmentBytes, Map<String, Long> expirations, Logger logger) {
+		File[] folders = parent.listFiles(file -> file.isDirectory() && file.getName().startsWith("storage-"));
+		if(folders == null) {
+			return null;
+		}
+		File newest = null;
+		Checkpoint newestCheckpoint = null;
+		for(File folder : folders) {
+			Checkpoint checkpoint = readCheckpoint(folder, logger);
+			if(checkpoint != null && (newestCheckpoint == null || checkpoint.slot > newestCheckpoint.slot)) {
+				newest = folder;
+				newestCheckpoint = checkpoint;
+			}
+		}
+		for(File folder : folders) {
+			if(folder != newest) {
+				deleteFolder(folder);
+			}
+		}
+		if(newest == null) {
+			return null;
+		}
+
+		MappedStorageEngine engine = new MappedStorageEngine(newest, segmentBytes, false);
+		try {
+			engine.open(newestCheckpoint);
+		}
+		catch(IOException | RuntimeException e) {
+			logger.log(Level.WARNING, "Could not open mapped storage in "+newest, e);
+			deleteFolder(newest);
+			return null;
+		}
+		expirations.putAll(newestCheckpoint.expirations);
+		scheduleCleaning(engine);
+		logger.info("Opened mapped storage of "+engine.size+" entries at slot "+engine.checkpointSlot+" in "+newest);
+		return engine;
+	}
+
+	public boolean isPersistent() {
+		return directory != null;
+	}
+
+	public long getCheckpointSlot() {
+		return checkpointSlot;
+	}
+
+	// Bytes held by live records and by garbage not cleaned yet, for reporting
+	public long getLiveBytes() {
+		return liveBytes;
+	}
+
+	public long getGarbageBytes() {
+		return garbageBytes;
+	}
+
+	public String get(String key) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(keyBytes);
+		long stamp = this.lock.tryOptimisticRead();
+		if(stamp != 0) {
+			try {
+				String value = lookup(keyBytes, hash);
+				if(this.lock.validate(stamp)) {
+					return value;
+				}
+			}
+			catch(RuntimeException e) {
+				// Arrays read while a write replaced them, the read is done again under the lock
+			}
+		}
+		stamp = this.lock.readLock();
+		try {
+			return lookup(keyBytes, hash);
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	public void put(String key, String value) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(keyBytes);
+		long stamp = this.lock.writeLock();
+		try {
+			long address = append(keyBytes, valueBytes);
+			index(keyBytes, hash, address);
+		}
+		finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	public void remove(String key) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(keyBytes);
+		long stamp = this.lock.writeLock();
+		try {
+			if(find(keyBytes, hash) < 0) {
+				return;
+			}
+			// The removal is only recorded where a restart would find the removed record again
+			long address = this.directory != null ? append(keyBytes, null) : -1;
+			unindex(keyBytes, hash, address);
+		}
+		finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	public int size() {
+		long stamp = this.lock.readLock();
+		try {
+			return this.size;
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	// Drops every entry, a persisted engine deletes its checkpoint and segments
+	public void clear() {
+		long stamp = this.lock.writeLock();
+		try {
+			if(this.directory != null) {
+				new File(this.directory, "checkpoint.bin").delete();
+				for(int seq = 0; seq <= this.head; seq++) {
+					segmentFile(seq).delete();
+				}
+			}
+			this.segments = new MappedByteBuffer[16];
+			this.ends = new int[16];
+			this.head = -1;
+			this.tail = 0;
+			this.cleaned.clear();
+			this.retired.clear();
+			this.unforced = 0;
+			this.slots = new long[MIN_CAPACITY];
+			this.hashes = new int[MIN_CAPACITY];
+			this.size = 0;
+			this.liveBytes = 0;
+			this.garbageBytes = 0;
+			this.order = new KeyOrder(this.segments, new long[0]);
+			this.added = new long[16];
+			this.addedCount = 0;
+			this.generation++;
+		}
+		finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	// Merges the keys inserted since the last scan into the key order first, O(n + k log k) for k new keys
+	// without holding up writers. The iterator then walks the order without a lock and reads every value live.
+	public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey) {
+		KeyOrder order = mergeAdded();
+		int from = startKey != null ? lowerBound(order, startKey.getBytes(StandardCharsets.UTF_8)) : 0;
+		byte[] end = endKey != null ? endKey.getBytes(StandardCharsets.UTF_8) : null;
+		return new ScanIterator(order, from, end);
+	}
+
+	// Makes the current state durable as the state of the given slot: forces the segments written since the last
+	// checkpoint and replaces the checkpoint file, then deletes the segments the cleaner emptied before it.
+	// Writes made while it runs may or may not be in it, replaying the log after the slot covers them.
+	public void checkpoint(long slot, Map<String, Long> expirations) throws IOException {
+		if(this.directory == null) {
+			throw new IllegalStateException("Storage is not persisted");
+		}
+		int[] seqs;
+		int[] ends;
+		List<MappedByteBuffer> unforced = new ArrayList<MappedByteBuffer>();
+		List<Integer> deletable;
+		long stamp = this.lock.writeLock();
+		try {
+			int count = Math.max(0, this.head - this.tail + 1);
+			seqs = new int[count];
+			ends = new int[count];
+			for(int i = 0; i < count; i++) {
+				seqs[i] = this.tail + i;
+				ends[i] = this.ends[this.tail + i];
+				if(seqs[i] >= this.unforced) {
+					unforced.add(this.segments[seqs[i]]);
+				}
+			}
+			// The segment appended to is forced again next time
+			this.unforced = Math.max(this.head, 0);
+			deletable = new ArrayList<Integer>(this.retired);
+			this.retired.clear();
+		}
+		finally {
+			this.lock.unlockWrite(stamp);
+		}
+
+		for(MappedByteBuffer segment : unforced) {
+			segment.force();
+		}
+		File temporary = new File(this.directory, "checkpoint.tmp");
+		CRC32 crc = new CRC32();
+		FileOutputStream file = new FileOutputStream(temporary);
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16))) {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeLong(slot);
+			out.writeInt(seqs.length);
+			for(int i = 0; i < seqs.length; i++) {
+				out.writeInt(seqs[i]);
+				out.writeInt(ends[i]);
+			}
+			Map<String, Long> copied = new HashMap<String, Long>(expirations);
+			out.writeInt(copied.size());
+			for(Map.Entry<String, Long> expiration : copied.entrySet()) {
+				byte[] key = expiration.getKey().getBytes(StandardCharsets.UTF_8);
+				out.writeInt(key.length);
+				out.write(key);
+				out.writeLong(expiration.getValue());
+			}
+			out.flush();
+			// The checksum goes straight to the file so it does not cover itself
+			new DataOutputStream(file).writeLong(crc.getValue());
+			file.getFD().sync();
+		}
+		Files.move(temporary.toPath(), new File(this.directory, "checkpoint.bin").toPath(), StandardCopyOption.ATOMIC_MOVE);
+		this.checkpointSlot = slot;
+		for(int seq : deletable) {
+			segmentFile(seq).delete();
+		}
+	}
+
+	// Deletes the files of a persisted engine and stops its cleaning, readers still holding it keep their mappings
+	public void destroy() {
+		this.destroyed = true;
+		if(this.directory != null) {
+			deleteFolder(this.directory);
+		}
+	}
+
+	// Cleans segments while garbage outweighs the live records, up to CLEAN_BATCH of them, then moves the key order
+	// to the copies. Returns true if there may be more to clean.
+	private boolean clean() {
+		this.mergeLock.lock();
+		try {
+			int count = 0;
+			while(count < CLEAN_BATCH && !this.destroyed && cleanOldest()) {
+				count++;
+			}
+			if(count > 0) {
+				mergeAdded();
+			}
+			return count == CLEAN_BATCH;
+		}
+		finally {
+			this.mergeLock.unlock();
+		}
+	}
+
+	// Copies the live records of the oldest segment to the newest one if garbage outweighs the live records. The
+	// segment is oldest so a removal record in it has nothing left to remove. Returns false if there was nothing to clean.
+	private boolean cleanOldest() {
+		int seq;
+		int end;
+		long generation;
+		long stamp = this.lock.readLock();
+		try {
+			if(this.tail >= this.head || this.garbageBytes < this.liveBytes || this.garbageBytes < 2 * this.segmentBytes) {
+				return false;
+			}
+			seq = this.tail;
+			end = this.ends[seq];
+			generation = this.generation;
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+
+		int offset = 0;
+		long copied = 0;
+		while(offset < end) {
+			stamp = this.lock.writeLock();
+			try {
+				// A clear dropped the segment
+				if(this.generation != generation) {
+					return false;
+				}
+				MappedByteBuffer segment = this.segments[seq];
+				int stop = Math.min(end, offset + CLEAN_STEP);
+				while(offset < end && offset < stop) {
+					int keyLength = segment.getInt(offset) - 1;
+					int valueLength = segment.getInt(offset + 4);
+					int length = RECORD_HEADER + keyLength + Math.max(valueLength, 0);
+					if(valueLength >= 0) {
+						byte[] keyBytes = bytes(segment, offset + RECORD_HEADER, keyLength);
+						int slot = find(keyBytes, hash(keyBytes));
+						long address = ((long) seq << 32) | offset;
+						if(slot >= 0 && this.slots[slot] - 1 == address) {
+							this.slots[slot] = appendCopy(segment, offset, length) + 1;
+							copied += length;
+						}
+					}
+					offset += length;
+				}
+			}
+			finally {
+				this.lock.unlockWrite(stamp);
+			}
+		}
+
+		stamp = this.lock.writeLock();
+		try {
+			if(this.generation != generation) {
+				return false;
+			}
+			this.garbageBytes -= end - copied;
+			this.tail = seq + 1;
+			this.cleaned.add(seq);
+			if(this.directory != null) {
+				this.retired.add(seq);
+			}
+		}
+		finally {
+			this.lock.unlockWrite(stamp);
+		}
+		return true;
+	}
+
+	private void open(Checkpoint checkpoint) throws IOException {
+		this.checkpointSlot = checkpoint.slot;
+		// Segments started after the checkpoint are not part of its state
+		File[] files = this.directory.listFiles();
+		if(files != null) {
+			List<String> names = new ArrayList<String>();
+			for(int seq : checkpoint.segments) {
+				names.add(segmentFile(seq).getName());
+			}
+			for(File file : files) {
+				if(!names.contains(file.getName()) && !file.getName().equals("checkpoint.bin")) {
+					file.delete();
+				}
+			}
+		}
+		if(checkpoint.segments.length == 0) {
+			return;
+		}
+
+		this.tail = checkpoint.segments[0];
+		for(int i = 0; i < checkpoint.segments.length; i++) {
+			int seq = checkpoint.segments[i];
+			File file = segmentFile(seq);
+			if(file.length() < checkpoint.ends[i]) {
+				throw new IOException("Segment "+file+" is shorter than its checkpoint");
+			}
+			ensureSegments(seq);
+			this.segments[seq] = map(file, (int) file.length(), false);
+			this.ends[seq] = checkpoint.ends[i];
+			this.head = seq;
+		}
+		this.unforced = this.head;
+
+		// Records are replayed in the order they were written, later ones overwrite earlier ones
+		for(int seq = this.tail; seq <= this.head; seq++) {
+			MappedByteBuffer segment = this.segments[seq];
+			int offset = 0;
+			while(offset < this.ends[seq]) {
+				int keyLength = segment.getInt(offset) - 1;
+				int valueLength = segment.getInt(offset + 4);
+				byte[] keyBytes = bytes(segment, offset + RECORD_HEADER, keyLength);
+				long address = ((long) seq << 32) | offset;
+				if(valueLength >= 0) {
+					index(keyBytes, hash(keyBytes), address);
+				}
+				else {
+					unindex(keyBytes, hash(keyBytes), address);
+				}
+				offset += RECORD_HEADER + keyLength + Math.max(valueLength, 0);
+			}
+		}
+		this.order = new KeyOrder(this.segments, new long[0]);
+	}
+
+	// Points the key at the record just appended and accounts for the record it replaces
+	private void index(byte[] keyBytes, int hash, long address) {
+		int slot = find(keyBytes, hash);
+		if(slot >= 0) {
+			long previous = this.slots[slot] - 1;
+			this.garbageBytes += recordLength(previous);
+			this.liveBytes -= recordLength(previous);
+			this.slots[slot] = address + 1;
+		}
+		else {
+			if(this.size + 1 > this.slots.length / 4 * 3) {
+				resize(this.slots.length * 2);
+			}
+			insert(address, hash);
+			this.size++;
+			if(this.addedCount == this.added.length) {
+				this.added = Arrays.copyOf(this.added, this.added.length * 2);
+			}
+			this.added[this.addedCount++] = address;
+		}
+		this.liveBytes += recordLength(address);
+	}
+
+	// Removes the key, the removal record at address is garbage from the start. An address of -1 means no record.
+	private void unindex(byte[] keyBytes, int hash, long address) {
+		if(address >= 0) {
+			this.garbageBytes += recordLength(address);
+		}
+		int slot = find(keyBytes, hash);
+		if(slot < 0) {
+			return;
+		}
+		long previous = this.slots[slot] - 1;
+		this.garbageBytes += recordLength(previous);
+		this.liveBytes -= recordLength(previous);
+		deleteSlot(slot);
+		this.size--;
+	}
+
+	private String lookup(byte[] keyBytes, int hash) {
+		int slot = find(keyBytes, hash);
+		if(slot < 0) {
+			return null;
+		}
+		long address = this.slots[slot] - 1;
+		MappedByteBuffer segment = this.segments[(int) (address >>> 32)];
+		int offset = (int) address;
+		int valueLength = segment.getInt(offset + 4);
+		int valueOffset = offset + RECORD_HEADER + segment.getInt(offset) - 1;
+		// A torn optimistic read could see any length, it must not allocate by it
+		if(valueLength < 0 || valueOffset < 0 || valueOffset + valueLength > segment.capacity()) {
+			throw new IllegalStateException("Inconsistent record");
+		}
+		return new String(bytes(segment, valueOffset, valueLength), StandardCharsets.UTF_8);
+	}
+
+	// Address of the live record of the key or -1, read like get
+	private long locate(byte[] keyBytes) {
+		int hash = hash(keyBytes);
+		long stamp = this.lock.readLock();
+		try {
+			int slot = find(keyBytes, hash);
+			return slot >= 0 ? this.slots[slot] - 1 : -1;
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	// Slot holding the key, or -1
+	private int find(byte[] keyBytes, int hash) {
+		long[] slots = this.slots;
+		int[] hashes = this.hashes;
+		int mask = slots.length - 1;
+		for(int slot = hash & mask, probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+			long entry = slots[slot];
+			if(entry == 0) {
+				return -1;
+			}
+			if(hashes[slot] == hash && keyEquals(entry - 1, keyBytes)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(long address, int hash) {
+		int mask = this.slots.length - 1;
+		int slot = hash & mask;
+		while(this.slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		this.slots[slot] = address + 1;
+		this.hashes[slot] = hash;
+	}
+
+	// Moves later entries of the probe sequence back into the freed slot so lookups never stop early
+	private void deleteSlot(int slot) {
+		int mask = this.slots.length - 1;
+		int free = slot;
+		int next = (free + 1) & mask;
+		while(this.slots[next] != 0) {
+			int home = this.hashes[next] & mask;
+			// The entry at next may move to free if its home slot is not between free and next
+			if(((next - home) & mask) >= ((next - free) & mask)) {
+				this.slots[free] = this.slots[next];
+				this.hashes[free] = this.hashes[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.slots[free] = 0;
+		this.hashes[free] = 0;
+	}
+
+	private void resize(int capacity) {
+		long[] oldSlots = this.slots;
+		int[] oldHashes = this.hashes;
+		this.slots = new long[capacity];
+		this.hashes = new int[capacity];
+		for(int i = 0; i < oldSlots.length; i++) {
+			if(oldSlots[i] != 0) {
+				insert(oldSlots[i] - 1, oldHashes[i]);
+			}
+		}
+	}
+
+	// Appends a record, a null value records a removal
+	private long append(byte[] keyBytes, byte[] valueBytes) {
+		int length = RECORD_HEADER + keyBytes.length + (valueBytes != null ? valueBytes.length : 0);
+		ByteBuffer target = reserve(length);
+		long address = ((long) this.head << 32) | target.position();
+		target.putInt(keyBytes.length + 1);
+		target.putInt(valueBytes != null ? valueBytes.length : -1);
+		target.put(keyBytes);
+		if(valueBytes != null) {
+			target.put(valueBytes);
+		}
+		this.ends[this.head] += length;
+		return address;
+	}
+
+	private long appendCopy(MappedByteBuffer segment, int offset, int length) {
+		ByteBuffer target = reserve(length);
+		long address = ((long) this.head << 32) | target.position();
+		ByteBuffer record = segment.duplicate();
+		record.position(offset);
+		record.limit(offset + length);
+		target.put(record);
+		this.ends[this.head] += length;
+		return address;
+	}
+
+	// Returns a buffer positioned at the end of the segment appended to, starting a new segment if length doesn't fit
+	private ByteBuffer reserve(int length) {
+		if(this.head < 0 || this.ends[this.head] + length > this.segments[this.head].capacity()) {
+			int seq = this.head + 1;
+			int size = (int) Math.max(this.segmentBytes, length);
+			try {
+				ensureSegments(seq);
+				if(this.directory != null) {
+					this.directory.mkdirs();
+					this.segments[seq] = map(segmentFile(seq), size, true);
+				}
+				else {
+					File file = File.createTempFile("segment-", ".dat");
+					this.segments[seq] = map(file, size, true);
+					if(!file.delete()) {
+						file.deleteOnExit();
+					}
+				}
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			this.ends[seq] = 0;
+			this.head = seq;
+		}
+		ByteBuffer target = this.segments[this.head].duplicate();
+		target.position(this.ends[this.head]);
+		return target;
+	}
+
+	private void ensureSegments(int seq) {
+		if(seq >= this.segments.length) {
+			int capacity = Math.max(this.segments.length * 2, seq + 1);
+			this.segments = Arrays.copyOf(this.segments, capacity);
+			this.ends = Arrays.copyOf(this.ends, capacity);
+		}
+	}
+
+	private int recordLength(long address) {
+		MappedByteBuffer segment = this.segments[(int) (address >>> 32)];
+		int offset = (int) address;
+		return RECORD_HEADER + segment.getInt(offset) - 1 + Math.max(segment.getInt(offset + 4), 0);
+	}
+
+	private boolean keyEquals(long address, byte[] keyBytes) {
+		MappedByteBuffer segment = this.segments[(int) (address >>> 32)];
+		int offset = (int) address;
+		if(segment.getInt(offset) - 1 != keyBytes.length) {
+			return false;
+		}
+		int start = offset + RECORD_HEADER;
+		for(int i = 0; i < keyBytes.length; i++) {
+			if(segment.get(start + i) != keyBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Moves the addresses of cleaned segments to the copies of their records, then sorts the keys inserted so far and
+	// merges them into the key order, dropping repeats of a key that was removed and inserted again. Only the copies
+	// and the install take the lock.
+	private KeyOrder mergeAdded() {
+		this.mergeLock.lock();
+		try {
+			while(true) {
+				MappedByteBuffer[] segments;
+				long[] sorted;
+				long[] added;
+				int merging;
+				List<Integer> cleaned;
+				long generation;
+				long stamp = this.lock.readLock();
+				try {
+					if(this.addedCount == 0 && this.cleaned.isEmpty()) {
+						return this.order;
+					}
+					segments = this.segments;
+					sorted = this.order.addresses;
+					added = Arrays.copyOf(this.added, this.addedCount);
+					merging = this.addedCount;
+					cleaned = new ArrayList<Integer>(this.cleaned);
+					generation = this.generation;
+				}
+				finally {
+					this.lock.unlockRead(stamp);
+				}
+
+				if(!cleaned.isEmpty()) {
+					sorted = relocate(segments, sorted, cleaned);
+					added = relocate(segments, added, cleaned);
+					stamp = this.lock.readLock();
+					try {
+						segments = this.segments;
+					}
+					finally {
+						this.lock.unlockRead(stamp);
+					}
+				}
+				sort(segments, added);
+				long[] merged = new long[sorted.length + added.length];
+				int count = 0;
+				int i = 0;
+				int j = 0;
+				while(i < sorted.length || j < added.length) {
+					long next;
+					if(j == added.length || (i < sorted.length && compareKeys(segments, sorted[i], added[j]) <= 0)) {
+						next = sorted[i++];
+					}
+					else {
+						next = added[j++];
+					}
+					if(count == 0 || compareKeys(segments, merged[count - 1], next) != 0) {
+						merged[count++] = next;
+					}
+				}
+
+				stamp = this.lock.writeLock();
+				try {
+					if(this.generation == generation) {
+						// Nothing points into the cleaned segments anymore, dropping them lets them be unmapped
+						if(!cleaned.isEmpty()) {
+							this.segments = this.segments.clone();
+							for(int seq : cleaned) {
+								this.segments[seq] = null;
+							}
+							this.cleaned.removeAll(cleaned);
+						}
+						this.order = new KeyOrder(this.segments, Arrays.copyOf(merged, count));
+						// Keys inserted during the merge wait for the next one
+						this.addedCount -= merging;
+						System.arraycopy(this.added, merging, this.added, 0, this.addedCount);
+						return this.order;
+					}
+				}
+				finally {
+					this.lock.unlockWrite(stamp);
+				}
+			}
+		}
+		finally {
+			this.mergeLock.unlock();
+		}
+	}
+
+	// Replaces the addresses into cleaned segments by the live records of their keys, dropping removed keys
+	private long[] relocate(MappedByteBuffer[] segments, long[] addresses, List<Integer> cleaned) {
+		long[] relocated = new long[addresses.length];
+		int count = 0;
+		for(long address : addresses) {
+			int seq = (int) (address >>> 32);
+			if(cleaned.contains(seq)) {
+				MappedByteBuffer segment = segments[seq];
+				int offset = (int) address;
+				address = locate(bytes(segment, offset + RECORD_HEADER, segment.getInt(offset) - 1));
+				if(address < 0) {
+					continue;
+				}
+			}
+			relocated[count++] = address;
+		}
+		return Arrays.copyOf(relocated, count);
+	}
+
+	private File segmentFile(int seq) {
+		return new File(this.directory, "segment-"+seq+".dat");
+	}
+
+	private static MappedByteBuffer map(File file, int size, boolean create) throws IOException {
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if(create) {
+				raf.setLength(size);
+			}
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	// Returns null if the folder has no intact checkpoint
+	private static Checkpoint readCheckpoint(File folder, Logger logger) {
+		File file = new File(folder, "checkpoint.bin");
+		if(!file.exists() || file.length() < 8) {
+			return null;
+		}
+		try {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length - 8);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			in.skipBytes(bytes.length - 8);
+			if(in.readLong() != crc.getValue()) {
+				throw new IOException("Checkpoint checksum mismatch");
+			}
+			in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+			if(in.readInt() != CHECKPOINT_MAGIC) {
+				throw new IOException("Not a checkpoint file");
+			}
+			Checkpoint checkpoint = new Checkpoint();
+			checkpoint.slot = in.readLong();
+			int count = in.readInt();
+			checkpoint.segments = new int[count];
+			checkpoint.ends = new int[count];
+			for(int i = 0; i < count; i++) {
+				checkpoint.segments[i] = in.readInt();
+				checkpoint.ends[i] = in.readInt();
+			}
+			int expirations = in.readInt();
+			for(int i = 0; i < expirations; i++) {
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				checkpoint.expirations.put(new String(key, StandardCharsets.UTF_8), in.readLong());
+			}
+			return checkpoint;
+		}
+		catch(IOException | RuntimeException e) {
+			logger.log(Level.WARNING, "Skipping unreadable checkpoint "+file, e);
+			return null;
+		}
+	}
+
+	private static void deleteFolder(File folder) {
+		File[] files = folder.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	// Runs the cleaner for the engine until it is destroyed or no longer reachable
+	private static void scheduleCleaning(MappedStorageEngine engine) {
+		WeakReference<MappedStorageEngine> reference = new WeakReference<MappedStorageEngine>(engine);
+		AtomicReference<ScheduledFuture<?>> task = new AtomicReference<ScheduledFuture<?>>();
+		task.set(cleaner.scheduleWithFixedDelay(() -> {
+			MappedStorageEngine cleaned = reference.get();
+			if(cleaned == null || cleaned.destroyed) {
+				task.get().cancel(false);
+				return;
+			}
+			try {
+				// A full batch means more may be waiting, the next one runs right away
+				boolean more;
+				do {
+					more = cleaned.clean();
+				} while(more && !cleaned.destroyed);
+			}
+			catch(RuntimeException e) {
+				Logger.getLogger(MappedStorageEngine.class.getName()).log(Level.WARNING, "Cleaning mapped storage failed", e);
+			}
+		}, CLEAN_INTERVAL_MILLIS, CLEAN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS));
+	}
+
+	// First position in the order whose key is not below key
+	private static int lowerBound(KeyOrder order, byte[] key) {
+		int low = 0;
+		int high = order.addresses.length;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(compareKey(order.segments, order.addresses[middle], key) < 0) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	// Merge sort of record addresses by key
+	private static void sort(MappedByteBuffer[] segments, long[] addresses) {
+		long[] buffer = new long[addresses.length];
+		for(int width = 1; width < addresses.length; width *= 2) {
+			for(int low = 0; low < addresses.length - width; low += 2 * width) {
+				int middle = low + width;
+				int high = Math.min(low + 2 * width, addresses.length);
+				int i = low;
+				int j = middle;
+				int k = low;
+				while(i < middle && j < high) {
+					buffer[k++] = compareKeys(segments, addresses[i], addresses[j]) <= 0 ? addresses[i++] : addresses[j++];
+				}
+				while(i < middle) {
+					buffer[k++] = addresses[i++];
+				}
+				while(j < high) {
+					buffer[k++] = addresses[j++];
+				}
+				System.arraycopy(buffer, low, addresses, low, high - low);
+			}
+		}
+	}
+
+	// Compares keys in the order of String.compareTo, see CompactStorageEngine for the weighing of lead bytes
+	private static int compareKeys(MappedByteBuffer[] segments, long first, long second) {
+		MappedByteBuffer a = segments[(int) (first >>> 32)];
+		MappedByteBuffer b = segments[(int) (second >>> 32)];
+		int aStart = (int) first + RECORD_HEADER;
+		int bStart = (int) second + RECORD_HEADER;
+		int aLength = a.getInt((int) first) - 1;
+		int bLength = b.getInt((int) second) - 1;
+		int common = Math.min(aLength, bLength);
+		for(int i = 0; i < common; i++) {
+			int x = a.get(aStart + i) & 0xff;
+			int y = b.get(bStart + i) & 0xff;
+			if(x != y) {
+				return weight(x) - weight(y);
+			}
+		}
+		return aLength - bLength;
+	}
+
+	private static int compareKey(MappedByteBuffer[] segments, long address, byte[] key) {
+		MappedByteBuffer segment = segments[(int) (address >>> 32)];
+		int start = (int) address + RECORD_HEADER;
+		int length = segment.getInt((int) address) - 1;
+		int common = Math.min(length, key.length);
+		for(int i = 0; i < common; i++) {
+			int x = segment.get(start + i) & 0xff;
+			int y = key[i] & 0xff;
+			if(x != y) {
+				return weight(x) - weight(y);
+			}
+		}
+		return length - key.length;
+	}
+
+	private static int weight(int b) {
+		return b >= 0xF0 ? 2 * 0xED + 1 : 2 * b;
+	}
+
+	private static int hash(byte[] bytes) {
+		int hash = Arrays.hashCode(bytes);
+		// Spreads the bits the table index uses
+		return hash ^ (hash >>> 16);
+	}
+
+	private static byte[] bytes(MappedByteBuffer segment, int offset, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer source = segment.duplicate();
+		source.position(offset);
+		source.get(bytes);
+		return bytes;
+	}
+
+	// Segments and end offsets of a checkpoint with the expirations at its slot
+	private static class Checkpoint {
+
+		private long slot;
+
+		private int[] segments;
+
+		private int[] ends;
+
+		private Map<String, Long> expirations = new HashMap<String, Long>();
+	}
+
+	// Record addresses in key order with the segments they point into, never changed once built
+	private static class KeyOrder {
+
+		private MappedByteBuffer[] segments;
+
+		private long[] addresses;
+
+		private KeyOrder(MappedByteBuffer[] segments, long[] addresses) {
+			this.segments = segments;
+			this.addresses = addresses;
+		}
+	}
+
+	// Walks the key order of the moment the scan started, values are read live so removed keys are skipped
+	private class ScanIterator implements Iterator<Map.Entry<String, String>> {
+
+		private KeyOrder order;
+
+		private int position;
+
+		private byte[] endKey;
+
+		private Map.Entry<String, String> next;
+
+		private ScanIterator(KeyOrder order, int position, byte[] endKey) {
+			this.order = order;
+			this.position = position;
+			this.endKey = endKey;
+		}
+
+		public boolean hasNext() {
+			long[] addresses = this.order.addresses;
+			while(this.next == null && this.position < addresses.length) {
+				long address = addresses[this.position++];
+				if(this.endKey != null && compareKey(this.order.segments, address, this.endKey) >= 0) {
+					this.position = addresses.length;
+					break;
+				}
+				MappedByteBuffer segment = this.order.segments[(int) (address >>> 32)];
+				String key = new String(bytes(segment, (int) address + RECORD_HEADER, segment.getInt((int) address) - 1), StandardCharsets.UTF_8);
+				String value = get(key);
+				if(value != null) {
+					this.next = new AbstractMap.SimpleImmutableEntry<String, String>(key, value);
+				}
+			}
+			return this.next != null;
+		}
+
+		public Map.Entry<String, String> next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, String> entry = this.next;
+			this.next = null;
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.cs6650;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Values read from the datastore kept in the client, least recently used ones are evicted once maxEntries is reached.
+// A watch on the cached keys keeps it coherent: a put of a cached key replaces its value, any other change drops it.
+// The watch's batches, empty ones included, renew a lease. While the lease is out the watch may have missed
+// changes, reads go to the servers and the cache is cleared once the watch is back.
+public class NearCache implements DatastoreClient.WatchListener {
+
+	// Segments are locked separately so readers of different hot keys don't queue on one lock
+	private static final int SEGMENTS = 16;
+
+	private Segment[] segments = new Segment[SEGMENTS];
+
+	// How long the cache is trusted after the last batch of its watch
+	private long leaseMillis;
+
+	private volatile long leaseExpiresNanos;
+
+	// Set when the lease ran out, the next batch clears the cache before renewing it
+	private volatile boolean stale = true;
+
+	private AtomicLong hits = new AtomicLong();
+
+	private AtomicLong misses = new AtomicLong();
+
+	public NearCache(int maxEntries, long leaseMillis) {
+		this.leaseMillis = leaseMillis;
+		for(int i = 0; i < SEGMENTS; i++) {
+			this.segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS));
+		}
+		this.leaseExpiresNanos = System.nanoTime();
+	}
+
+	// Returns the cached value of the key, or null if it isn't cached or the lease is out
+	public String get(String key) {
+		if(!isLeased()) {
+			this.misses.incrementAndGet();
+			return null;
+		}
+		Segment segment = segmentFor(key);
+		Object value;
+		synchronized(segment) {
+			value = segment.get(key);
+		}
+		if(value instanceof String) {
+			this.hits.incrementAndGet();
+			return (String) value;
+		}
+		this.misses.incrementAndGet();
+		return null;
+	}
+
+	// Called before a read of the key is sent, returns the reservation to fill it with or null if it can't be cached.
+	// A change of the key while the read is in flight drops the reservation, so a value older than the change is never cached.
+	public Object reserve(String key) {
+		if(!isLeased()) {
+			return null;
+		}
+		Object reservation = new Object();
+		Segment segment = segmentFor(key);
+		synchronized(segment) {
+			segment.put(key, reservation);
+		}
+		return reservation;
+	}
+
+	public void fill(String key, Object reservation, String value) {
+		if(reservation == null || value == null) {
+			return;
+		}
+		Segment segment = segmentFor(key);
+		synchronized(segment) {
+			if(segment.get(key) == reservation) {
+				segment.put(key, value);
+			}
+		}
+	}
+
+	public void invalidate(String key) {
+		Segment segment = segmentFor(key);
+		synchronized(segment) {
+			segment.remove(key);
+		}
+	}
+
+	public void clear() {
+		for(Segment segment : this.segments) {
+			synchronized(segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	public void onChanges(ChangeBatch batch) {
+		if(this.stale || !isLeased()) {
+			clear();
+			this.stale = false;
+		}
+		for(Change change : batch.getChanges()) {
+			Segment segment = segmentFor(change.getKey());
+			synchronized(segment) {
+				// Entries with a TTL are not cached, the cache wouldn't know when they expire
+				if(change.getType().equals("put") && change.getExpiresAt() == 0 && segment.get(change.getKey()) instanceof String) {
+					segment.put(change.getKey(), change.getValue());
+				}
+				else {
+					segment.remove(change.getKey());
+				}
+			}
+		}
+		// A compacted batch ends the watch, the lease runs out and the cache is cleared when a new one starts
+		if(!batch.isCompacted()) {
+			this.leaseExpiresNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.leaseMillis);
+		}
+		else {
+			this.stale = true;
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public int size() {
+		int size = 0;
+		for(Segment segment : this.segments) {
+			synchronized(segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	private boolean isLeased() {
+		if(System.nanoTime() - this.leaseExpiresNanos < 0) {
+			return true;
+		}
+		this.stale = true;
+		return false;
+	}
+
+	private Segment segmentFor(String key) {
+		return this.segments[Math.floorMod(key.hashCode(), SEGMENTS)];
+	}
+
+	// Access ordered so the eldest entry is the least recently used one
+	private static class Segment extends LinkedHashMap<String, Object> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int capacity;
+
+		private Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+			return size() > this.capacity;
+		}
+	}
+}
@@ -0,0 +1,407 @@
+package com.cs6650;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.rmi.AlreadyBoundException;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// DatastoreInterface over the binary NIO transport. Every caller shares one persistent connection, requests
+// are written as soon as they are made and a reader thread completes them as their replies come back.
+// Operations the wire protocol doesn't carry go to the RMI stub given as fallback.
+public class NioDatastoreClient implements DatastoreInterface {
+
+	// Writes the arguments of one request into its frame
+	public interface Encoder {
+		void encode(DataOutputStream out) throws IOException;
+	}
+
+	// Reads the result out of a reply payload
+	public interface Decoder<T> {
+		T decode(DataInputStream in) throws IOException;
+	}
+
+	private InetSocketAddress address;
+
+	private BufferPool pool;
+
+	private Logger logger;
+
+	private volatile DatastoreInterface fallback;
+
+	// How long a blocking call waits for its reply
+	private long requestTimeoutMillis;
+
+	private AtomicLong nextRequestID = new AtomicLong(1);
+
+	private final Object connectLock = new Object();
+
+	private volatile Connection connection;
+
+	public NioDatastoreClient(InetSocketAddress address, BufferPool pool, long requestTimeoutMillis, Logger logger) {
+		this.address = address;
+		this.pool = pool;
+		this.requestTimeoutMillis = requestTimeoutMillis;
+		this.logger = logger;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public void setFallback(DatastoreInterface fallback) {
+		this.fallback = fallback;
+	}
+
+	// Sends one request, the future completes with the reply payload or fails with a RemoteException,
+	// a TimeoutException thrown by the operation, or a ConnectException if the connection is lost
+	public CompletableFuture<DataInputStream> call(byte opcode, Encoder encoder) {
+		CompletableFuture<DataInputStream> reply = new CompletableFuture<DataInputStream>();
+		long requestID = this.nextRequestID.getAndIncrement();
+		FrameOutputStream frame = new FrameOutputStream(this.pool, requestID, opcode);
+		try {
+			encoder.encode(new DataOutputStream(frame));
+			connect().send(requestID, frame.finish(), reply);
+		}
+		catch(IOException e) {
+			reply.completeExceptionally(e instanceof RemoteException ? e : new RemoteException("Could not send request to "+this.address, e));
+		}
+		return reply;
+	}
+
+	// Sends one request without waiting, the future fails with a RemoteException like the blocking calls throw
+	public <T> CompletableFuture<T> invokeAsync(byte opcode, Encoder encoder, Decoder<T> decoder) {
+		return call(opcode, encoder).thenApply(in -> {
+			try {
+				return decoder.decode(in);
+			}
+			catch(IOException e) {
+				throw new CompletionException(new RemoteException("Malformed reply from "+this.address, e));
+			}
+		});
+	}
+
+	public Response put(String key, String value) throws RemoteException {
+		return invoke(WireProtocol.PUT, out -> {
+			BinaryCodec.writeString(out, key);
+			BinaryCodec.writeString(out, value);
+		}, BinaryCodec::readResponse);
+	}
+
+	public Response put(String key, String value, long ttlMillis) throws RemoteException {
+		return invoke(WireProtocol.PUT_TTL, out -> {
+			BinaryCodec.writeString(out, key);
+			BinaryCodec.writeString(out, value);
+			out.writeLong(ttlMillis);
+		}, BinaryCodec::readResponse);
+	}
+
+	public Response get(String key) throws RemoteException {
+		return invoke(WireProtocol.GET, out -> BinaryCodec.writeString(out, key), BinaryCodec::readResponse);
+	}
+
+	public Response delete(String key) throws RemoteException {
+		return invoke(WireProtocol.DELETE, out -> BinaryCodec.writeString(out, key), BinaryCodec::readResponse);
+	}
+
+	public Response multiGet(List<String> keys) throws RemoteException {
+		return invoke(WireProtocol.MULTI_GET, out -> BinaryCodec.writeStringList(out, keys), BinaryCodec::readResponse);
+	}
+
+	public Response multiPut(Map<String, String> entries) throws RemoteException {
+		return invoke(WireProtocol.MULTI_PUT, out -> BinaryCodec.writeStorage(out, entries), BinaryCodec::readResponse);
+	}
+
+	public Response multiDelete(List<String> keys) throws RemoteException {
+		return invoke(WireProtocol.MULTI_DELETE, out -> BinaryCodec.writeStringList(out, keys), BinaryCodec::readResponse);
+	}
+
+	public Response scan(String startKey, String endKey, int limit, String cursor) throws RemoteException {
+		return invoke(WireProtocol.SCAN, out -> BinaryCodec.writeScan(out, startKey, endKey, limit, cursor), BinaryCodec::readResponse);
+	}
+
+	public ChangeBatch watch(String prefix, long[] fromSlots) throws RemoteException {
+		return invoke(WireProtocol.WATCH, out -> {
+			BinaryCodec.writeString(out, prefix);
+			BinaryCodec.writeSlots(out, fromSlots);
+		}, BinaryCodec::readChangeBatch);
+	}
+
+	public ChangeBatch pollChanges(long subscriptionID, int maxChanges, long waitMillis) throws RemoteException {
+		return invoke(WireProtocol.POLL_CHANGES, out -> {
+			out.writeLong(subscriptionID);
+			out.writeInt(maxChanges);
+			out.writeLong(waitMillis);
+		}, BinaryCodec::readChangeBatch);
+	}
+
+	public void cancelWatch(long subscriptionID) throws RemoteException {
+		invoke(WireProtocol.CANCEL_WATCH, out -> out.writeLong(subscriptionID), in -> null);
+	}
+
+	public HashMap<String, String> getStorage() throws RemoteException {
+		return invoke(WireProtocol.GET_STORAGE, out -> {}, BinaryCodec::readStorage);
+	}
+
+	public StateChunk getStateChunk(int shard, long transferID, String cursor, int maxEntries) throws RemoteException {
+		return invoke(WireProtocol.GET_STATE_CHUNK, out -> {
+			out.writeInt(shard);
+			out.writeLong(transferID);
+			BinaryCodec.writeString(out, cursor);
+			out.writeInt(maxEntries);
+		}, in -> in.readBoolean() ? BinaryCodec.readStateChunk(in) : null);
+	}
+
+	public List<Accepted> getDecisions(int shard, long fromSlot, int maxSlots) throws RemoteException {
+		return invoke(WireProtocol.GET_DECISIONS, out -> {
+			out.writeInt(shard);
+			out.writeLong(fromSlot);
+			out.writeInt(maxSlots);
+		}, BinaryCodec::readAcceptedList);
+	}
+
+	public String getServerID() throws RemoteException {
+		return invoke(WireProtocol.GET_SERVER_ID, out -> {}, BinaryCodec::readString);
+	}
+
+	public String getLeaderID(int shard) throws RemoteException {
+		return invoke(WireProtocol.GET_LEADER_ID, out -> out.writeInt(shard), BinaryCodec::readString);
+	}
+
+	public void propose(Transaction transaction) throws RemoteException, TimeoutException {
+		awaitOrTimeout(call(WireProtocol.PROPOSE, out -> BinaryCodec.writeTransaction(out, transaction)));
+	}
+
+	public Promise prepare(int shard, String proposerID, long proposalNumber) throws RemoteException {
+		return invoke(WireProtocol.PREPARE, out -> {
+			out.writeInt(shard);
+			BinaryCodec.writeString(out, proposerID);
+			out.writeLong(proposalNumber);
+		}, BinaryCodec::readPromise);
+	}
+
+	public Accepted accept(int shard, String proposerID, long proposalNumber, long slot, Transaction value) throws RemoteException {
+		return invoke(WireProtocol.ACCEPT, out -> {
+			out.writeInt(shard);
+			BinaryCodec.writeString(out, proposerID);
+			out.writeLong(proposalNumber);
+			out.writeLong(slot);
+			BinaryCodec.writeTransaction(out, value);
+		}, BinaryCodec::readAccepted);
+	}
+
+	public void invokeLearner(int shard, Accepted accepted) throws RemoteException {
+		invoke(WireProtocol.INVOKE_LEARNER, out -> {
+			out.writeInt(shard);
+			BinaryCodec.writeAccepted(out, accepted);
+		}, in -> null);
+	}
+
+	public void grantLease(int shard, String proposerID, long proposalNumber, long leaseMillis, long commitSlot) throws RemoteException {
+		invoke(WireProtocol.GRANT_LEASE, out -> {
+			out.writeInt(shard);
+			BinaryCodec.writeString(out, proposerID);
+			out.writeLong(proposalNumber);
+			out.writeLong(leaseMillis);
+			out.writeLong(commitSlot);
+		}, in -> null);
+	}
+
+	public long getReadIndex(int shard) throws RemoteException {
+		return invoke(WireProtocol.GET_READ_INDEX, out -> out.writeInt(shard), DataInputStream::readLong);
+	}
+
+	public void registerNewServer(String currentServerID, DatastoreInterface server) throws RemoteException, AlreadyBoundException {
+		DatastoreInterface fallback = this.fallback;
+		if(fallback == null) {
+			throw new RemoteException("registerNewServer is only available over RMI");
+		}
+		fallback.registerNewServer(currentServerID, server);
+	}
+
+	// Sends one request and waits for its result
+	private <T> T invoke(byte opcode, Encoder encoder, Decoder<T> decoder) throws RemoteException {
+		try {
+			return decoder.decode(awaitOrTimeout(call(opcode, encoder)));
+		}
+		catch(TimeoutException e) {
+			throw new RemoteException(e.getMessage(), e);
+		}
+		catch(RemoteException e) {
+			throw e;
+		}
+		catch(IOException e) {
+			throw new RemoteException("Malformed reply from "+this.address, e);
+		}
+	}
+
+	private DataInputStream awaitOrTimeout(CompletableFuture<DataInputStream> reply) throws RemoteException, TimeoutException {
+		try {
+			return reply.get(this.requestTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof RemoteException) {
+				throw (RemoteException) e.getCause();
+			}
+			if(e.getCause() instanceof TimeoutException) {
+				throw (TimeoutException) e.getCause();
+			}
+			throw new RemoteException("Request to "+this.address+" failed", e.getCause());
+		}
+		catch(TimeoutException e) {
+			reply.cancel(false);
+			throw new RemoteException("No reply from "+this.address+" within "+this.requestTimeoutMillis+" ms");
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for "+this.address);
+		}
+	}
+
+	// Returns the open connection, connecting again if the last one was lost
+	private Connection connect() throws RemoteException {
+		Connection current = this.connection;
+		if(current != null && !current.closed) {
+			return current;
+		}
+		synchronized(this.connectLock) {
+			if(this.connection == null || this.connection.closed) {
+				try {
+					SocketChannel channel = SocketChannel.open(this.address);
+					channel.socket().setTcpNoDelay(true);
+					this.connection = new Connection(channel);
+				}
+				catch(IOException e) {
+					throw new ConnectException("Could not connect to "+this.address, e);
+				}
+				Thread reader = new Thread(this.connection, "nio-reader-"+this.address.getPort());
+				reader.setDaemon(true);
+				reader.start();
+			}
+			return this.connection;
+		}
+	}
+
+	private class Connection implements Runnable {
+
+		private SocketChannel channel;
+
+		// Requests sent on this connection and not answered yet, by request id
+		private Map<Long, CompletableFuture<DataInputStream>> pending = new ConcurrentHashMap<Long, CompletableFuture<DataInputStream>>();
+
+		private final Object writeLock = new Object();
+
+		private volatile boolean closed;
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		private void send(long requestID, ByteBuffer frame, CompletableFuture<DataInputStream> reply) {
+			this.pending.put(requestID, reply);
+			// A caller that stops waiting completes the future itself, the reply is then dropped when it comes
+			reply.whenComplete((result, failure) -> this.pending.remove(requestID));
+			// close() sets closed before failing what is pending, a request added after that is failed here
+			if(this.closed) {
+				fail(requestID);
+				pool.release(frame);
+				return;
+			}
+			try {
+				synchronized(this.writeLock) {
+					while(frame.hasRemaining()) {
+						this.channel.write(frame);
+					}
+				}
+			}
+			catch(IOException e) {
+				close(e);
+			}
+			finally {
+				pool.release(frame);
+			}
+		}
+
+		public void run() {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.channel), 64 * 1024));
+				while(true) {
+					int length = in.readInt();
+					if(length < WireProtocol.HEADER_LENGTH || length > WireProtocol.MAX_FRAME_LENGTH) {
+						throw new IOException("Invalid frame length "+length);
+					}
+					long requestID = in.readLong();
+					byte status = in.readByte();
+					byte[] payload = new byte[length - WireProtocol.HEADER_LENGTH];
+					in.readFully(payload);
+
+					CompletableFuture<DataInputStream> reply = this.pending.remove(requestID);
+					if(reply == null) {
+						continue;
+					}
+					DataInputStream result = new DataInputStream(new WireProtocol.ByteBufferInputStream(ByteBuffer.wrap(payload)));
+					if(status == WireProtocol.OK) {
+						reply.complete(result);
+					}
+					else if(status == WireProtocol.TIMEOUT) {
+						reply.completeExceptionally(new TimeoutException(BinaryCodec.readString(result)));
+					}
+					else if(status == WireProtocol.REJECTED) {
+						reply.completeExceptionally(new ProposalRejectedException(BinaryCodec.readString(result), result.readLong(),
+								BinaryCodec.readString(result), result.readLong()));
+					}
+					else if(status == WireProtocol.NOT_LEADER) {
+						reply.completeExceptionally(new NotLeaderException(BinaryCodec.readString(result), BinaryCodec.readString(result)));
+					}
+					else {
+						reply.completeExceptionally(new RemoteException(BinaryCodec.readString(result)));
+					}
+				}
+			}
+			catch(IOException e) {
+				close(e);
+			}
+		}
+
+		private synchronized void close(IOException cause) {
+			if(this.closed) {
+				return;
+			}
+			this.closed = true;
+			logger.info("NIO connection to "+address+" closed: "+cause);
+			try {
+				this.channel.close();
+			}
+			catch(IOException e) {
+				logger.fine("Could not close NIO connection: "+e);
+			}
+			for(Long requestID : this.pending.keySet()) {
+				fail(requestID);
+			}
+		}
+
+		private void fail(long requestID) {
+			CompletableFuture<DataInputStream> reply = this.pending.remove(requestID);
+			if(reply != null) {
+				reply.completeExceptionally(new ConnectException("Connection to "+address+" lost"));
+			}
+		}
+	}
+}
@@ -0,0 +1,411 @@
+package com.cs6650;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Serves the operations of a server over the binary wire protocol of WireProtocol.
+// One selector thread reads and writes every connection without blocking, decoded requests run on worker
+// threads and any number of them can be in flight on one connection.
+public class NioTransportServer implements Runnable {
+
+	// Writes the result of one operation into its reply frame
+	private interface Handler {
+		void handle(DataOutputStream out) throws Exception;
+	}
+
+	private DatastoreInterface server;
+
+	private BufferPool pool;
+
+	private Logger logger;
+
+	private Selector selector;
+
+	private ServerSocketChannel serverChannel;
+
+	// Client operations wait for a whole Paxos round, they run apart from the Paxos messages that round needs
+	// so a burst of them can't take every worker
+	private ExecutorService clientWorkers;
+
+	private ExecutorService paxosWorkers;
+
+	// Polls of watch subscriptions wait for changes, a thread each, they must not take the workers of other operations
+	private ExecutorService watchWorkers;
+
+	// Connections with replies queued since the selector last looked
+	private ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+
+	public NioTransportServer(DatastoreInterface server, BufferPool pool, int clientThreads, int paxosThreads, int watchThreads, Logger logger) {
+		this.server = server;
+		this.pool = pool;
+		this.logger = logger;
+		this.clientWorkers = newWorkerPool(clientThreads, "nio-client-worker");
+		this.paxosWorkers = newWorkerPool(paxosThreads, "nio-paxos-worker");
+		this.watchWorkers = newWorkerPool(watchThreads, "nio-watch-worker");
+	}
+
+	public void start(int port) throws IOException {
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.configureBlocking(false);
+		this.serverChannel.socket().setReuseAddress(true);
+		this.serverChannel.bind(new InetSocketAddress(port));
+		this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+
+		Thread thread = new Thread(this, "nio-selector");
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("NIO transport listening on port "+port);
+	}
+
+	public void run() {
+		while(true) {
+			try {
+				this.selector.select();
+				Connection connection;
+				while((connection = this.writable.poll()) != null) {
+					connection.enableWrite();
+				}
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(!key.isValid()) {
+						continue;
+					}
+					if(key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					connection = (Connection) key.attachment();
+					try {
+						if(key.isReadable()) {
+							connection.read();
+						}
+						if(key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					}
+					catch(IOException e) {
+						logger.fine("Closing NIO connection: "+e);
+						connection.close();
+					}
+				}
+			}
+			catch(IOException e) {
+				logger.log(Level.SEVERE, "NIO selector failed", e);
+				return;
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = this.serverChannel.accept();
+		if(channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+	}
+
+	// Decodes the arguments on the selector thread and hands the operation to a worker
+	private void dispatch(Connection connection, long requestID, byte opcode, DataInputStream in) throws IOException {
+		switch(opcode) {
+		case WireProtocol.PUT: {
+			String key = BinaryCodec.readString(in);
+			String value = BinaryCodec.readString(in);
+			execute(this.clientWorkers, connection, requestID, out -> BinaryCodec.writeResponse(out, this.server.put(key, value)));
+			break;
+		}
+		case WireProtocol.PUT_TTL: {
+			String key = BinaryCodec.readString(in);
+			String value = BinaryCodec.readString(in);
+			long ttlMillis = in.readLong();
+			execute(this.clientWorkers, connection, requestID, out -> BinaryCodec.writeResponse(out, this.server.put(key, value, ttlMillis)));
+			break;
+		}
+		case WireProtocol.GET: {
+			String key = BinaryCodec.readString(in);
+			execute(this.clientWorkers, connection, requestID, out -> BinaryCodec.writeResponse(out, this.server.get(key)));
+			break;
+		}
+		case WireProtocol.DELETE: {
+			String key = BinaryCodec.readString(in);
+			execute(this.clientWorkers, connection, requestID, out -> BinaryCodec.writeResponse(out, this.server.delete(key)));
+			break;
+		}
+		case WireProtocol.MULTI_GET: {
+			List<String> keys = BinaryCodec.readStringList(in);
+			execute(this.clientWorkers, connection, requestID, out -> BinaryCodec.writeResponse(out, this.server.multiGet(keys)));
+			break;
+		}
+		case WireProtocol.MULTI_PUT: {
+			Map<String, String> entries = BinaryCodec.readStorage(in);
+			execute(this.clientWorkers, connection, requestID, out -> BinaryCodec.writeResponse(out, this.server.multiPut(entries)));
+			break;
+		}
+		case WireProtocol.MULTI_DELETE: {
+			List<String> keys = BinaryCodec.readStringList(in);
+			execute(this.clientWorkers, connection, requestID, out -> BinaryCodec.writeResponse(out, this.server.multiDelete(keys)));
+			break;
+		}
+		case WireProtocol.SCAN: {
+			String startKey = BinaryCodec.readString(in);
+			String endKey = BinaryCodec.readString(in);
+			int limit = in.readInt();
+			String cursor = BinaryCodec.readString(in);
+			execute(this.clientWorkers, connection, requestID, out -> BinaryCodec.writeResponse(out, this.server.scan(startKey, endKey, limit, cursor)));
+			break;
+		}
+		case WireProtocol.WATCH: {
+			String prefix = BinaryCodec.readString(in);
+			long[] fromSlots = BinaryCodec.readSlots(in);
+			execute(this.clientWorkers, connection, requestID, out -> BinaryCodec.writeChangeBatch(out, this.server.watch(prefix, fromSlots)));
+			break;
+		}
+		case WireProtocol.POLL_CHANGES: {
+			long subscriptionID = in.readLong();
+			int maxChanges = in.readInt();
+			long waitMillis = in.readLong();
+			execute(this.watchWorkers, connection, requestID, out -> BinaryCodec.writeChangeBatch(out, this.server.pollChanges(subscriptionID, maxChanges, waitMillis)));
+			break;
+		}
+		case WireProtocol.CANCEL_WATCH: {
+			long subscriptionID = in.readLong();
+			execute(this.clientWorkers, connection, requestID, out -> this.server.cancelWatch(subscriptionID));
+			break;
+		}
+		case WireProtocol.GET_STORAGE:
+			execute(this.clientWorkers, connection, requestID, out -> BinaryCodec.writeStorage(out, this.server.getStorage()));
+			break;
+		case WireProtocol.GET_STATE_CHUNK: {
+			int shard = in.readInt();
+			long transferID = in.readLong();
+			String cursor = BinaryCodec.readString(in);
+			int maxEntries = in.readInt();
+			execute(this.clientWorkers, connection, requestID, out -> {
+				StateChunk chunk = this.server.getStateChunk(shard, transferID, cursor, maxEntries);
+				out.writeBoolean(chunk != null);
+				if(chunk != null) {
+					BinaryCodec.writeStateChunk(out, chunk);
+				}
+			});
+			break;
+		}
+		case WireProtocol.GET_DECISIONS: {
+			int shard = in.readInt();
+			long fromSlot = in.readLong();
+			int maxSlots = in.readInt();
+			execute(this.paxosWorkers, connection, requestID, out -> BinaryCodec.writeAcceptedList(out, this.server.getDecisions(shard, fromSlot, maxSlots)));
+			break;
+		}
+		case WireProtocol.GET_SERVER_ID:
+			execute(this.paxosWorkers, connection, requestID, out -> BinaryCodec.writeString(out, this.server.getServerID()));
+			break;
+		case WireProtocol.GET_LEADER_ID: {
+			int shard = in.readInt();
+			execute(this.paxosWorkers, connection, requestID, out -> BinaryCodec.writeString(out, this.server.getLeaderID(shard)));
+			break;
+		}
+		case WireProtocol.PROPOSE: {
+			Transaction transaction = BinaryCodec.readTransaction(in);
+			execute(this.clientWorkers, connection, requestID, out -> this.server.propose(transaction));
+			break;
+		}
+		case WireProtocol.PREPARE: {
+			int shard = in.readInt();
+			String proposerID = BinaryCodec.readString(in);
+			long proposalNumber = in.readLong();
+			execute(this.paxosWorkers, connection, requestID, out -> BinaryCodec.writePromise(out, this.server.prepare(shard, proposerID, proposalNumber)));
+			break;
+		}
+		case WireProtocol.ACCEPT: {
+			int shard = in.readInt();
+			String proposerID = BinaryCodec.readString(in);
+			long proposalNumber = in.readLong();
+			long slot = in.readLong();
+			Transaction value = BinaryCodec.readTransaction(in);
+			execute(this.paxosWorkers, connection, requestID, out -> BinaryCodec.writeAccepted(out, this.server.accept(shard, proposerID, proposalNumber, slot, value)));
+			break;
+		}
+		case WireProtocol.INVOKE_LEARNER: {
+			int shard = in.readInt();
+			Accepted accepted = BinaryCodec.readAccepted(in);
+			execute(this.paxosWorkers, connection, requestID, out -> this.server.invokeLearner(shard, accepted));
+			break;
+		}
+		case WireProtocol.GRANT_LEASE: {
+			int shard = in.readInt();
+			String proposerID = BinaryCodec.readString(in);
+			long proposalNumber = in.readLong();
+			long leaseMillis = in.readLong();
+			long commitSlot = in.readLong();
+			execute(this.paxosWorkers, connection, requestID, out -> this.server.grantLease(shard, proposerID, proposalNumber, leaseMillis, commitSlot));
+			break;
+		}
+		case WireProtocol.GET_READ_INDEX: {
+			int shard = in.readInt();
+			// Without a lease the leader confirms the index with a Paxos round, which waits on Paxos workers
+			execute(this.clientWorkers, connection, requestID, out -> out.writeLong(this.server.getReadIndex(shard)));
+			break;
+		}
+		default:
+			throw new IOException("Unknown opcode "+opcode);
+		}
+	}
+
+	private void execute(ExecutorService workers, Connection connection, long requestID, Handler handler) {
+		workers.execute(() -> {
+			FrameOutputStream frame = new FrameOutputStream(this.pool, requestID, WireProtocol.OK);
+			try {
+				handler.handle(new DataOutputStream(frame));
+			}
+			catch(Exception e) {
+				this.pool.release(frame.finish());
+				byte status = e instanceof TimeoutException ? WireProtocol.TIMEOUT : e instanceof ProposalRejectedException ? WireProtocol.REJECTED
+						: e instanceof NotLeaderException ? WireProtocol.NOT_LEADER : WireProtocol.REMOTE_ERROR;
+				if(!(e instanceof RemoteException || e instanceof TimeoutException)) {
+					logger.log(Level.WARNING, "Operation failed", e);
+				}
+				frame = new FrameOutputStream(this.pool, requestID, status);
+				try {
+					DataOutputStream out = new DataOutputStream(frame);
+					BinaryCodec.writeString(out, e instanceof RemoteException || e instanceof TimeoutException ? e.getMessage() : e.toString());
+					if(e instanceof ProposalRejectedException) {
+						ProposalRejectedException rejection = (ProposalRejectedException) e;
+						out.writeLong(rejection.getPromisedProposalNumber());
+						BinaryCodec.writeString(out, rejection.getLeaseHolder());
+						out.writeLong(rejection.getLeaseRemainingMillis());
+					}
+					else if(e instanceof NotLeaderException) {
+						BinaryCodec.writeString(out, ((NotLeaderException) e).getLeaderID());
+					}
+				}
+				catch(IOException writeFailure) {
+					// Writing to a FrameOutputStream does not fail
+				}
+			}
+			connection.send(frame.finish());
+		});
+	}
+
+	private static ExecutorService newWorkerPool(int threads, String name) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), runnable -> {
+					Thread thread = new Thread(runnable, name);
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private class Connection {
+
+		private SocketChannel channel;
+
+		private SelectionKey key;
+
+		// Bytes received but not decoded yet, always in write mode between reads
+		private ByteBuffer readBuffer = pool.acquire(0);
+
+		private ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		private void read() throws IOException {
+			if(this.channel.read(this.readBuffer) < 0) {
+				close();
+				return;
+			}
+			this.readBuffer.flip();
+			while(this.readBuffer.remaining() >= 4) {
+				int length = this.readBuffer.getInt(this.readBuffer.position());
+				if(length < WireProtocol.HEADER_LENGTH || length > WireProtocol.MAX_FRAME_LENGTH) {
+					throw new IOException("Invalid frame length "+length);
+				}
+				if(this.readBuffer.remaining() < 4 + length) {
+					if(this.readBuffer.capacity() < 4 + length) {
+						// The frame doesn't fit, move what was read of it to a buffer that can hold all of it
+						ByteBuffer larger = pool.acquire(4 + length);
+						larger.put(this.readBuffer);
+						pool.release(this.readBuffer);
+						this.readBuffer = larger;
+						return;
+					}
+					break;
+				}
+				this.readBuffer.getInt();
+				long requestID = this.readBuffer.getLong();
+				byte opcode = this.readBuffer.get();
+				ByteBuffer payload = this.readBuffer.duplicate();
+				payload.limit(this.readBuffer.position() + length - WireProtocol.HEADER_LENGTH);
+				this.readBuffer.position(payload.limit());
+				dispatch(this, requestID, opcode, new DataInputStream(new WireProtocol.ByteBufferInputStream(payload)));
+			}
+			this.readBuffer.compact();
+		}
+
+		// Called by workers, the selector thread writes the frame
+		private void send(ByteBuffer frame) {
+			this.outbound.offer(frame);
+			writable.offer(this);
+			selector.wakeup();
+		}
+
+		private void enableWrite() {
+			if(this.key.isValid()) {
+				this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void write() throws IOException {
+			ByteBuffer frame;
+			while((frame = this.outbound.peek()) != null) {
+				this.channel.write(frame);
+				if(frame.hasRemaining()) {
+					return;
+				}
+				this.outbound.poll();
+				pool.release(frame);
+			}
+			// A reply queued after the loop was also put on writable, the selector enables writes again for it
+			this.key.interestOps(SelectionKey.OP_READ);
+		}
+
+		private void close() {
+			this.key.cancel();
+			try {
+				this.channel.close();
+			}
+			catch(IOException e) {
+				logger.fine("Could not close NIO connection: "+e);
+			}
+			this.outbound.clear();
+			pool.release(this.readBuffer);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.cs6650;
+
+import java.rmi.RemoteException;
+
+// Thrown by a server that was forwarded a transaction of a shard another server leads. It names that leader,
+// so the server that forwarded it forwards it there instead of this server passing it on.
+public class NotLeaderException extends RemoteException {
+
+	private static final long serialVersionUID = 1L;
+
+	private String leaderID;
+
+	public NotLeaderException(String message, String leaderID) {
+		super(message);
+		this.leaderID = leaderID;
+	}
+
+	public String getLeaderID() {
+		return leaderID;
+	}
+}
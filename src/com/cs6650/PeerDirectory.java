@@ -0,0 +1,164 @@
+package com.cs6650;
+
+import java.net.InetSocketAddress;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Keeps resolved stubs of every server bound in the registry so the write path never talks to the registry
+public class PeerDirectory {
+
+	// Name the local server is bound under in its own registry
+	public static final String LOCAL_NAME = "Server";
+
+	private Registry registry;
+
+	private Logger logger;
+
+	// The local server is called directly instead of through an RMI loopback
+	private DatastoreInterface localServer;
+
+	private volatile PeerSnapshot snapshot = new PeerSnapshot(new LinkedHashMap<String, DatastoreInterface>());
+
+	// Servers whose stub failed and is being resolved again
+	private Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+	// Port offset of the NIO transport of every server, 0 when servers talk over RMI
+	private int nioPortOffset;
+
+	private BufferPool nioBufferPool;
+
+	private long nioRequestTimeoutMillis;
+
+	// One client per server so its connection outlives stub refreshes
+	private ConcurrentHashMap<String, NioDatastoreClient> nioClients = new ConcurrentHashMap<String, NioDatastoreClient>();
+
+	private ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "peer-refresher");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public PeerDirectory(Registry registry, Logger logger, DatastoreInterface localServer) {
+		this.registry = registry;
+		this.logger = logger;
+		this.localServer = localServer;
+	}
+
+	// Messages to other servers go over their NIO transport at their RMI port plus the offset,
+	// the RMI stub is kept for the operations the wire protocol doesn't carry
+	public synchronized void useNioTransport(int portOffset, BufferPool bufferPool, long requestTimeoutMillis) {
+		this.nioPortOffset = portOffset;
+		this.nioBufferPool = bufferPool;
+		this.nioRequestTimeoutMillis = requestTimeoutMillis;
+	}
+
+	public PeerSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	// Uses the given servers as the membership instead of the registry, for servers running in one process.
+	// The local server has to be among them under its own ID.
+	public synchronized void setMembers(Map<String, DatastoreInterface> servers) {
+		this.registry = null;
+		this.snapshot = new PeerSnapshot(new LinkedHashMap<String, DatastoreInterface>(servers));
+	}
+
+	// Resolves the current membership, called whenever a server is bound in the registry
+	public synchronized void refresh() {
+		if(this.registry == null) {
+			return;
+		}
+		try {
+			// Every stub is resolved again, a server that rejoined is bound under its old ID with a new stub
+			LinkedHashMap<String, DatastoreInterface> stubs = new LinkedHashMap<String, DatastoreInterface>();
+			for(String serverID : this.registry.list()) {
+				DatastoreInterface stub = resolve(serverID);
+				if(stub != null) {
+					stubs.put(serverID, stub);
+				}
+			}
+			this.snapshot = new PeerSnapshot(stubs);
+			logger.info("Peer directory refreshed, "+stubs.size()+" servers");
+		}
+		catch(RemoteException e) {
+			logger.log(Level.SEVERE, "Could not list registry", e);
+		}
+	}
+
+	// Called when a message to a server failed, connection level failures resolve the stub again in the background
+	public void reportFailure(String serverID, Throwable failure) {
+		if(!(failure instanceof ConnectException || failure instanceof ConnectIOException || failure instanceof NoSuchObjectException)) {
+			return;
+		}
+		if(this.registry == null || !this.refreshing.add(serverID)) {
+			return;
+		}
+		this.refresher.execute(() -> {
+			try {
+				replace(serverID, resolve(serverID));
+			}
+			finally {
+				this.refreshing.remove(serverID);
+			}
+		});
+	}
+
+	private synchronized void replace(String serverID, DatastoreInterface stub) {
+		PeerSnapshot current = this.snapshot;
+		if(!current.getStubs().containsKey(serverID)) {
+			return;
+		}
+		LinkedHashMap<String, DatastoreInterface> stubs = new LinkedHashMap<String, DatastoreInterface>(current.getStubs());
+		if(stub == null) {
+			stubs.remove(serverID);
+			logger.info("Server "+serverID+" is no longer bound, removed from peer directory");
+		}
+		else {
+			stubs.put(serverID, stub);
+			logger.info("Resolved stub of server "+serverID+" again");
+		}
+		this.snapshot = new PeerSnapshot(stubs);
+	}
+
+	// Returns null if the server is not bound any more, keeps the old stub if the registry can't be reached
+	private DatastoreInterface resolve(String serverID) {
+		if(LOCAL_NAME.equals(serverID)) {
+			return this.localServer;
+		}
+		try {
+			DatastoreInterface stub = (DatastoreInterface) this.registry.lookup(serverID);
+			return this.nioPortOffset > 0 ? nioClient(serverID, stub) : stub;
+		}
+		catch(NotBoundException e) {
+			return null;
+		}
+		catch(RemoteException e) {
+			logger.log(Level.WARNING, "Could not resolve server "+serverID, e);
+			return this.snapshot.getStub(serverID);
+		}
+	}
+
+	// Server IDs are <address>_<RMI port>
+	private NioDatastoreClient nioClient(String serverID, DatastoreInterface stub) {
+		NioDatastoreClient client = this.nioClients.computeIfAbsent(serverID, id -> {
+			int separator = id.lastIndexOf('_');
+			InetSocketAddress address = new InetSocketAddress(id.substring(0, separator),
+					Integer.parseInt(id.substring(separator + 1)) + this.nioPortOffset);
+			return new NioDatastoreClient(address, this.nioBufferPool, this.nioRequestTimeoutMillis, this.logger);
+		});
+		client.setFallback(stub);
+		return client;
+	}
+}
@@ -0,0 +1,42 @@
+package com.cs6650;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Immutable view of the cluster membership with resolved stubs, safe to share between proposer threads
+public class PeerSnapshot {
+
+	private Map<String, DatastoreInterface> stubs;
+
+	private String[] serverIDs;
+
+	// Number of servers that make a majority of this membership
+	private int quorumSize;
+
+	public PeerSnapshot(LinkedHashMap<String, DatastoreInterface> stubs) {
+		this.stubs = Collections.unmodifiableMap(stubs);
+		this.serverIDs = stubs.keySet().toArray(new String[0]);
+		this.quorumSize = stubs.size() / 2 + 1;
+	}
+
+	public Map<String, DatastoreInterface> getStubs() {
+		return stubs;
+	}
+
+	public DatastoreInterface getStub(String serverID) {
+		return stubs.get(serverID);
+	}
+
+	public String[] getServerIDs() {
+		return serverIDs;
+	}
+
+	public int getQuorumSize() {
+		return quorumSize;
+	}
+
+	public int size() {
+		return serverIDs.length;
+	}
+}
@@ -1,6 +1,8 @@
 package com.cs6650;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Promise implements Serializable {
 	
@@ -8,9 +10,11 @@ public class Promise implements Serializable {
 	
 	private long proposalNumber;
 	
-	private long previousProposalNumber;
-	 
-	private Transaction previousAcceptedValue;
+	// Values the acceptor accepted for slots it has not applied yet
+	private List<Accepted> acceptedValues = new ArrayList<Accepted>();
+
+	// Every slot up to this one is applied on the acceptor
+	private long lastAppliedSlot;
 
 
 	public String getServerID() {
@@ -21,14 +25,6 @@ public class Promise implements Serializable {
 		this.serverID = serverID;
 	}
 
-	public long getPreviousProposalNumber() {
-		return previousProposalNumber;
-	}
-
-	public void setPreviousProposalNumber(long previousProposalNumber) {
-		this.previousProposalNumber = previousProposalNumber;
-	}
-
 	public long getProposalNumber() {
 		return proposalNumber;
 	}
@@ -37,12 +33,20 @@ public class Promise implements Serializable {
 		this.proposalNumber = proposalNumber;
 	}
 
-	public Transaction getPreviousAcceptedValue() {
-		return previousAcceptedValue;
+	public List<Accepted> getAcceptedValues() {
+		return acceptedValues;
+	}
+
+	public void setAcceptedValues(List<Accepted> acceptedValues) {
+		this.acceptedValues = acceptedValues;
+	}
+
+	public long getLastAppliedSlot() {
+		return lastAppliedSlot;
 	}
 
-	public void setPreviousAcceptedValue(Transaction previousAcceptedValue) {
-		this.previousAcceptedValue = previousAcceptedValue;
+	public void setLastAppliedSlot(long lastAppliedSlot) {
+		this.lastAppliedSlot = lastAppliedSlot;
 	}
 
 }
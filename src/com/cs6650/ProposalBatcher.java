@@ -0,0 +1,164 @@
+package com.cs6650;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+// Collects concurrent writes for a short window and proposes them as one batch value
+public class ProposalBatcher implements Runnable {
+
+	private Server server;
+
+	// How long the first write of a batch waits for others to join it
+	private long windowMillis;
+
+	// A batch is proposed as soon as it holds this many writes
+	private int maxBatchSize;
+
+	private BlockingQueue<PendingTransaction> queue = new LinkedBlockingQueue<PendingTransaction>();
+
+	// Batches are proposed concurrently, one thread per slot of the shard's pipeline window. Every proposal holds a
+	// slot while it runs, so more threads would only block, and batches beyond the window queue here instead.
+	private ThreadPoolExecutor proposers;
+
+	public ProposalBatcher(Server server, long windowMillis, int maxBatchSize, int pipelineWindow) {
+		this.server = server;
+		this.windowMillis = windowMillis;
+		this.maxBatchSize = maxBatchSize;
+		this.proposers = new ThreadPoolExecutor(pipelineWindow, pipelineWindow, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+			Thread thread = new Thread(runnable, "batch-proposer");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		Thread flusher = new Thread(this, "batch-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	// Resizes the proposer threads when the pipeline window changes, the core size never exceeds the maximum
+	public void setPipelineWindow(int pipelineWindow) {
+		if(pipelineWindow > this.proposers.getMaximumPoolSize()) {
+			this.proposers.setMaximumPoolSize(pipelineWindow);
+			this.proposers.setCorePoolSize(pipelineWindow);
+		}
+		else {
+			this.proposers.setCorePoolSize(pipelineWindow);
+			this.proposers.setMaximumPoolSize(pipelineWindow);
+		}
+	}
+
+	// Blocks until the batch holding the transaction is learned. Transactions another server forwarded here are
+	// batched apart from this server's own, they are never forwarded again and may be handed back instead.
+	public void submit(Transaction transaction, boolean forwarded) throws RemoteException, TimeoutException {
+		PendingTransaction pending = new PendingTransaction(transaction, forwarded);
+		this.queue.add(pending);
+		try {
+			pending.future.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TimeoutException();
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof TimeoutException) {
+				throw (TimeoutException) e.getCause();
+			}
+			if(e.getCause() instanceof RemoteException) {
+				throw (RemoteException) e.getCause();
+			}
+			throw new RemoteException("Batch proposal failed", e.getCause());
+		}
+	}
+
+	public void run() {
+		while(true) {
+			try {
+				List<PendingTransaction> batch = new ArrayList<PendingTransaction>();
+				batch.add(this.queue.take());
+
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.windowMillis);
+				while(batch.size() < this.maxBatchSize) {
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0) {
+						this.queue.drainTo(batch, this.maxBatchSize - batch.size());
+						break;
+					}
+					PendingTransaction pending = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if(pending == null) {
+						break;
+					}
+					batch.add(pending);
+				}
+
+				List<PendingTransaction> forwarded = new ArrayList<PendingTransaction>();
+				List<PendingTransaction> local = new ArrayList<PendingTransaction>();
+				for(PendingTransaction pending : batch) {
+					(pending.forwarded ? forwarded : local).add(pending);
+				}
+				if(!forwarded.isEmpty()) {
+					this.proposers.execute(() -> propose(forwarded, true));
+				}
+				if(!local.isEmpty()) {
+					this.proposers.execute(() -> propose(local, false));
+				}
+			}
+			catch(InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void propose(List<PendingTransaction> batch, boolean forwarded) {
+		Transaction value;
+		if(batch.size() == 1) {
+			value = batch.get(0).transaction;
+		}
+		else {
+			List<Transaction> transactions = new ArrayList<Transaction>();
+			for(PendingTransaction pending : batch) {
+				transactions.add(pending.transaction);
+			}
+			value = new Transaction();
+			value.setType("batch");
+			value.setTransactions(transactions);
+		}
+
+		this.server.logger.info("Proposing batch of "+batch.size()+" transactions");
+		try {
+			this.server.invokeProposer(value, forwarded);
+			for(PendingTransaction pending : batch) {
+				pending.future.complete(null);
+			}
+		}
+		catch(Exception e) {
+			this.server.logger.log(Level.WARNING, "Batch proposal failed", e);
+			for(PendingTransaction pending : batch) {
+				pending.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	// A write waiting for its batch to be learned
+	private static class PendingTransaction {
+
+		private Transaction transaction;
+
+		private boolean forwarded;
+
+		private CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		private PendingTransaction(Transaction transaction, boolean forwarded) {
+			this.transaction = transaction;
+			this.forwarded = forwarded;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.cs6650;
+
+import java.rmi.RemoteException;
+
+// Thrown by an acceptor that declines a prepare, accept or lease. It carries the proposal number the acceptor promised,
+// so the proposer's next ballot outbids it in one round instead of guessing, and the lease that was in the way if any.
+public class ProposalRejectedException extends RemoteException {
+
+	private static final long serialVersionUID = 1L;
+
+	private long promisedProposalNumber;
+
+	// Proposer the acceptor granted a lease that is still running, null if none is. Empty for a lease the acceptor
+	// may have granted before it restarted.
+	private String leaseHolder;
+
+	// How long that lease still runs at the acceptor
+	private long leaseRemainingMillis;
+
+	public ProposalRejectedException(String message, long promisedProposalNumber) {
+		this(message, promisedProposalNumber, null, 0);
+	}
+
+	public ProposalRejectedException(String message, long promisedProposalNumber, String leaseHolder, long leaseRemainingMillis) {
+		super(message);
+		this.promisedProposalNumber = promisedProposalNumber;
+		this.leaseHolder = leaseHolder;
+		this.leaseRemainingMillis = leaseRemainingMillis;
+	}
+
+	public long getPromisedProposalNumber() {
+		return promisedProposalNumber;
+	}
+
+	public String getLeaseHolder() {
+		return leaseHolder;
+	}
+
+	public long getLeaseRemainingMillis() {
+		return leaseRemainingMillis;
+	}
+}
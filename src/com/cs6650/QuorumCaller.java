@@ -0,0 +1,89 @@
+package com.cs6650;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// Sends one Paxos phase to every server at once and returns as soon as a quorum answered
+public class QuorumCaller {
+
+	// One message of a phase, sent to a single server
+	public interface Message<T> {
+		T send(String serverID, DatastoreInterface server) throws RemoteException;
+	}
+
+	private PeerDirectory peers;
+
+	private Logger logger;
+
+	private ExecutorService executor;
+
+	public QuorumCaller(PeerDirectory peers, Logger logger, int threads) {
+		this.peers = peers;
+		this.logger = logger;
+		// Bounded pool and queue, when both are full the proposer thread sends the message itself
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * 16), runnable -> {
+					Thread thread = new Thread(runnable, "paxos-fanout");
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		this.executor = executor;
+	}
+
+	// Returns the answers received once a quorum of the snapshot answered, every server failed to, or the timeout passed.
+	// Messages still in flight are left to finish in the background.
+	public <T> List<T> call(String phase, PeerSnapshot snapshot, long timeoutMillis, Message<T> message) {
+		CompletionService<T> completionService = new ExecutorCompletionService<T>(this.executor);
+		for(Map.Entry<String, DatastoreInterface> peer : snapshot.getStubs().entrySet()) {
+			completionService.submit(() -> {
+				try {
+					return message.send(peer.getKey(), peer.getValue());
+				}
+				catch(RemoteException e) {
+					this.peers.reportFailure(peer.getKey(), e);
+					throw e;
+				}
+			});
+		}
+
+		int quorum = snapshot.getQuorumSize();
+		List<T> answers = new ArrayList<T>();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		int pending = snapshot.size();
+		while(answers.size() < quorum && pending > 0) {
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0) {
+				logger.info(phase+" timed out with "+answers.size()+" of "+quorum+" answers");
+				break;
+			}
+			try {
+				Future<T> future = completionService.poll(remaining, TimeUnit.NANOSECONDS);
+				if(future == null) {
+					continue;
+				}
+				pending--;
+				answers.add(future.get());
+			}
+			catch(ExecutionException e) {
+				logger.info(phase+" failed on a server: "+e.getCause());
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return answers;
+	}
+}
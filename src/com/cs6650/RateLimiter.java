@@ -0,0 +1,34 @@
+package com.cs6650;
+
+import java.util.concurrent.TimeUnit;
+
+// Token bucket handing out permits at a fixed rate, up to one second of unused permits is saved up.
+// A caller takes its permits at once and waits for any it took beyond what was available.
+public class RateLimiter {
+
+	private double permitsPerSecond;
+
+	// Negative when callers took more than was available and the ones after them have to wait it out
+	private double available;
+
+	private long lastRefillNanos = System.nanoTime();
+
+	public RateLimiter(double permitsPerSecond) {
+		this.permitsPerSecond = permitsPerSecond;
+		this.available = permitsPerSecond;
+	}
+
+	public void acquire(int permits) throws InterruptedException {
+		long waitNanos;
+		synchronized(this) {
+			long now = System.nanoTime();
+			this.available = Math.min(this.permitsPerSecond, this.available + (now - this.lastRefillNanos) / 1e9 * this.permitsPerSecond);
+			this.lastRefillNanos = now;
+			this.available -= permits;
+			waitNanos = this.available >= 0 ? 0 : (long) (-this.available / this.permitsPerSecond * 1e9);
+		}
+		if(waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+}
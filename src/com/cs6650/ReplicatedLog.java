@@ -0,0 +1,227 @@
+package com.cs6650;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+// Acceptor and learner state of the slot indexed Paxos log, every slot is an independent Paxos instance
+public class ReplicatedLog {
+
+	// Highest proposal number promised, one prepare covers every slot of the log
+	private long promisedProposalNumber;
+
+	// Values accepted but not learned yet, by slot
+	private TreeMap<Long, Accepted> acceptedValues = new TreeMap<Long, Accepted>();
+
+	// Values learned out of order, waiting for the slots before them
+	private TreeMap<Long, Transaction> learnedValues = new TreeMap<Long, Transaction>();
+
+	// Every slot up to this one has been applied to storage
+	private long lastAppliedSlot;
+
+	// Recently applied values kept for servers catching up, by slot
+	private TreeMap<Long, Transaction> history = new TreeMap<Long, Transaction>();
+
+	// Number of applied slots kept in history
+	private int historySize = 100000;
+
+	// Proposer this acceptor granted a read lease to, no other proposer is promised anything before the lease
+	// expires at leaseExpiresNanos of System.nanoTime
+	private String leaseHolder;
+
+	private long leaseExpiresNanos;
+
+	public synchronized long getPromisedProposalNumber() {
+		return promisedProposalNumber;
+	}
+
+	public synchronized long getLastAppliedSlot() {
+		return lastAppliedSlot;
+	}
+
+	public synchronized void setHistorySize(int historySize) {
+		this.historySize = historySize;
+	}
+
+	// Returns false if a higher or equal proposal number was already promised, or another proposer holds a lease
+	public synchronized boolean promise(String proposerID, long proposalNumber) {
+		if(proposalNumber <= this.promisedProposalNumber || getLeaseHolder() != null && !getLeaseHolder().equals(proposerID)) {
+			return false;
+		}
+		this.promisedProposalNumber = proposalNumber;
+		return true;
+	}
+
+	// A restarted acceptor may have granted a lease it doesn't remember, it promises nobody until such a lease has expired
+	public synchronized void holdPromises(long leaseMillis) {
+		this.leaseHolder = "";
+		this.leaseExpiresNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+	}
+
+	// Returns the proposer holding an unexpired lease, or null
+	public synchronized String getLeaseHolder() {
+		return this.leaseHolder != null && System.nanoTime() - this.leaseExpiresNanos < 0 ? this.leaseHolder : null;
+	}
+
+	// Milliseconds until the lease of the current lease holder runs out, rounded up, 0 if there is none
+	public synchronized long getLeaseRemainingMillis() {
+		long remaining = this.leaseExpiresNanos - System.nanoTime();
+		return this.leaseHolder != null && remaining > 0 ? TimeUnit.NANOSECONDS.toMillis(remaining) + 1 : 0;
+	}
+
+	// Grants the proposer a lease for leaseMillis from now, returns false if a higher proposal number was promised
+	// or another proposer holds a lease. Checked and granted under the same lock as promises so no prepare slips in between.
+	public synchronized boolean grantLease(String proposerID, long proposalNumber, long leaseMillis) {
+		if(proposalNumber < this.promisedProposalNumber || getLeaseHolder() != null && !getLeaseHolder().equals(proposerID)) {
+			return false;
+		}
+		this.leaseHolder = proposerID;
+		this.leaseExpiresNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+		return true;
+	}
+
+	// Accepted values of every slot that is not applied yet
+	public synchronized List<Accepted> getAcceptedValues() {
+		return new ArrayList<Accepted>(this.acceptedValues.tailMap(this.lastAppliedSlot, false).values());
+	}
+
+	// Values learned but waiting behind a gap to be applied
+	public synchronized List<Accepted> getLearnedValues() {
+		List<Accepted> learned = new ArrayList<Accepted>();
+		for(Map.Entry<Long, Transaction> entry : this.learnedValues.entrySet()) {
+			Accepted decision = new Accepted();
+			decision.setSlot(entry.getKey());
+			decision.setValue(entry.getValue());
+			learned.add(decision);
+		}
+		return learned;
+	}
+
+	// Values a promise reports for the slots that are not applied yet. A learned value is decided but no longer
+	// among the accepted ones, it is reported with the highest proposal number so a new leader keeps it.
+	public synchronized List<Accepted> getOpenValues() {
+		TreeMap<Long, Accepted> open = new TreeMap<Long, Accepted>(this.acceptedValues.tailMap(this.lastAppliedSlot, false));
+		for(Accepted learned : getLearnedValues()) {
+			learned.setProposalNumber(Long.MAX_VALUE);
+			open.put(learned.getSlot(), learned);
+		}
+		return new ArrayList<Accepted>(open.values());
+	}
+
+	// Returns false if a higher proposal number was promised
+	public synchronized boolean accept(long proposalNumber, long slot, Transaction value) {
+		if(proposalNumber < this.promisedProposalNumber) {
+			return false;
+		}
+		this.promisedProposalNumber = proposalNumber;
+
+		Accepted accepted = new Accepted();
+		accepted.setProposalNumber(proposalNumber);
+		accepted.setSlot(slot);
+		accepted.setValue(value);
+		this.acceptedValues.put(slot, accepted);
+		return true;
+	}
+
+	// Restores a promise read back from the write-ahead log, records may come in any order
+	public synchronized void restorePromise(long proposalNumber) {
+		this.promisedProposalNumber = Math.max(this.promisedProposalNumber, proposalNumber);
+	}
+
+	// Restores an accepted value read back from the write-ahead log, the highest proposal number of a slot wins
+	public synchronized void restoreAccepted(long proposalNumber, long slot, Transaction value) {
+		this.promisedProposalNumber = Math.max(this.promisedProposalNumber, proposalNumber);
+		Accepted previous = this.acceptedValues.get(slot);
+		if(slot <= this.lastAppliedSlot || this.learnedValues.containsKey(slot)
+				|| (previous != null && previous.getProposalNumber() > proposalNumber)) {
+			return;
+		}
+		Accepted accepted = new Accepted();
+		accepted.setProposalNumber(proposalNumber);
+		accepted.setSlot(slot);
+		accepted.setValue(value);
+		this.acceptedValues.put(slot, accepted);
+	}
+
+	// Highest slot this server accepted or learned a value for, a learner that applied less is missing decisions
+	// or still waiting for them
+	public synchronized long getHighestKnownSlot() {
+		long highest = this.lastAppliedSlot;
+		if(!this.learnedValues.isEmpty()) {
+			highest = Math.max(highest, this.learnedValues.lastKey());
+		}
+		if(!this.acceptedValues.isEmpty()) {
+			highest = Math.max(highest, this.acceptedValues.lastKey());
+		}
+		return highest;
+	}
+
+	// True if the slot was applied or learned and is waiting behind a gap
+	public synchronized boolean isLearned(long slot) {
+		return slot <= this.lastAppliedSlot || this.learnedValues.containsKey(slot);
+	}
+
+	// Records a learned value and returns the values that can now be applied in slot order,
+	// or null if the slot was learned before
+	public synchronized List<Transaction> learn(long slot, Transaction value) {
+		if(isLearned(slot)) {
+			return null;
+		}
+		this.learnedValues.put(slot, value);
+		this.acceptedValues.remove(slot);
+
+		return nextApplicable();
+	}
+
+	// Applied values from fromSlot on, at most maxSlots of them.
+	// Returns null if fromSlot is no longer in history and the caller needs a full state transfer.
+	public synchronized List<Accepted> getDecisions(long fromSlot, int maxSlots) {
+		if(fromSlot <= this.lastAppliedSlot && !this.history.containsKey(fromSlot)) {
+			return null;
+		}
+		List<Accepted> decisions = new ArrayList<Accepted>();
+		for(Map.Entry<Long, Transaction> entry : this.history.tailMap(fromSlot, true).entrySet()) {
+			if(decisions.size() >= maxSlots) {
+				break;
+			}
+			Accepted decision = new Accepted();
+			decision.setSlot(entry.getKey());
+			decision.setValue(entry.getValue());
+			decisions.add(decision);
+		}
+		return decisions;
+	}
+
+	// Replaces the value history keeps for an applied slot with one that has the same effect on storage
+	public synchronized void replaceApplied(long slot, Transaction value) {
+		if(this.history.containsKey(slot)) {
+			this.history.put(slot, value);
+		}
+	}
+
+	// Moves the log to a state installed from elsewhere that covers every slot up to the given one.
+	// Returns the values learned meanwhile that can now be applied on top of it.
+	public synchronized List<Transaction> installState(long slot) {
+		this.lastAppliedSlot = slot;
+		this.history.clear();
+		this.acceptedValues.headMap(slot, true).clear();
+		this.learnedValues.headMap(slot, true).clear();
+		return nextApplicable();
+	}
+
+	private List<Transaction> nextApplicable() {
+		List<Transaction> applicable = new ArrayList<Transaction>();
+		Transaction next;
+		while((next = this.learnedValues.remove(this.lastAppliedSlot + 1)) != null) {
+			applicable.add(next);
+			this.lastAppliedSlot++;
+			this.history.put(this.lastAppliedSlot, next);
+		}
+		while(this.history.size() > this.historySize) {
+			this.history.pollFirstEntry();
+		}
+		return applicable;
+	}
+}
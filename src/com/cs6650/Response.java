@@ -1,6 +1,7 @@
 package com.cs6650;
 
 import java.io.Serializable;
+import java.util.List;
 
 //The Response class contains information about the response sent from server to client
 public class Response implements Serializable {
@@ -10,12 +11,18 @@ public class Response implements Serializable {
 	// Type of the request to which server is responding
 	private String type;
 	
-	// return value of the request
+	// Key of one entry of a scan, its value is the return value
+	private String key;
+
+	// return value of the request, for a scan the cursor of its next page
 	private String returnValue;
 	
 	// Message describing what happened on the server side
 	private String message;
 
+	// Responses for the individual keys of a multi-key request, in the order of its keys
+	private List<Response> results;
+
 	public String getType() {
 		return type;
 	}
@@ -24,6 +31,14 @@ public class Response implements Serializable {
 		this.type = type;
 	}
 
+	public String getKey() {
+		return key;
+	}
+
+	public void setKey(String key) {
+		this.key = key;
+	}
+
 	public String getReturnValue() {
 		return returnValue;
 	}
@@ -40,8 +55,19 @@ public class Response implements Serializable {
 		this.message = message;
 	}
 
+	public List<Response> getResults() {
+		return results;
+	}
+
+	public void setResults(List<Response> results) {
+		this.results = results;
+	}
+
 	@Override
 	public String toString() {
+		if(results != null) {
+			return "Response [type=" + type + ", message=" + message + ", results=" + results.size() + "]";
+		}
 		return "Response [type=" + type + ", returnValue=" + returnValue
 				+ ", message=" + message + "]";
 	}
@@ -0,0 +1,78 @@
+package com.cs6650;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+// Spaces out the Paxos rounds of one shard on this server after a round failed, mostly because a proposer on
+// another server got in the way. Every failure draws a random delay below a bound that starts below a millisecond
+// and doubles with every failure in a row, and no round of the shard on this server starts before it passed, so
+// the server backs off as a whole instead of one request at a time. Dueling proposers quickly stop preempting each
+// other, and the first round to succeed resets the bound so an uncontended shard never waits.
+public class RetryBackoff {
+
+	// Upper bound on the doublings, so the shift never overflows
+	private static final int MAX_LEVEL = 20;
+
+	private long baseNanos;
+
+	private long maxNanos;
+
+	// Failed rounds in a row
+	private volatile int contention;
+
+	// Rounds don't start before this System.nanoTime(), valid while contention is above 0
+	private volatile long resumeNanos;
+
+	public RetryBackoff(long baseNanos, long maxNanos) {
+		this.baseNanos = Math.max(1, baseNanos);
+		this.maxNanos = Math.max(this.baseNanos, maxNanos);
+	}
+
+	public synchronized void recordConflict() {
+		int level = Math.min(MAX_LEVEL, this.contention + 1);
+		long bound = Math.min(this.maxNanos, this.baseNanos << (level - 1));
+		defer(System.nanoTime() + ThreadLocalRandom.current().nextLong(bound));
+		this.contention = level;
+	}
+
+	// Holds rounds back until resumeNanos of System.nanoTime, for a wait known in advance such as a lease of
+	// another proposer running out. A later resume time set before is kept.
+	public synchronized void deferUntil(long resumeNanos) {
+		defer(resumeNanos);
+		this.contention = Math.max(1, this.contention);
+	}
+
+	private void defer(long resumeNanos) {
+		if(this.contention == 0 || resumeNanos - this.resumeNanos > 0) {
+			this.resumeNanos = resumeNanos;
+		}
+	}
+
+	// Called for every decided round, only writes when the shard was contended
+	public void recordSuccess() {
+		if(this.contention != 0) {
+			this.contention = 0;
+		}
+	}
+
+	public int getContention() {
+		return contention;
+	}
+
+	// Nanoseconds until the next round may start
+	public long delayNanos() {
+		return this.contention > 0 ? this.resumeNanos - System.nanoTime() : 0;
+	}
+
+	// Waits until the next round may start, but never past the deadline. Parks instead of sleeping, Thread.sleep
+	// rounds delays below a millisecond up to a whole one
+	public void await(long deadlineNanos) throws InterruptedException {
+		long until = System.nanoTime() + Math.min(delayNanos(), deadlineNanos - System.nanoTime());
+		for(long delay = until - System.nanoTime(); delay > 0; delay = until - System.nanoTime()) {
+			LockSupport.parkNanos(this, delay);
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+}
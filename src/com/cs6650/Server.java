@@ -4,32 +4,52 @@ import java.net.*;
 import java.rmi.AccessException;
 import java.rmi.AlreadyBoundException;
 import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.time.Clock;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 import java.io.*; 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Server extends UnicastRemoteObject implements DatastoreInterface
 { 
 
 	private static final long serialVersionUID = 1L;
 
-	private String serverID;
+	// Forwards of one transaction before this server proposes it itself, a leader can be preempted before the
+	// transaction reaches it and then declines it
+	private static final int MAX_FORWARDS = 3;
+
+	// How often a transaction backing off checks whether another server confirmed it leads the shard
+	private static final long LEADER_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
 
-	// Stores all the data sent from the client
-	private HashMap<String,String> storage = new HashMap<String, String>();
+	private String serverID;
 
 	// Server log is stored in logs folder
 	public Logger logger;
@@ -38,27 +58,125 @@ public class Server extends UnicastRemoteObject implements DatastoreInterface
 
 	private int port;
 
-	private long previousProposalNumber;
+	// Routes every key to one of the shards
+	private ShardMap shardMap = new ShardMap(1);
+
+	// Every shard runs its own Paxos log with its own leader and holds its part of the data sent from the client
+	private Shard[] shards;
+
+	// Storage engine every shard keeps its entries in
+	private String storageEngine = "skiplist";
+
+	// Size of the segment files of the mapped storage engine
+	private long mappedSegmentBytes = 64L * 1024 * 1024;
+
+	// Bounds of one page of a scan, a page stops at whichever is reached first
+	private int maxScanEntries = 1000;
+
+	private int maxScanChars = 1 << 20;
+
+	// Granularity of the expiry timer wheels and how many expired keys the leader removes in one Paxos value
+	private long expiryTickMillis = 100;
+
+	private int maxExpireBatch = 1000;
+
+	// A follower proposes the removal of entries the leader left expired for this long, the leader may be gone
+	private long expiryTakeoverMillis = 5000;
+
+	// Streams applied changes to watch subscriptions
+	private ChangeFeed changeFeed = new ChangeFeed(10000, 1000, 60000);
+
+	// Serves chunked state transfers to joining servers
+	private StateTransferSource stateTransferSource = new StateTransferSource(1 << 20, 60000);
+
+	// Entries per chunk and slots per catch-up request this server asks for when it joins
+	private int stateTransferChunkSize = 1000;
+
+	private int catchUpBatchSize = 500;
+
+	// Bounds the slots per second the background catch-up applies so it doesn't starve client requests, null when unlimited
+	private RateLimiter catchUpLimiter;
+
+	// Peer the next background catch-up of an idle shard asks, rotates so every peer is compared in turn
+	private int catchUpPeer;
+
+	// Multi-Paxos: the distinguished proposer skips prepare while its proposal number is not preempted
+	private boolean multiPaxosEnabled = true;
+
+	// Slots every shard proposes concurrently
+	private int pipelineWindow = 32;
+
+	// Resolved stubs of the current membership
+	private PeerDirectory peers;
+
+	// Sends every Paxos phase to all servers in parallel
+	private QuorumCaller quorumCaller;
 
-	private Transaction previousAcceptedValue;
+	// How long each phase waits for a majority of answers
+	private long prepareTimeoutMillis = 1000;
 
-	private long lastLearnedProposalNumber;
+	private long acceptTimeoutMillis = 1000;
+
+	private long learnTimeoutMillis = 1000;
+
+	// Batching window of every shard, 0 when batching is disabled
+	private long batchWindowMillis;
+
+	private int maxBatchSize;
+
+	// Applied slots every shard keeps for servers catching up
+	private int historySize = 100000;
+
+	// Serves the binary wire protocol next to RMI, null when the RMI transport is used
+	private NioTransportServer transportServer;
 
 	// This value is configurable for random acceptor failures
 	private long randomAcceptorFailureNumber = 81l;
 
 	private int maxPaxosRetrys = 3;
 
+	// Retries of a Paxos round that lost against another proposer wait a random delay below a bound that starts at
+	// the base and doubles up to the maximum, a write gives up once the timeout passed
+	private long retryBaseNanos = TimeUnit.MICROSECONDS.toNanos(250);
+
+	private long retryMaxNanos = TimeUnit.MILLISECONDS.toNanos(200);
+
+	private long retryTimeoutMillis = 3000;
+
+	// Reads wait for a read index confirmed by the leader's lease, off serves local storage as it is
+	private boolean leaseReads;
+
+	// How long a lease granted by the acceptors lasts, and how much of it the leader gives up for clock drift
+	private long leaseMillis = 2000;
+
+	private long leaseDriftMillis = 200;
+
+	// Renews the leases, null without lease reads
+	private ScheduledExecutorService leaseRenewer;
+
+	// A follower reads locally if the leader's commit slot it applied is at most this old, 0 asks the leader every time
+	private long maxStalenessMillis;
+
+	// How long a read waits for this server to apply up to its read index
+	private long readTimeoutMillis = 1000;
+
+	// Expiry times are taken from this clock, a simulated cluster gives every server a skewed one
+	private Clock clock = Clock.systemUTC();
+
 	protected Server(String serverID, Registry registry, int port) throws RemoteException {
 		super();
 		this.serverID = serverID;
 		this.registry = registry;
 		this.logger = getLogger("logs/"+serverID+"_server.log");
 		this.port = port;
+		this.peers = new PeerDirectory(registry, logger, this);
+		this.quorumCaller = new QuorumCaller(this.peers, logger, 16);
+		this.shards = newShards(1);
 	}
 
 	public void registerNewServer(String currentServerID, DatastoreInterface server) throws RemoteException{
 		this.registry.rebind(currentServerID, server);
+		this.peers.refresh();
 		this.logger.info("Registered new server: "+currentServerID);
 	}
 
@@ -70,270 +188,1770 @@ public class Server extends UnicastRemoteObject implements DatastoreInterface
 		this.serverID = serverID;
 	}
 
+	// Entries of every shard
 	public HashMap<String, String> getStorage() throws RemoteException {
+		HashMap<String, String> storage = new HashMap<String, String>();
+		for(Shard shard : this.shards) {
+			Iterator<Map.Entry<String, String>> entries = shard.getStorage().scan(null, null);
+			while(entries.hasNext()) {
+				Map.Entry<String, String> entry = entries.next();
+				storage.put(entry.getKey(), entry.getValue());
+			}
+		}
 		return storage;
 	}
 
 	public void setStorage(HashMap<String, String> storage) {
-		this.storage = storage;
+		for(Shard shard : this.shards) {
+			installStorage(shard, newStorageEngine(shard), new ConcurrentHashMap<String, Long>());
+		}
+		for(Map.Entry<String, String> entry : storage.entrySet()) {
+			shardFor(entry.getKey()).getStorage().put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	// Splits the key space into the given number of shards, every server of the cluster needs the same count.
+	// Replaces the shards and their state, so it is called before the server opens persistence or serves requests.
+	public void setShardCount(int shardCount) {
+		this.shardMap = new ShardMap(shardCount);
+		this.shards = newShards(shardCount);
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	// Replaces the storage of every shard with an empty one of the given engine, called before persistence is opened.
+	// Segment bytes only matter to the mapped engine.
+	public void setStorageEngine(String storageEngine, long mappedSegmentBytes) {
+		this.storageEngine = storageEngine;
+		this.mappedSegmentBytes = mappedSegmentBytes;
+		for(Shard shard : this.shards) {
+			installStorage(shard, newStorageEngine(shard), new ConcurrentHashMap<String, Long>());
+		}
+	}
+
+	// Replaces the entries of the shard and their expiries, the expiry wheel is rebuilt from them
+	private void installStorage(Shard shard, StorageEngine storage, ConcurrentHashMap<String, Long> expirations) {
+		TimerWheel expiryWheel = new TimerWheel(this.expiryTickMillis);
+		long now = this.clock.millis();
+		for(Map.Entry<String, Long> expiration : expirations.entrySet()) {
+			expiryWheel.schedule(expiration.getKey(), expiration.getValue(), now);
+		}
+		// Mapped storage that was persisted is still what a restart recovers from until a snapshot covers its replacement
+		StorageEngine previous = shard.getStorage();
+		if(previous != storage && previous instanceof MappedStorageEngine) {
+			if(((MappedStorageEngine) previous).isPersistent()) {
+				shard.getSupersededStorage().add((MappedStorageEngine) previous);
+			}
+			else {
+				((MappedStorageEngine) previous).destroy();
+			}
+		}
+		shard.setStorage(storage);
+		shard.setExpirations(expirations);
+		shard.setExpiryWheel(expiryWheel);
+		shard.getExpiredKeys().clear();
+	}
+
+	// Starts expiring entries put with a TTL. Every tickMillis each shard's timer wheel is advanced, and the leader
+	// of a shard removes its expired keys through Paxos, up to maxExpireBatch of them in one value.
+	public void setExpiration(long tickMillis, int maxExpireBatch, long takeoverMillis) {
+		this.expiryTickMillis = tickMillis;
+		this.maxExpireBatch = maxExpireBatch;
+		this.expiryTakeoverMillis = takeoverMillis;
+		for(Shard shard : this.shards) {
+			synchronized(shard.getApplyLock()) {
+				installStorage(shard, shard.getStorage(), shard.getExpirations());
+			}
+		}
+
+		ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "expirer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		expirer.scheduleWithFixedDelay(this::expireEntries, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// A mapped engine of a shard with persistence keeps its segments in the shard's folder, shard may be null
+	private StorageEngine newStorageEngine(Shard shard) {
+		if(this.storageEngine.equals("skiplist")) {
+			return new SkipListStorageEngine();
+		}
+		if(this.storageEngine.equals("compact")) {
+			return new CompactStorageEngine();
+		}
+		if(this.storageEngine.equals("mapped")) {
+			return new MappedStorageEngine(shard != null ? shard.getDirectory() : null, this.mappedSegmentBytes);
+		}
+		throw new IllegalArgumentException("Unknown storage engine "+this.storageEngine);
+	}
+
+	public void setScanLimits(int maxScanEntries, int maxScanChars) {
+		this.maxScanEntries = maxScanEntries;
+		this.maxScanChars = maxScanChars;
+	}
+
+	// 0 turns the random acceptor failures off
+	public void setRandomAcceptorFailureNumber(long randomAcceptorFailureNumber) {
+		this.randomAcceptorFailureNumber = randomAcceptorFailureNumber;
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	public boolean isMultiPaxosEnabled() {
+		return multiPaxosEnabled;
+	}
+
+	public void setMultiPaxosEnabled(boolean multiPaxosEnabled) {
+		this.multiPaxosEnabled = multiPaxosEnabled;
+	}
+
+	public void setPipelineWindow(int pipelineWindow) {
+		this.pipelineWindow = pipelineWindow;
+		for(Shard shard : this.shards) {
+			shard.setPipelineWindow(pipelineWindow);
+			if(shard.getBatcher() != null) {
+				shard.getBatcher().setPipelineWindow(pipelineWindow);
+			}
+		}
+	}
+
+	public void setFanoutThreads(int fanoutThreads) {
+		this.quorumCaller = new QuorumCaller(this.peers, this.logger, fanoutThreads);
+	}
+
+	public void setPhaseTimeouts(long prepareTimeoutMillis, long acceptTimeoutMillis, long learnTimeoutMillis) {
+		this.prepareTimeoutMillis = prepareTimeoutMillis;
+		this.acceptTimeoutMillis = acceptTimeoutMillis;
+		this.learnTimeoutMillis = learnTimeoutMillis;
+	}
+
+	// A window of 0 milliseconds disables batching, every shard batches its own writes
+	public void setBatching(long windowMillis, int maxBatchSize) {
+		this.batchWindowMillis = windowMillis;
+		this.maxBatchSize = maxBatchSize;
+		for(Shard shard : this.shards) {
+			shard.setBatcher(windowMillis > 0 ? new ProposalBatcher(this, windowMillis, maxBatchSize, this.pipelineWindow) : null);
+		}
+	}
+
+	// Every shard backs off on its own, contention in one shard doesn't slow the retries of another
+	public void setRetryBackoff(long baseMicros, long maxMillis, long timeoutMillis) {
+		this.retryBaseNanos = TimeUnit.MICROSECONDS.toNanos(baseMicros);
+		this.retryMaxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+		this.retryTimeoutMillis = timeoutMillis;
+		for(Shard shard : this.shards) {
+			shard.setRetryBackoff(new RetryBackoff(this.retryBaseNanos, this.retryMaxNanos));
+		}
+	}
+
+	private Shard[] newShards(int shardCount) {
+		Shard[] shards = new Shard[shardCount];
+		for(int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard(i, this.pipelineWindow, newStorageEngine(null));
+			shards[i].getLog().setHistorySize(this.historySize);
+			shards[i].setRetryBackoff(new RetryBackoff(this.retryBaseNanos, this.retryMaxNanos));
+			if(this.batchWindowMillis > 0) {
+				shards[i].setBatcher(new ProposalBatcher(this, this.batchWindowMillis, this.maxBatchSize, this.pipelineWindow));
+			}
+		}
+		return shards;
+	}
+
+	private Shard shardFor(String key) {
+		return this.shards[this.shardMap.shardOf(key)];
+	}
+
+	// A batch holds keys of one shard only
+	private Shard shardFor(Transaction transaction) {
+		Transaction first = transaction;
+		while(first.getType().equals("batch")) {
+			first = first.getTransactions().get(0);
+		}
+		return shardFor(first.getKey());
+	}
+
+	// Paxos messages name their shard, servers with another shard count reject them
+	private Shard shard(int shard) throws RemoteException {
+		if(shard < 0 || shard >= this.shards.length) {
+			throw new RemoteException("Shard "+shard+" does not exist, this server runs "+this.shards.length+" shards");
+		}
+		return this.shards[shard];
+	}
+
+	// Serves this server over the NIO transport at its RMI port plus portOffset and sends messages to
+	// other servers over theirs, RMI stays up for discovery and registration
+	public void startNioTransport(int portOffset, int clientThreads, int paxosThreads, int watchThreads, long requestTimeoutMillis) throws IOException {
+		BufferPool bufferPool = new BufferPool(16 * 1024, 1024);
+		this.transportServer = new NioTransportServer(this, bufferPool, clientThreads, paxosThreads, watchThreads, this.logger);
+		this.transportServer.start(this.port + portOffset);
+		this.peers.useNioTransport(portOffset, bufferPool, requestTimeoutMillis);
+	}
+
+	// Loads the newest snapshot and replays the write-ahead log after it, then keeps appending to the log
+	// and snapshots storage every snapshotIntervalSlots applied slots. With more than one shard every shard
+	// keeps its log and snapshots in its own folder under directory.
+	public void openPersistence(File directory, WriteAheadLog.SyncPolicy syncPolicy, long syncIntervalMillis, long snapshotIntervalSlots) throws IOException {
+		for(Shard shard : this.shards) {
+			openPersistence(shard, this.shards.length == 1 ? directory : new File(directory, "shard_"+shard.getId()), syncPolicy, syncIntervalMillis);
+		}
+
+		ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "snapshotter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		snapshotter.scheduleWithFixedDelay(() -> {
+			for(Shard shard : this.shards) {
+				if(shard.getLog().getLastAppliedSlot() - shard.getLastSnapshotSlot() >= snapshotIntervalSlots) {
+					takeSnapshot(shard);
+				}
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	private void openPersistence(Shard shard, File directory, WriteAheadLog.SyncPolicy syncPolicy, long syncIntervalMillis) throws IOException {
+		ReplicatedLog log = shard.getLog();
+		shard.setDirectory(directory);
+		shard.setSnapshots(new SnapshotStore(directory, this.logger));
+
+		// Mapped storage restarts from its checkpoint unless a snapshot is newer, another engine gets a copy of its entries
+		ConcurrentHashMap<String, Long> loadedExpirations = new ConcurrentHashMap<String, Long>();
+		MappedStorageEngine checkpointed = MappedStorageEngine.recover(directory, this.mappedSegmentBytes, loadedExpirations, this.logger);
+		StorageEngine loaded;
+		long loadedSlot;
+		if(checkpointed != null && checkpointed.getCheckpointSlot() >= shard.getSnapshots().getLatestSlot()) {
+			loadedSlot = checkpointed.getCheckpointSlot();
+			loaded = checkpointed;
+			if(!this.storageEngine.equals("mapped")) {
+				loaded = newStorageEngine(shard);
+				Iterator<Map.Entry<String, String>> entries = checkpointed.scan(null, null);
+				while(entries.hasNext()) {
+					Map.Entry<String, String> entry = entries.next();
+					loaded.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		else {
+			if(checkpointed != null) {
+				checkpointed.destroy();
+			}
+			loaded = newStorageEngine(shard);
+			loadedSlot = shard.getSnapshots().loadLatest(loaded, loadedExpirations);
+		}
+		installStorage(shard, loaded, loadedExpirations);
+		if(loadedSlot > 0) {
+			log.installState(loadedSlot);
+			shard.setLastSnapshotSlot(loadedSlot);
+		}
+
+		WriteAheadLog wal = new WriteAheadLog(directory, syncPolicy, syncIntervalMillis, this.logger);
+		wal.open(new WriteAheadLog.Replayer() {
+			public void promise(long proposalNumber) {
+				log.restorePromise(proposalNumber);
+			}
+
+			public void accept(long proposalNumber, long slot, Transaction value) {
+				log.restoreAccepted(proposalNumber, slot, value);
+			}
+
+			public void learn(long slot, Transaction value) {
+				List<Transaction> applicable = log.learn(slot, value);
+				if(applicable != null) {
+					apply(shard, applicable);
+				}
+			}
+		});
+		shard.setWal(wal);
+		logger.info("Recovered Paxos log of shard "+shard.getId()+" up to slot "+log.getLastAppliedSlot());
+	}
+
+	// Writes a snapshot of every shard
+	public void takeSnapshot() {
+		for(Shard shard : this.shards) {
+			takeSnapshot(shard);
+		}
+	}
+
+	// Writes a snapshot of storage and deletes the write-ahead log segments it covers
+	private void takeSnapshot(Shard shard) {
+		if(shard.getSnapshots() == null) {
+			return;
+		}
+		synchronized(shard.getSnapshotLock()) {
+			try {
+				// Acceptor state and values waiting behind a gap are logged again in the new segment so the closed ones
+				// are only needed for applied values
+				WriteAheadLog wal = shard.getWal();
+				wal.roll();
+				wal.logPromise(shard.getLog().getPromisedProposalNumber());
+				for(Accepted accepted : shard.getLog().getAcceptedValues()) {
+					wal.logAccept(accepted.getProposalNumber(), accepted.getSlot(), accepted.getValue());
+				}
+				for(Accepted learned : shard.getLog().getLearnedValues()) {
+					wal.logLearn(learned.getSlot(), learned.getValue());
+				}
+
+				long slot;
+				StorageEngine storage;
+				List<MappedStorageEngine> superseded;
+				synchronized(shard.getApplyLock()) {
+					slot = shard.getLog().getLastAppliedSlot();
+					storage = shard.getStorage();
+					superseded = new ArrayList<MappedStorageEngine>(shard.getSupersededStorage());
+				}
+				// Mapped storage only forces its segments to disk and records them, the entries aren't written again
+				if(storage instanceof MappedStorageEngine && ((MappedStorageEngine) storage).isPersistent()) {
+					((MappedStorageEngine) storage).checkpoint(slot, shard.getExpirations());
+				}
+				else {
+					shard.getSnapshots().write(slot, storage, shard.getExpirations());
+				}
+				wal.deleteSegmentsUpTo(slot);
+				shard.setLastSnapshotSlot(slot);
+				for(MappedStorageEngine replaced : superseded) {
+					replaced.destroy();
+				}
+				shard.getSupersededStorage().removeAll(superseded);
+			}
+			catch(IOException e) {
+				logger.log(Level.SEVERE, "Could not write snapshot of shard "+shard.getId(), e);
+			}
+		}
+	}
+
+	public void setStateTransfer(int chunkSize, int maxChunkChars, int catchUpBatchSize, int historySize) {
+		this.stateTransferChunkSize = chunkSize;
+		this.stateTransferSource = new StateTransferSource(maxChunkChars, 60000);
+		this.catchUpBatchSize = catchUpBatchSize;
+		this.historySize = historySize;
+		for(Shard shard : this.shards) {
+			shard.getLog().setHistorySize(historySize);
+		}
+	}
+
+	// Turns on linearizable reads. The leader of every shard renews a lease with a quorum of acceptors every
+	// third of leaseMillis, acceptors promise no other proposer while the lease lasts.
+	public void setLeaseReads(long leaseMillis, long leaseDriftMillis, long maxStalenessMillis, long readTimeoutMillis) {
+		this.leaseReads = true;
+		this.leaseMillis = leaseMillis;
+		this.leaseDriftMillis = leaseDriftMillis;
+		this.maxStalenessMillis = maxStalenessMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		for(Shard shard : this.shards) {
+			shard.getLog().holdPromises(leaseMillis);
+		}
+
+		this.leaseRenewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "lease-renewer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.leaseRenewer.scheduleWithFixedDelay(this::renewLeases, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
 	}
 
+	// Turns on background catch-up. Every intervalMillis a shard that applied nothing since the last check pulls
+	// the decisions it is missing from its peers in batches, at most slotsPerSecond of them, 0 for no limit.
+	public void setCatchUp(long intervalMillis, double slotsPerSecond) {
+		this.catchUpLimiter = slotsPerSecond > 0 ? new RateLimiter(slotsPerSecond) : null;
+
+		ScheduledExecutorService catchUpRunner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "catch-up");
+			thread.setDaemon(true);
+			return thread;
+		});
+		catchUpRunner.scheduleWithFixedDelay(this::catchUpIdleShards, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// Bounds the changes buffered per watch subscription, the slots a lagging subscription reads back from the log
+	// history at a time, and how long a subscription lasts without being polled
+	public void setWatch(int bufferSize, int replaySlots, long idleMillis) {
+		this.changeFeed = new ChangeFeed(bufferSize, replaySlots, idleMillis);
+	}
 
-	public synchronized Response get(String key) throws RemoteException {
-		logger.info("Request Query [type=" + "get" + ", key=" + key + "]");
+	public PeerDirectory getPeers() {
+		return peers;
+	}
+
+	public String getLeaderID(int shard) throws RemoteException {
+		return shard(shard).getLeaderID();
+	}
+
+
+	public Response get(String key) throws RemoteException {
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Request Query [type=" + "get" + ", key=" + key + "]");
+		}
 
 		Response response = new Response();
 		response.setType("get");
 
-		if(!storage.containsKey(key)){
-			response.setReturnValue(null);
+		Shard shard = shardFor(key);
+		if(!awaitReadable(shard)) {
+			response.setMessage("Request timed out");
+			return response;
+		}
+
+		String val = isExpired(shard, key) ? null : shard.getStorage().get(key);
+		response.setReturnValue(val);
+		if(val == null){
 			response.setMessage("key "+key+" does not exist in the storage");
 		}
 		else {
-			String val = storage.get(key);
-			response.setReturnValue(val);
 			response.setMessage("successfully retrieved entry from storage");
 		}	
 
-		logger.info(response.toString());
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine(response.toString());
+		}
 		return response;
 	}
 
 
 	public Response put(String key, String value) throws RemoteException {
-		logger.info("Request Query [type=" + "put" + ", key=" + key + ", value=" + value + "]");
+		return put(key, value, 0);
+	}
+
+	// The entry expires ttlMillis after this server received the put, 0 keeps it until it is deleted
+	public Response put(String key, String value, long ttlMillis) throws RemoteException {
+		logger.info("Request Query [type=" + "put" + ", key=" + key + ", value=" + value + (ttlMillis > 0 ? ", ttl=" + ttlMillis : "") + "]");
 		Transaction transaction = new Transaction();
 		transaction.setType("put");
 		transaction.setKey(key);
 		transaction.setValue(value);
+		if(ttlMillis > 0) {
+			transaction.setExpiresAt(this.clock.millis() + ttlMillis);
+		}
+
+		logger.info("Invoking Proposer");
+
+		Response response = new Response();
+		response.setType("put");
+		response.setReturnValue(null);
+
+		try {
+			submit(shardFor(key), transaction);
+			response.setMessage("Successfully inserted the entry in the datastore");
+		}
+		catch(TimeoutException e) {
+			response.setMessage("Request timed out");
+		}
+
+		logger.info(response.toString());	
+		return response;
+	}
+
+	public Response delete(String key) throws RemoteException {
+		logger.info("Request Query [type=" + "delete" + ", key=" + key + "]");
+		Transaction transaction = new Transaction();
+		transaction.setType("delete");
+		transaction.setKey(key);
+		transaction.setValue(null);
 
 		logger.info("Invoking Proposer");
+		Response response = new Response();
+		response.setType("delete");
+		response.setReturnValue(null);
+
+		try{
+			submit(shardFor(key), transaction);
+			response.setMessage("Successfully deleted the entry from the datastore");
+		}
+		catch(TimeoutException e) {
+			response.setMessage("Request timed out");
+		}
+
+		logger.info(response.toString());
+		return response;
+
+	}
+
+	// Reads every key from local storage, results are in the order of the keys
+	public Response multiGet(List<String> keys) throws RemoteException {
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Request Query [type=" + "multiget" + ", keys=" + keys.size() + "]");
+		}
+
+		// Every shard is checked once, not once per key
+		Map<Shard, Boolean> readable = new HashMap<Shard, Boolean>();
+		List<Response> results = new ArrayList<Response>(keys.size());
+		int found = 0;
+		for(String key : keys) {
+			Response result = new Response();
+			result.setType("get");
+			Shard shard = shardFor(key);
+			if(!readable.computeIfAbsent(shard, this::awaitReadable)) {
+				result.setMessage("Request timed out");
+				results.add(result);
+				continue;
+			}
+			String val = isExpired(shard, key) ? null : shard.getStorage().get(key);
+			result.setReturnValue(val);
+			if(val == null){
+				result.setMessage("key "+key+" does not exist in the storage");
+			}
+			else {
+				result.setMessage("successfully retrieved entry from storage");
+				found++;
+			}
+			results.add(result);
+		}
+
+		Response response = new Response();
+		response.setType("multiget");
+		response.setResults(results);
+		response.setMessage("successfully retrieved "+found+" of "+keys.size()+" entries from storage");
+		return response;
+	}
+
+	// Returns the next page of the entries from startKey (inclusive) to endKey (exclusive) in key order, null
+	// bounds are open. Keys are spread over the shards by hash, so the sorted entries of every shard are merged
+	// and only one page is ever held in memory. The page holds at most limit entries, fewer if the server's page
+	// bounds are lower. Its return value is the cursor of the next page, null once the range is exhausted.
+	public Response scan(String startKey, String endKey, int limit, String cursor) throws RemoteException {
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Request Query [type=" + "scan" + ", startKey=" + startKey + ", endKey=" + endKey + ", limit=" + limit + ", cursor=" + cursor + "]");
+		}
+
+		Response response = new Response();
+		response.setType("scan");
+		for(Shard shard : this.shards) {
+			if(!awaitReadable(shard)) {
+				response.setMessage("Request timed out");
+				return response;
+			}
+		}
+
+		// The cursor is the last key already returned, a page continues right after it
+		String from = cursor != null ? cursor : startKey;
+		PriorityQueue<ScanSource> sources = new PriorityQueue<ScanSource>();
+		for(Shard shard : this.shards) {
+			ScanSource source = new ScanSource(shard, shard.getStorage().scan(from, endKey));
+			if(source.advance(cursor)) {
+				sources.add(source);
+			}
+		}
+
+		int maxEntries = limit > 0 ? Math.min(limit, this.maxScanEntries) : this.maxScanEntries;
+		List<Response> results = new ArrayList<Response>();
+		int chars = 0;
+		while(!sources.isEmpty() && results.size() < maxEntries && chars < this.maxScanChars) {
+			ScanSource source = sources.poll();
+			Response result = new Response();
+			result.setType("get");
+			result.setKey(source.head.getKey());
+			result.setReturnValue(source.head.getValue());
+			results.add(result);
+			chars += source.head.getKey().length() + source.head.getValue().length();
+			if(source.advance(null)) {
+				sources.add(source);
+			}
+		}
+
+		response.setResults(results);
+		response.setReturnValue(!sources.isEmpty() ? results.get(results.size() - 1).getKey() : null);
+		response.setMessage("successfully retrieved "+results.size()+" entries from storage"+(sources.isEmpty() ? "" : ", more entries follow"));
+		return response;
+	}
+
+	// Sorted entries of one shard during a scan, ordered by the key at its head
+	private class ScanSource implements Comparable<ScanSource> {
+
+		private Shard shard;
+
+		private Iterator<Map.Entry<String, String>> entries;
+
+		private Map.Entry<String, String> head;
+
+		private ScanSource(Shard shard, Iterator<Map.Entry<String, String>> entries) {
+			this.shard = shard;
+			this.entries = entries;
+		}
+
+		// Moves to the next live entry, skipping the given key, returns false once the shard has no more entries
+		private boolean advance(String skippedKey) {
+			while(this.entries.hasNext()) {
+				Map.Entry<String, String> entry = this.entries.next();
+				if(!entry.getKey().equals(skippedKey) && !isExpired(this.shard, entry.getKey())) {
+					// Copied so the page doesn't depend on how the engine reuses its entries
+					this.head = new AbstractMap.SimpleImmutableEntry<String, String>(entry);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public int compareTo(ScanSource other) {
+			return this.head.getKey().compareTo(other.head.getKey());
+		}
+	}
+
+	// Subscribes to the changes of the keys starting with prefix, from the slots after fromSlots or from now if it is null.
+	// Positions are the same on every server, a subscriber can carry on with the positions of its last batch elsewhere.
+	public ChangeBatch watch(String prefix, long[] fromSlots) throws RemoteException {
+		if(fromSlots != null && fromSlots.length != this.shards.length) {
+			throw new RemoteException("Watch positions are for "+fromSlots.length+" shards, this server has "+this.shards.length);
+		}
+		ChangeBatch subscription = this.changeFeed.subscribe(this.shards, prefix, fromSlots);
+		logger.info("Watch "+subscription.getSubscriptionID()+" subscribed to prefix "+prefix+" after slots "+Arrays.toString(subscription.getPositions()));
+		return subscription;
+	}
+
+	// Returns the next changes of a watch, waiting up to waitMillis for one. A subscriber polls again once it
+	// processed a batch, changes that arrive meanwhile are buffered up to a bound and read back from the log after it.
+	public ChangeBatch pollChanges(long subscriptionID, int maxChanges, long waitMillis) throws RemoteException {
+		ChangeBatch batch;
+		try {
+			batch = this.changeFeed.poll(this.shards, subscriptionID, maxChanges, waitMillis);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for changes");
+		}
+		if(batch == null) {
+			throw new RemoteException("Unknown watch "+subscriptionID+", it was cancelled or not polled for "+this.changeFeed.getIdleMillis()+" ms");
+		}
+		if(batch.isCompacted()) {
+			logger.info("Watch "+subscriptionID+" fell behind the log history and was closed");
+		}
+		return batch;
+	}
+
+	public void cancelWatch(long subscriptionID) throws RemoteException {
+		this.changeFeed.cancel(subscriptionID);
+	}
+
+	// Waits until local storage of the shard holds every write acknowledged before the read started,
+	// returns false if that couldn't be confirmed in time. Without lease reads storage is read as it is.
+	private boolean awaitReadable(Shard shard) {
+		if(!this.leaseReads) {
+			return true;
+		}
+		if(this.maxStalenessMillis > 0 && !shard.holdsLease()) {
+			// Bounded staleness: the last commit slot the leader sent is recent and applied here
+			long knownCommitNanos = shard.getKnownCommitNanos();
+			if(knownCommitNanos != 0 && System.nanoTime() - knownCommitNanos <= TimeUnit.MILLISECONDS.toNanos(this.maxStalenessMillis)
+					&& shard.getLog().getLastAppliedSlot() >= shard.getKnownCommitSlot()) {
+				return true;
+			}
+		}
+		try {
+			return awaitApplied(shard, readIndex(shard));
+		}
+		catch(RemoteException e) {
+			logger.info("Could not get a read index for shard "+shard.getId()+": "+e.getMessage());
+			return false;
+		}
+	}
+
+	// Commit slot of the leader, confirmed by its lease or else by a round through a quorum
+	private long readIndex(Shard shard) throws RemoteException {
+		if(shard.holdsLease()) {
+			return shard.getCommitSlot().get();
+		}
+		Long index = remoteReadIndex(shard);
+		if(index != null) {
+			return index;
+		}
+		try {
+			return getReadIndex(shard.getId());
+		}
+		catch(RemoteException e) {
+			// A prepare declined by a lease names the holder, which can still give the index
+			index = remoteReadIndex(shard);
+			if(index == null) {
+				throw e;
+			}
+			return index;
+		}
+	}
+
+	// Returns null if the leader is unknown, this server, or could not give a read index
+	private Long remoteReadIndex(Shard shard) {
+		String leader = shard.getLeaderID();
+		DatastoreInterface server = leader != null && !leader.equals(this.serverID) ? this.peers.getSnapshot().getStub(leader) : null;
+		if(server == null) {
+			return null;
+		}
+		try {
+			return server.getReadIndex(shard.getId());
+		}
+		catch(RemoteException e) {
+			this.peers.reportFailure(leader, e);
+			logger.info("Leader "+leader+" could not give a read index, confirming one here");
+			return null;
+		}
+	}
+
+	public long getReadIndex(int shard) throws RemoteException {
+		Shard target = shard(shard);
+		if(target.holdsLease()) {
+			return target.getCommitSlot().get();
+		}
+
+		// Without a lease a no-op decided with this server's proposal number shows no other proposer took over
+		long proposalNumber = target.getLeaderProposalNumber();
+		if(!this.multiPaxosEnabled || proposalNumber == 0) {
+			proposalNumber = runPrepare(target);
+		}
+		if(proposalNumber == 0) {
+			throw new RemoteException("Could not confirm a read index for shard "+shard);
+		}
+		Transaction noop = new Transaction();
+		noop.setType("noop");
+		if(!runAccept(target, proposalNumber, target.getNextSlot().getAndIncrement(), noop)) {
+			if(target.getLeaderProposalNumber() == proposalNumber) {
+				target.setLeaderProposalNumber(0);
+			}
+			throw new RemoteException("Could not confirm a read index for shard "+shard+", proposal "+proposalNumber+" was preempted");
+		}
+		return target.getCommitSlot().get();
+	}
+
+	// Returns false if the shard didn't apply up to the slot within the read timeout. A slot still missing after a
+	// tenth of the timeout most likely lost its learn message, the read then fetches the decisions from the leader
+	// instead of waiting for the background catch-up.
+	private boolean awaitApplied(Shard shard, long slot) {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(this.readTimeoutMillis);
+		long fetchAt = start + TimeUnit.MILLISECONDS.toNanos(this.readTimeoutMillis) / 10;
+		boolean fetched = false;
+		while(true) {
+			synchronized(shard.getApplyLock()) {
+				while(shard.getLog().getLastAppliedSlot() < slot) {
+					long remaining = (fetched ? deadline : fetchAt) - System.nanoTime();
+					if(remaining <= 0) {
+						break;
+					}
+					try {
+						TimeUnit.NANOSECONDS.timedWait(shard.getApplyLock(), remaining);
+					}
+					catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				if(shard.getLog().getLastAppliedSlot() >= slot) {
+					return true;
+				}
+			}
+			if(fetched) {
+				logger.info("Shard "+shard.getId()+" did not apply up to read index "+slot+" in time");
+				return false;
+			}
+			fetched = true;
+			fetchMissingDecisions(shard);
+		}
+	}
+
+	// Applies one batch of the decisions the leader has after the shard's last applied slot, unless this server
+	// leads the shard or another read is already fetching them
+	private void fetchMissingDecisions(Shard shard) {
+		String leader = shard.getLeaderID();
+		DatastoreInterface source = leader != null && !leader.equals(this.serverID) ? this.peers.getSnapshot().getStub(leader) : null;
+		if(source == null || !shard.getFetchingDecisions().compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			for(Accepted decision : source.getDecisions(shard.getId(), shard.getLog().getLastAppliedSlot() + 1, this.catchUpBatchSize)) {
+				learn(shard, decision.getSlot(), decision.getValue());
+			}
+		}
+		catch(RemoteException e) {
+			// Also when the leader no longer keeps the slots, the background catch-up transfers its state then
+			logger.info("Could not fetch missing decisions of shard "+shard.getId()+" from "+leader+": "+e.getMessage());
+		}
+		finally {
+			shard.getFetchingDecisions().set(false);
+		}
+	}
+
+	// Renews the lease of every shard this server leads
+	private void renewLeases() {
+		for(Shard shard : this.shards) {
+			renewLease(shard);
+		}
+	}
+
+	// An acceptor that promised a higher proposal number than the leader's, such as a server that kept preparing on
+	// its own side of a partition, declines every renewal and accept of the leader. While its lease keeps other
+	// proposers out the leader prepares again above that number. A leader that finds a quorum leased to another
+	// server steps down instead.
+	private void renewLease(Shard shard) {
+		long proposalNumber = shard.getLeaderProposalNumber();
+		if(!this.multiPaxosEnabled || proposalNumber == 0) {
+			return;
+		}
+		if(shard.holdsLease() && shard.getHighestProposalNumber() > proposalNumber) {
+			synchronized(shard.getLeadershipLock()) {
+				if(shard.getLeaderProposalNumber() == proposalNumber) {
+					logger.info("An acceptor of shard "+shard.getId()+" promised a higher proposal number, preparing again");
+					shard.setLeaderProposalNumber(0);
+					try {
+						// A won prepare renews the lease with the new proposal number
+						runPrepare(shard);
+					}
+					catch(RemoteException e) {
+						logger.log(Level.WARNING, "Could not prepare shard "+shard.getId()+" again", e);
+					}
+				}
+			}
+			return;
+		}
+
+		// The lease counts from before the first acceptor granted it, acceptors count from when they did
+		long start = System.nanoTime();
+		long commitSlot = shard.getCommitSlot().get();
+		PeerSnapshot snapshot = this.peers.getSnapshot();
+		AtomicReference<String> otherHolder = new AtomicReference<String>();
+		List<String> granted = this.quorumCaller.call("lease", snapshot, this.leaseMillis / 3, (serverID, server) -> {
+			try {
+				server.grantLease(shard.getId(), this.serverID, proposalNumber, this.leaseMillis, commitSlot);
+				return serverID;
+			}
+			catch(ProposalRejectedException e) {
+				shard.observeProposalNumber(e.getPromisedProposalNumber());
+				if(e.getLeaseHolder() != null && !e.getLeaseHolder().isEmpty()) {
+					otherHolder.set(e.getLeaseHolder());
+				}
+				throw e;
+			}
+		});
+		if(granted.size() >= snapshot.getQuorumSize()) {
+			shard.setLease(proposalNumber, start + TimeUnit.MILLISECONDS.toNanos(this.leaseMillis - this.leaseDriftMillis));
+		}
+		else if(otherHolder.get() != null && shard.getLeaderProposalNumber() == proposalNumber) {
+			logger.info("Acceptors of shard "+shard.getId()+" granted "+otherHolder.get()+" a lease, giving up leadership");
+			shard.setLeaderProposalNumber(0);
+			shard.setLeaderID(otherHolder.get());
+		}
+	}
+
+	public void grantLease(int shard, String proposerID, long proposalNumber, long leaseMillis, long commitSlot) throws RemoteException {
+		Shard target = shard(shard);
+		ReplicatedLog log = target.getLog();
+		if(!log.grantLease(proposerID, proposalNumber, leaseMillis)) {
+			String leaseHolder = log.getLeaseHolder();
+			if(leaseHolder != null && !leaseHolder.equals(proposerID)) {
+				throw new ProposalRejectedException("Lease declined in shard "+shard+", "+leaseHolder+" holds one", log.getPromisedProposalNumber(),
+						leaseHolder, log.getLeaseRemainingMillis());
+			}
+			throw new ProposalRejectedException("Lease for proposal number "+proposalNumber+" declined in shard "+shard, log.getPromisedProposalNumber());
+		}
+		target.setLeaderID(proposerID);
+		if(!this.serverID.equals(proposerID)) {
+			target.setLeaderProposalNumber(0);
+		}
+		target.setKnownCommit(commitSlot, System.nanoTime());
+	}
+
+	// Commits the entries of every shard as one Paxos value, either all of them are written or none is
+	public Response multiPut(Map<String, String> entries) throws RemoteException {
+		logger.info("Request Query [type=" + "multiput" + ", entries=" + entries.size() + "]");
+		List<Transaction> transactions = new ArrayList<Transaction>(entries.size());
+		for(Map.Entry<String, String> entry : entries.entrySet()) {
+			Transaction transaction = new Transaction();
+			transaction.setType("put");
+			transaction.setKey(entry.getKey());
+			transaction.setValue(entry.getValue());
+			transactions.add(transaction);
+		}
+		return submitBatch("multiput", transactions, "Successfully inserted the entry in the datastore");
+	}
+
+	// Deletes the keys of every shard as one Paxos value, either all of them are deleted or none is
+	public Response multiDelete(List<String> keys) throws RemoteException {
+		logger.info("Request Query [type=" + "multidelete" + ", keys=" + keys.size() + "]");
+		List<Transaction> transactions = new ArrayList<Transaction>(keys.size());
+		for(String key : keys) {
+			Transaction transaction = new Transaction();
+			transaction.setType("delete");
+			transaction.setKey(key);
+			transactions.add(transaction);
+		}
+		return submitBatch("multidelete", transactions, "Successfully deleted the entry from the datastore");
+	}
+
+	// Keys of different shards are committed as one batch per shard, every batch is written as a whole or not at all
+	private Response submitBatch(String type, List<Transaction> transactions, String successMessage) throws RemoteException {
+		Map<Shard, List<Transaction>> byShard = new LinkedHashMap<Shard, List<Transaction>>();
+		for(Transaction transaction : transactions) {
+			byShard.computeIfAbsent(shardFor(transaction.getKey()), shard -> new ArrayList<Transaction>()).add(transaction);
+		}
+
+		Map<Shard, String> messages = new HashMap<Shard, String>();
+		int committed = 0;
+		for(Map.Entry<Shard, List<Transaction>> entry : byShard.entrySet()) {
+			Transaction batch = new Transaction();
+			batch.setType("batch");
+			batch.setTransactions(entry.getValue());
+			try {
+				submit(entry.getKey(), batch);
+				messages.put(entry.getKey(), successMessage);
+				committed += entry.getValue().size();
+			}
+			catch(TimeoutException e) {
+				messages.put(entry.getKey(), "Request timed out");
+			}
+		}
 
 		Response response = new Response();
-		response.setType("put");
-		response.setReturnValue(null);
-
-		try {
-			invokeProposer(transaction);
-			response.setMessage("Successfully inserted the entry in the datastore");
+		response.setType(type);
+		if(committed == transactions.size()) {
+			response.setMessage("Successfully committed "+transactions.size()+" entries in "+byShard.size()+" shard batches");
 		}
-		catch(TimeoutException e) {
-			response.setMessage("Request timed out");
+		else {
+			response.setMessage("Request timed out, committed "+committed+" of "+transactions.size()+" entries");
 		}
 
-		logger.info(response.toString());	
+		List<Response> results = new ArrayList<Response>(transactions.size());
+		for(Transaction transaction : transactions) {
+			Response result = new Response();
+			result.setType(transaction.getType());
+			result.setMessage(messages.get(shardFor(transaction.getKey())));
+			results.add(result);
+		}
+		response.setResults(results);
+		logger.info(response.toString());
 		return response;
 	}
 
-	public Response delete(String key) throws RemoteException {
-		logger.info("Request Query [type=" + "delete" + ", key=" + key + "]");
-		Transaction transaction = new Transaction();
-		transaction.setType("delete");
-		transaction.setKey(key);
-		transaction.setValue(null);
-
-		logger.info("Invoking Proposer");
-		Response response = new Response();
-		response.setType("delete");
-		response.setReturnValue(null);
+	// Hands the transaction to the distinguished proposer of its shard, or proposes it here if there is none
+	private void submit(Shard shard, Transaction transaction) throws RemoteException, TimeoutException {
+		if(!forwardToLeader(shard, transaction)) {
+			proposeLocally(shard, transaction, false);
+		}
+	}
 
-		try{
-			invokeProposer(transaction);
-			response.setMessage("Successfully deleted the entry from the datastore");
+	// Returns false if multi-paxos is off, this server is the leader, or the leader is unknown or unreachable
+	private boolean forwardToLeader(Shard shard, Transaction transaction) throws TimeoutException {
+		String leader = shard.getLeaderID();
+		DatastoreInterface server = leaderStub(shard, leader);
+		if(server == null) {
+			return false;
 		}
-		catch(TimeoutException e) {
-			response.setMessage("Request timed out");
+		try {
+			logger.info("Forwarding transaction to leader of shard "+shard.getId()+": "+leader);
+			server.propose(transaction);
+			return true;
+		}
+		catch(NotLeaderException e) {
+			// The leader it names only saw accepts from that one too, and a new leader may not have sent any yet. The
+			// shard waits for the first accept to confirm a leader rather than chasing names or preparing right away.
+			logger.info(leader+" does not lead shard "+shard.getId()+", it names "+e.getLeaderID());
+			if(leader.equals(shard.getLeaderID())) {
+				shard.setLeaderID(null);
+			}
+			holdForNewLeader(shard);
+			return false;
+		}
+		catch(RemoteException e) {
+			this.peers.reportFailure(leader, e);
+			logger.info("Leader "+leader+" is unreachable, proposing locally");
+			if(leader.equals(shard.getLeaderID())) {
+				shard.setLeaderID(null);
+			}
+			return false;
 		}
+	}
 
-		logger.info(response.toString());
-		return response;
+	// Stub of the given leader of the shard, null if multi-paxos is off, the leader is unknown, this server or not bound
+	private DatastoreInterface leaderStub(Shard shard, String leader) {
+		if(!this.multiPaxosEnabled || leader == null || leader.equals(this.serverID)) {
+			return null;
+		}
+		return this.peers.getSnapshot().getStub(leader);
+	}
 
+	// A forwarded transaction is never forwarded again, two servers that each take the other for the leader would
+	// pass it back and forth until it times out. A server that knows another leader declines it so the server that
+	// forwarded it tries that one, otherwise it proposes it itself.
+	public void propose(Transaction transaction) throws RemoteException, TimeoutException {
+		logger.info("Received forwarded transaction: "+transaction.toString());
+		Shard shard = shardFor(transaction);
+		String leader = shard.getLeaderID();
+		if(this.multiPaxosEnabled && shard.getLeaderProposalNumber() == 0 && leader != null && !leader.equals(this.serverID)) {
+			throw new NotLeaderException("Shard "+shard.getId()+" is led by "+leader, leader);
+		}
+		proposeLocally(shard, transaction, true);
+	}
+
+	private void proposeLocally(Shard shard, Transaction transaction, boolean forwarded) throws RemoteException, TimeoutException {
+		ProposalBatcher batcher = shard.getBatcher();
+		if(batcher != null) {
+			batcher.submit(transaction, forwarded);
+		}
+		else {
+			invokeProposer(shard, transaction, forwarded);
+		}
 	}
 
+	// Proposes the transaction in the shard its keys belong to
 	public void invokeProposer(Transaction transaction) throws AccessException, RemoteException, TimeoutException {
+		invokeProposer(shardFor(transaction), transaction, false);
+	}
 
-		boolean isRoundFailed = true;
-		int tryNumber = 1;
+	// Proposes a transaction that was forwarded here if forwarded is true, it is then never forwarded again
+	void invokeProposer(Transaction transaction, boolean forwarded) throws AccessException, RemoteException, TimeoutException {
+		invokeProposer(shardFor(transaction), transaction, forwarded);
+	}
 
-		while(isRoundFailed){
-			if(tryNumber > this.maxPaxosRetrys) {
+	// The leader is checked before a pipeline permit is taken, so no permit is held while the transaction waits
+	// for another server. A transaction of this server is forwarded at most MAX_FORWARDS times, then proposed here.
+	// One that was forwarded here goes back to the server that forwarded it if another server took over meanwhile.
+	private void invokeProposer(Shard shard, Transaction transaction, boolean forwarded) throws AccessException, RemoteException, TimeoutException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.retryTimeoutMillis);
+		Semaphore pipelineWindow = shard.getPipelineWindow();
+		int forwards = forwarded ? MAX_FORWARDS : 0;
+		while(true) {
+			if(forwards < MAX_FORWARDS && forwardToLeader(shard, transaction)) {
+				return;
+			}
+			forwards++;
+			try {
+				pipelineWindow.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 				throw new TimeoutException();
 			}
-			tryNumber++;
+			try {
+				if(runProposer(shard, transaction, forwarded || forwards < MAX_FORWARDS, deadline)) {
+					return;
+				}
+			}
+			finally {
+				pipelineWindow.release();
+			}
+			if(forwarded) {
+				String leader = shard.getLeaderID();
+				throw new NotLeaderException("Shard "+shard.getId()+" is led by "+leader, leader);
+			}
+		}
+	}
 
-			logger.info("New Paxos round started");
+	// Returns false without deciding the transaction if it may leave this server and another server took over as
+	// leader, it is then forwarded to that server
+	private boolean runProposer(Shard shard, Transaction transaction, boolean mayLeave, long deadline) throws AccessException, RemoteException, TimeoutException {
 
-			long proposalNumber = System.currentTimeMillis();
-			logger.info("New proposal number is "+proposalNumber);
+		while(true){
+			if(System.nanoTime() - deadline >= 0) {
+				throw new TimeoutException();
+			}
 
-			List<Promise> promises = new ArrayList<Promise>();
-			for(String serverID: this.registry.list()) {
-				try {
-					logger.info("Sending prepare to server: "+serverID);
-					DatastoreInterface server = (DatastoreInterface) this.registry.lookup(serverID);
-					Promise promise = server.prepare(proposalNumber);
-					logger.info("Received promise");
-					promise.setServerID(serverID);
-					promises.add(promise);
+			if(!this.multiPaxosEnabled) {
+				awaitBackoff(shard, deadline, false);
+				if(runLeaderlessRound(shard, transaction)) {
+					shard.getRetryBackoff().recordSuccess();
+					break;
+				}
+				logger.info("Paxos run failed, backing off before the next one");
+				shard.getRetryBackoff().recordConflict();
+				continue;
+			}
+
+			long proposalNumber = shard.getLeaderProposalNumber();
+			if(proposalNumber == 0) {
+				// Another server may have become leader while the transaction was queued or backed off here
+				if(!awaitBackoff(shard, deadline, mayLeave)) {
+					return false;
 				}
-				catch(RemoteException re) {
-					logger.info("Received denial");
+				synchronized(shard.getLeadershipLock()) {
+					// A prepare that failed while this one waited for the lock holds the shard back again
+					if(shard.getLeaderProposalNumber() == 0 && shard.getRetryBackoff().delayNanos() > 0) {
+						continue;
+					}
+					proposalNumber = runPrepare(shard);
+				}
+				if(proposalNumber == 0) {
+					// Another proposer got a quorum's promises first, outbidding it before its first accept would
+					// only start the next duel
+					shard.getRetryBackoff().recordConflict();
+					holdForNewLeader(shard);
 					continue;
-				} catch (NotBoundException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
 				}
+			}
+			else {
+				logger.info("Leader skipping prepare, proposal number "+proposalNumber);
+			}
 
+			long slot = shard.getNextSlot().getAndIncrement();
+			if(runAccept(shard, proposalNumber, slot, transaction)) {
+				shard.getRetryBackoff().recordSuccess();
+				break;
 			}
 
-			if( promises.size() <= this.registry.list().length / 2) {
-				try {
-					logger.info("Majority of acceptors didn't promise, restarting paxos run in 2 seconds");
-					TimeUnit.SECONDS.sleep(2);
-				} catch (InterruptedException e) {
-					logger.log(Level.SEVERE, "Interrupted Exception", e);
+			shard.getRetryBackoff().recordConflict();
+			if(shard.getLeaderProposalNumber() == proposalNumber) {
+				// Preempted by a higher proposal number, the next round forwards to the new leader or prepares again if
+				// none showed up
+				logger.info("Leader was preempted, giving up leadership");
+				shard.setLeaderProposalNumber(0);
+				if(this.serverID.equals(shard.getLeaderID())) {
+					shard.setLeaderID(null);
 				}
-				continue;
+				holdForNewLeader(shard);
 			}
+			else {
+				logger.info("Majority of acceptors didn't accept, backing off before the next paxos run");
+				if(!awaitBackoff(shard, deadline, mayLeave)) {
+					return false;
+				}
+			}
+		}
+		logger.info("Paxos round ended");
+		return true;
+	}
 
-			logger.info("Majority of acceptors promised");
-
-			long max = 0l;
-			Transaction value = transaction;
+	// Without multi-paxos every round prepares, and a prepare preempts the rounds of this server still in flight.
+	// Rounds of one server run one at a time instead, so only proposers on different servers compete.
+	private boolean runLeaderlessRound(Shard shard, Transaction transaction) throws AccessException, RemoteException {
+		synchronized(shard.getLeadershipLock()) {
+			long proposalNumber = runPrepare(shard);
+			return proposalNumber != 0 && runAccept(shard, proposalNumber, shard.getNextSlot().getAndIncrement(), transaction);
+		}
+	}
 
-			for(Promise promise : promises) {
-				if((promise.getPreviousProposalNumber() != 0) && (promise.getPreviousProposalNumber() > max)) {
-					max = promise.getPreviousProposalNumber();
-					value = promise.getPreviousAcceptedValue();
+	// Waits out the backoff of the shard's last failed round, outside the leadership lock so a round of the shard
+	// already under way isn't held up. A transaction that may leave stops waiting once another server confirmed it
+	// leads the shard and returns false, the leader takes it instead.
+	private boolean awaitBackoff(Shard shard, long deadline, boolean mayLeave) throws TimeoutException {
+		RetryBackoff backoff = shard.getRetryBackoff();
+		try {
+			while(!mayLeave || leaderStub(shard, shard.getLeaderID()) == null) {
+				if(backoff.delayNanos() <= 0 || System.nanoTime() - deadline >= 0) {
+					return true;
 				}
+				backoff.await(mayLeave ? Math.min(deadline, System.nanoTime() + LEADER_CHECK_NANOS) : deadline);
 			}
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TimeoutException();
+		}
+	}
 
-			logger.info("Value for accept: "+value.toString());
-			List<Accepted> accepteds = new ArrayList<Accepted>();
+	// A proposer only shows up as leader with its first accept, a prepare of this server before that would preempt it
+	// in turn. Holds back the shard's prepares for half to all of paxos.retry.max.ms, a transaction that may leave is
+	// forwarded as soon as a leader confirmed itself.
+	private void holdForNewLeader(Shard shard) {
+		long hold = this.retryMaxNanos / 2;
+		shard.getRetryBackoff().deferUntil(System.nanoTime() + hold + ThreadLocalRandom.current().nextLong(hold + 1));
+	}
 
-			for(Promise promise : promises) {
-				try {
-					logger.info("Sending accept to server: "+promise.getServerID());
-					String serverID = promise.getServerID();
-					DatastoreInterface server = (DatastoreInterface) this.registry.lookup(serverID);
-					Accepted acceptedMessage = server.accept(proposalNumber, value);
-					acceptedMessage.setServerID(promise.getServerID());
-					accepteds.add(acceptedMessage);
-					logger.info("Received accept");
-				}
-				catch(RemoteException re) {
-					logger.info("Received reject");
-					continue;
-				} catch (NotBoundException e) {
-					logger.log(Level.SEVERE, "Not Bound Exception", e);
-				}
+	// Runs the prepare phase for every open slot of the shard and returns the proposal number won, or 0 if the round failed
+	private long runPrepare(Shard shard) throws AccessException, RemoteException {
+		synchronized(shard.getLeadershipLock()) {
+			if(this.multiPaxosEnabled && shard.getLeaderProposalNumber() != 0) {
+				return shard.getLeaderProposalNumber();
 			}
 
-			if( accepteds.size() <= this.registry.list().length / 2) {
+			logger.info("New Paxos round started in shard "+shard.getId());
+
+			// The next round after every ballot seen, so no two servers ever propose the same number
+			long proposalNumber = Ballot.next(Math.max(shard.getLog().getPromisedProposalNumber(), shard.getHighestProposalNumber()), Ballot.proposerOf(this.serverID));
+			shard.observeProposalNumber(proposalNumber);
+			logger.info("New proposal number is "+proposalNumber);
+
+			PeerSnapshot snapshot = this.peers.getSnapshot();
+			logger.info("Sending prepare to "+snapshot.size()+" servers");
+			// Server holding the lease that made an acceptor decline, or the latest end of a hold after a restart
+			AtomicReference<String> leaseHolder = new AtomicReference<String>();
+			AtomicLong holdEndNanos = new AtomicLong();
+			List<Promise> promises = this.quorumCaller.call("prepare", snapshot, this.prepareTimeoutMillis, (serverID, server) -> {
 				try {
-					logger.info("Majority of acceptors didn't accept, restarting paxos run in 2 seconds");
-					TimeUnit.SECONDS.sleep(2);
-				} catch (InterruptedException e) {
-					logger.log(Level.SEVERE, "Interrupted Exception", e);
+					Promise promise = server.prepare(shard.getId(), this.serverID, proposalNumber);
+					promise.setServerID(serverID);
+					return promise;
 				}
-				continue;
+				catch(ProposalRejectedException e) {
+					shard.observeProposalNumber(e.getPromisedProposalNumber());
+					if(e.getLeaseHolder() != null && !e.getLeaseHolder().isEmpty()) {
+						leaseHolder.set(e.getLeaseHolder());
+					}
+					else if(e.getLeaseHolder() != null) {
+						long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(e.getLeaseRemainingMillis());
+						holdEndNanos.accumulateAndGet(end, (a, b) -> a == 0 || b - a > 0 ? b : a);
+					}
+					throw e;
+				}
+			});
+
+			if( promises.size() < snapshot.getQuorumSize()) {
+				logger.info("Majority of acceptors didn't promise");
+				if(leaseHolder.get() != null) {
+					// Acceptors keep declining until the lease runs out, the holder leads the shard meanwhile and
+					// proposals are forwarded to it. If it can't be reached the first prepare after the lease wins.
+					logger.info("Acceptors of shard "+shard.getId()+" hold a lease of "+leaseHolder.get()+", forwarding to it");
+					shard.setLeaderID(leaseHolder.get());
+				}
+				else if(holdEndNanos.get() != 0) {
+					// Held since an acceptor restarted, no server leads the shard until the hold runs out
+					logger.info("Acceptors of shard "+shard.getId()+" hold their promises, waiting until the hold runs out");
+					shard.getRetryBackoff().deferUntil(holdEndNanos.get());
+				}
+				return 0;
 			}
 
-			logger.info("Majority of acceptors accepted");
+			logger.info("Majority of acceptors promised");
 
-			logger.info("Invoking Learners");
-			for(Accepted accepted: accepteds) {
-				try {
-					logger.info("Invoking learner: "+accepted.getServerID());
-					DatastoreInterface server = (DatastoreInterface) this.registry.lookup(accepted.getServerID());
-					server.invokeLearner(accepted);
-					logger.info("Learner was able to successfully learn");
+			// Slots applied by any acceptor are decided, the ones after it keep the value with the highest proposal number
+			long lastApplied = 0l;
+			for(Promise promise : promises) {
+				lastApplied = Math.max(lastApplied, promise.getLastAppliedSlot());
+			}
+			TreeMap<Long, Accepted> recovered = new TreeMap<Long, Accepted>();
+			for(Promise promise : promises) {
+				for(Accepted accepted : promise.getAcceptedValues()) {
+					Accepted previous = recovered.get(accepted.getSlot());
+					if(accepted.getSlot() > lastApplied && (previous == null || accepted.getProposalNumber() > previous.getProposalNumber())) {
+						recovered.put(accepted.getSlot(), accepted);
+					}
 				}
-				catch(RemoteException re) {
-					logger.info("Learner failed");
-					continue;
-				} catch (NotBoundException e) {
-					logger.log(Level.SEVERE, "Not Bound Exception", e);
+			}
+			long lastSlot = recovered.isEmpty() ? lastApplied : recovered.lastKey();
+			shard.getNextSlot().set(lastSlot + 1);
+			// Every write acknowledged so far was accepted by one of the promising acceptors
+			shard.getCommitSlot().accumulateAndGet(lastSlot, Math::max);
+
+			if(this.multiPaxosEnabled) {
+				logger.info("Won prepare, acting as leader of shard "+shard.getId()+" with proposal number "+proposalNumber);
+				shard.setLeaderProposalNumber(proposalNumber);
+				shard.setLeaderID(this.serverID);
+				// Reads need the lease of the new proposal number, they shouldn't wait for the next renewal
+				if(this.leaseRenewer != null) {
+					this.leaseRenewer.execute(() -> renewLease(shard));
+				}
+			}
+
+			// Finish the slots a previous proposer left open, holes are filled with no-ops
+			for(long slot = lastApplied + 1; slot <= lastSlot; slot++) {
+				Transaction value;
+				if(recovered.containsKey(slot)) {
+					value = recovered.get(slot).getValue();
+				}
+				else {
+					value = new Transaction();
+					value.setType("noop");
+				}
+				logger.info("Completing open slot "+slot);
+				if(!runAccept(shard, proposalNumber, slot, value)) {
+					shard.setLeaderProposalNumber(0);
+					return 0;
 				}
 			}
+			return proposalNumber;
+		}
+	}
+
+	// Runs the accept and learn phases for one slot, returns false if a majority didn't accept
+	private boolean runAccept(Shard shard, long proposalNumber, long slot, Transaction value) throws AccessException, RemoteException {
+		logger.info("Value for accept in slot "+slot+" of shard "+shard.getId()+": "+value.toString());
 
-			logger.info("Learning job finished");
+		PeerSnapshot snapshot = this.peers.getSnapshot();
+		List<Accepted> accepteds = this.quorumCaller.call("accept", snapshot, this.acceptTimeoutMillis, (serverID, server) -> {
+			try {
+				Accepted acceptedMessage = server.accept(shard.getId(), this.serverID, proposalNumber, slot, value);
+				acceptedMessage.setServerID(serverID);
+				return acceptedMessage;
+			}
+			catch(ProposalRejectedException e) {
+				shard.observeProposalNumber(e.getPromisedProposalNumber());
+				throw e;
+			}
+		});
 
-			isRoundFailed = false;
+		if( accepteds.size() < snapshot.getQuorumSize()) {
+			return false;
 		}
-		logger.info("Paxos round ended");
+
+		logger.info("Majority of acceptors accepted");
+		shard.getCommitSlot().accumulateAndGet(slot, Math::max);
+
+		// Every learner is told, learners apply slots in order so one that misses a slot stalls
+		Accepted decided = accepteds.get(0);
+		logger.info("Invoking Learners");
+		List<String> learners = this.quorumCaller.call("learn", snapshot, this.learnTimeoutMillis, (serverID, server) -> {
+			server.invokeLearner(shard.getId(), decided);
+			return serverID;
+		});
+
+		logger.info("Learning job finished, "+learners.size()+" learners confirmed");
+		return true;
 	}
 
 
 
-	public Promise prepare(long proposalNumber) throws RemoteException {
+	public Promise prepare(int shard, String proposerID, long proposalNumber) throws RemoteException {
+		Shard target = shard(shard);
 		// Acceptor is configured to fail at random times - If proposal number % randomAcceptorFailureNumber == 0
-		if(proposalNumber % this.randomAcceptorFailureNumber == 0l) {
+		if(this.randomAcceptorFailureNumber > 0 && proposalNumber % this.randomAcceptorFailureNumber == 0l) {
 			logger.info("Acceptor failed at random time as per configuration");
 			throw new RemoteException();
 		}
 
-		if(proposalNumber<=this.previousProposalNumber) {
-			logger.info("Prepare request Declined as previous proposal number("+this.previousProposalNumber+") is greater than new proposal number("+proposalNumber+")");
-			throw new RemoteException();
+		ReplicatedLog log = target.getLog();
+		if(!log.promise(proposerID, proposalNumber)) {
+			String leaseHolder = log.getLeaseHolder();
+			if(leaseHolder != null && !leaseHolder.equals(proposerID)) {
+				logger.info("Prepare request Declined as "+leaseHolder+" holds a lease");
+				throw new ProposalRejectedException("Prepare declined", log.getPromisedProposalNumber(), leaseHolder, log.getLeaseRemainingMillis());
+			}
+			logger.info("Prepare request Declined as promised proposal number("+log.getPromisedProposalNumber()+") is greater than new proposal number("+proposalNumber+")");
+			throw new ProposalRejectedException("Prepare declined", log.getPromisedProposalNumber());
+		}
+
+		if(target.getWal() != null) {
+			try {
+				target.getWal().logPromise(proposalNumber);
+			}
+			catch(IOException e) {
+				logger.log(Level.SEVERE, "Could not persist promise", e);
+				throw new RemoteException("Could not persist promise", e);
+			}
 		}
 
+		// The proposer only leads the shard once a quorum accepts its values, the first accept records it
 		Promise promise = new Promise();
 		promise.setProposalNumber(proposalNumber);
-		promise.setPreviousProposalNumber(this.previousProposalNumber);
-		promise.setPreviousAcceptedValue(previousAcceptedValue);
+		promise.setAcceptedValues(log.getOpenValues());
+		promise.setLastAppliedSlot(log.getLastAppliedSlot());
 
-		logger.info("Promising for proposal number: "+proposalNumber);
+		logger.info("Promising for proposal number: "+proposalNumber+" in shard "+shard);
 		return promise;
 	}
 
 
 
-	public Accepted accept(long proposalNumber, Transaction value) throws RemoteException {
+	public Accepted accept(int shard, String proposerID, long proposalNumber, long slot, Transaction value) throws RemoteException {
+		Shard target = shard(shard);
 		// Acceptor is configured to fail at random times - If proposal number % randomAcceptorFailureNumber == 0
-		if(proposalNumber % this.randomAcceptorFailureNumber == 0l) {
+		if(this.randomAcceptorFailureNumber > 0 && proposalNumber % this.randomAcceptorFailureNumber == 0l) {
 			logger.info("Acceptor failed at random time as per configuration");
 			throw new RemoteException();
 		}
 
-		if(proposalNumber<this.previousProposalNumber) {
-			logger.info("Accept request Declined as new proposal number("+proposalNumber+") is less than previous proposal numberr("+this.previousProposalNumber+")");
-			throw new RemoteException();
+		if(!target.getLog().accept(proposalNumber, slot, value)) {
+			logger.info("Accept request Declined as new proposal number("+proposalNumber+") is less than promised proposal number("+target.getLog().getPromisedProposalNumber()+")");
+			throw new ProposalRejectedException("Accept declined", target.getLog().getPromisedProposalNumber());
+		}
+
+		if(target.getWal() != null) {
+			try {
+				target.getWal().logAccept(proposalNumber, slot, value);
+			}
+			catch(IOException e) {
+				logger.log(Level.SEVERE, "Could not persist accepted value", e);
+				throw new RemoteException("Could not persist accepted value", e);
+			}
+		}
+
+		target.setLeaderID(proposerID);
+		if(!this.serverID.equals(proposerID)) {
+			target.setLeaderProposalNumber(0);
 		}
 
-		logger.info("Accept request confirmed for transaction: "+value.toString());
+		logger.info("Accept request confirmed for slot "+slot+" of shard "+shard+", transaction: "+value.toString());
 
 		Accepted accepted = new Accepted();
 		accepted.setProposalNumber(proposalNumber);
+		accepted.setSlot(slot);
 		accepted.setValue(value);
 
 		return accepted;
 	}
 
-	public synchronized void invokeLearner(Accepted accepted) throws RemoteException{
-		logger.info("Learner invoked");
+	public StateChunk getStateChunk(int shard, long transferID, String cursor, int maxEntries) throws RemoteException {
+		Shard source = shard(shard);
+		// No chunk if the transfer is new or its session expired, either way it resumes in a new session
+		StateChunk chunk = this.stateTransferSource.nextChunk(transferID, cursor, maxEntries);
+		if(chunk == null) {
+			// Storage reflects every slot up to startSlot once the apply lock is released
+			long startSlot;
+			synchronized(source.getApplyLock()) {
+				startSlot = source.getLog().getLastAppliedSlot();
+			}
+			transferID = this.stateTransferSource.open(startSlot, source.getStorage(), source.getExpirations());
+			logger.info("Opened state transfer "+transferID+" of shard "+shard+" at slot "+startSlot+", resuming after key "+cursor);
+			chunk = this.stateTransferSource.nextChunk(transferID, cursor, maxEntries);
+		}
+		logger.info("Sending "+chunk.toString());
+		return chunk;
+	}
+
+	public List<Accepted> getDecisions(int shard, long fromSlot, int maxSlots) throws RemoteException {
+		List<Accepted> decisions = shard(shard).getLog().getDecisions(fromSlot, maxSlots);
+		if(decisions == null) {
+			throw new RemoteException("Slot "+fromSlot+" of shard "+shard+" is no longer kept in the log, a state transfer is needed");
+		}
+		return decisions;
+	}
+
+	// Brings a server that just registered with the cluster up to date. A shard that recovered its log
+	// locally only fetches the slots it missed, others copy the state of source first.
+	public void joinCluster(DatastoreInterface source) throws RemoteException {
+		for(Shard shard : this.shards) {
+			joinCluster(shard, source);
+		}
+	}
+
+	private void joinCluster(Shard shard, DatastoreInterface source) throws RemoteException {
+		if(shard.getLog().getLastAppliedSlot() > 0) {
+			try {
+				catchUp(shard, source, null);
+				return;
+			}
+			catch(RemoteException e) {
+				logger.log(Level.WARNING, "Could not catch up shard "+shard.getId()+" from the log, falling back to a state transfer", e);
+			}
+		}
+		transferState(shard, source);
+		catchUp(shard, source, null);
+		// The copied state is not in the write-ahead log, a snapshot lets a restart skip the transfer
+		takeSnapshot(shard);
+	}
+
+	// Copies the storage of the shard on source in bounded chunks, resuming from the last cursor if the transfer breaks off
+	private void transferState(Shard shard, DatastoreInterface source) throws RemoteException {
+		StorageEngine transferred = newStorageEngine(shard);
+		ConcurrentHashMap<String, Long> transferredExpirations = new ConcurrentHashMap<String, Long>();
+		long transferID = 0;
+		long startSlot = Long.MAX_VALUE;
+		String cursor = null;
+		int failures = 0;
+
+		logger.info("Starting state transfer of shard "+shard.getId());
+		while(true) {
+			StateChunk chunk;
+			try {
+				chunk = source.getStateChunk(shard.getId(), transferID, cursor, this.stateTransferChunkSize);
+				failures = 0;
+			}
+			catch(RemoteException e) {
+				if(++failures > this.maxPaxosRetrys) {
+					throw e;
+				}
+				logger.log(Level.WARNING, "State transfer interrupted, resuming after key "+cursor, e);
+				try {
+					TimeUnit.SECONDS.sleep(1);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+				continue;
+			}
+
+			// A resumed transfer may start at a later slot, catching up from the earliest one covers both
+			transferID = chunk.getTransferID();
+			startSlot = Math.min(startSlot, chunk.getStartSlot());
+			for(int i = 0; i < chunk.getKeys().size(); i++) {
+				transferred.put(chunk.getKeys().get(i), chunk.getValues().get(i));
+				if(chunk.getExpirations().get(i) != 0) {
+					transferredExpirations.put(chunk.getKeys().get(i), chunk.getExpirations().get(i));
+				}
+				else {
+					transferredExpirations.remove(chunk.getKeys().get(i));
+				}
+			}
+			cursor = chunk.getCursor();
+			if(chunk.isLast()) {
+				break;
+			}
+		}
+
+		synchronized(shard.getApplyLock()) {
+			installStorage(shard, transferred, transferredExpirations);
+			apply(shard, shard.getLog().installState(startSlot));
+			shard.getApplyLock().notifyAll();
+		}
+		logger.info("State transfer of shard "+shard.getId()+" finished, "+transferred.size()+" entries at slot "+startSlot);
+	}
+
+	// Fetches and applies the slots decided after the shard's last applied slot, returns how many it applied
+	private int catchUp(Shard shard, DatastoreInterface source, RateLimiter limiter) throws RemoteException {
+		int caughtUp = 0;
+		while(true) {
+			List<Accepted> decisions = source.getDecisions(shard.getId(), shard.getLog().getLastAppliedSlot() + 1, this.catchUpBatchSize);
+			if(decisions.isEmpty()) {
+				break;
+			}
+			for(Accepted decision : decisions) {
+				learn(shard, decision.getSlot(), decision.getValue());
+			}
+			caughtUp += decisions.size();
+			if(limiter != null) {
+				try {
+					limiter.acquire(decisions.size());
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		if(caughtUp > 0) {
+			logger.info("Caught up "+caughtUp+" slots, shard "+shard.getId()+" applied up to slot "+shard.getLog().getLastAppliedSlot());
+		}
+		return caughtUp;
+	}
+
+	// A learner misses decisions when their learn messages were lost, it finds out once it accepted or learned a
+	// later slot, or once the leader's commit slot is ahead of it. Shards that keep applying are left alone, their
+	// gaps usually fill from the messages still in flight. An idle shard without a known gap still asks one peer,
+	// the last learn messages before a quiet period can't be noticed any other way.
+	private void catchUpIdleShards() {
+		PeerSnapshot snapshot = this.peers.getSnapshot();
+		List<String> peerIDs = new ArrayList<String>();
+		for(String peerID : snapshot.getServerIDs()) {
+			// The registry also binds this server under the local name
+			if(!peerID.equals(this.serverID) && !peerID.equals(PeerDirectory.LOCAL_NAME)) {
+				peerIDs.add(peerID);
+			}
+		}
+		if(peerIDs.isEmpty()) {
+			return;
+		}
+		int first = Math.floorMod(this.catchUpPeer++, peerIDs.size());
+
+		for(Shard shard : this.shards) {
+			long applied = shard.getLog().getLastAppliedSlot();
+			boolean idle = applied == shard.getCatchUpCheckedSlot();
+			shard.setCatchUpCheckedSlot(applied);
+			if(!idle) {
+				continue;
+			}
+			boolean behind = shard.getLog().getHighestKnownSlot() > applied || shard.getKnownCommitSlot() > applied;
+			for(int i = 0; i < (behind ? peerIDs.size() : 1); i++) {
+				String peerID = peerIDs.get((first + i) % peerIDs.size());
+				DatastoreInterface peer = snapshot.getStub(peerID);
+				try {
+					if(catchUp(shard, peer, this.catchUpLimiter) > 0) {
+						break;
+					}
+				}
+				catch(ConnectException | ConnectIOException e) {
+					continue;
+				}
+				catch(RemoteException e) {
+					if(!behind) {
+						continue;
+					}
+					// The peer answered but may have dropped the missing slots from its history, its state covers them
+					logger.log(Level.WARNING, "Could not catch up shard "+shard.getId()+" from "+peerID+", trying a state transfer", e);
+					try {
+						joinCluster(shard, peer);
+						break;
+					}
+					catch(RemoteException te) {
+						logger.log(Level.WARNING, "State transfer of shard "+shard.getId()+" from "+peerID+" failed", te);
+					}
+				}
+			}
+			shard.setCatchUpCheckedSlot(shard.getLog().getLastAppliedSlot());
+		}
+	}
+
+	public void invokeLearner(int shard, Accepted accepted) throws RemoteException{
+		logger.info("Learner invoked for slot "+accepted.getSlot()+" of shard "+shard);
 
-		if(this.lastLearnedProposalNumber == accepted.getProposalNumber()) {
+		if(!learn(shard(shard), accepted.getSlot(), accepted.getValue())) {
 			logger.info("Aborting learning, value is already learned");
 			throw new RemoteException();
 		}
+	}
+
+	// Persists and applies a decided value, returns false if the slot was learned before
+	private boolean learn(Shard shard, long slot, Transaction value) throws RemoteException {
+		// Persisted outside the apply lock so concurrent learners of new slots share an fsync. A slot learned before,
+		// such as one a catch-up fetched ahead of its learn message, isn't logged again. Two learners of the same new
+		// slot may both log it, replay keeps the first.
+		if(shard.getWal() != null) {
+			synchronized(shard.getApplyLock()) {
+				if(shard.getLog().isLearned(slot)) {
+					return false;
+				}
+			}
+			try {
+				shard.getWal().logLearn(slot, value);
+			}
+			catch(IOException e) {
+				logger.log(Level.SEVERE, "Could not persist learned value", e);
+				throw new RemoteException("Could not persist learned value", e);
+			}
+		}
+
+		// Learned values are applied to storage in slot order, readers of storage are never blocked
+		synchronized(shard.getApplyLock()) {
+			List<Transaction> applicable = shard.getLog().learn(slot, value);
+			if(applicable == null) {
+				return false;
+			}
+
+			apply(shard, applicable);
+			// Wakes reads waiting for their read index
+			shard.getApplyLock().notifyAll();
+			return true;
+		}
+	}
 
-		if(accepted.getServerID() == this.serverID) {
-			logger.info("Erasing previous proposal number and accepted value");
-			this.previousProposalNumber = 0;
-			this.previousAcceptedValue = null;
+	// Applies values the log released in slot order, the last of them at the log's last applied slot, and
+	// publishes them to watch subscriptions
+	private void apply(Shard shard, List<Transaction> applicable) {
+		long slot = shard.getLog().getLastAppliedSlot() - applicable.size();
+		for(Transaction transaction : applicable) {
+			slot++;
+			Transaction applied = apply(shard, transaction);
+			// History then tells watchers and servers catching up what the slot actually changed
+			if(applied != transaction) {
+				shard.getLog().replaceApplied(slot, applied);
+			}
+			this.changeFeed.publish(shard, slot, applied);
 		}
+	}
 
-		Transaction trasaction = accepted.getValue();
+	private Transaction apply(Shard shard, Transaction trasaction) {
+		Transaction applied = applyValue(shard, trasaction);
+		if(applied == null) {
+			applied = new Transaction();
+			applied.setType("noop");
+		}
+		if(trasaction.getType().equals("batch")) {
+			// One line per batch, a multiPut can carry thousands of values
+			logger.info("Learned a batch of "+trasaction.getTransactions().size()+" values");
+		}
+		else {
+			logger.info("Learned a new value: "+trasaction.toString());
+		}
+		return applied;
+	}
 
+	// Returns the value without the expires that found their entry written again, the value itself if every part
+	// of it took effect, or null if nothing did
+	private Transaction applyValue(Shard shard, Transaction trasaction) {
+		StorageEngine storage = shard.getStorage();
+		String key = trasaction.getKey();
 		if(trasaction.getType().equals("put")) {
-			this.storage.put(trasaction.getKey(), trasaction.getValue());
+			// A null value reads the same as a missing key
+			if(trasaction.getValue() == null) {
+				storage.remove(key);
+				shard.getExpirations().remove(key);
+			}
+			else {
+				// A put without a TTL makes the entry permanent again
+				if(trasaction.getExpiresAt() != 0) {
+					shard.getExpirations().put(key, trasaction.getExpiresAt());
+					shard.getExpiryWheel().schedule(key, trasaction.getExpiresAt(), this.clock.millis());
+				}
+				else {
+					shard.getExpirations().remove(key);
+				}
+				storage.put(key, trasaction.getValue());
+			}
+			shard.getExpiredKeys().remove(key);
 		}
 		else if(trasaction.getType().equals("delete")){
-			this.storage.remove(trasaction.getKey());
+			storage.remove(key);
+			shard.getExpirations().remove(key);
+			shard.getExpiredKeys().remove(key);
+		}
+		else if(trasaction.getType().equals("expire")) {
+			// Only removes the entry if it wasn't written again since the leader found it expired
+			Long expiresAt = shard.getExpirations().get(key);
+			shard.getExpiredKeys().remove(key);
+			if(expiresAt == null || expiresAt != trasaction.getExpiresAt()) {
+				return null;
+			}
+			storage.remove(key);
+			shard.getExpirations().remove(key);
+		}
+		else if(trasaction.getType().equals("batch")) {
+			List<Transaction> applied = new ArrayList<Transaction>(trasaction.getTransactions().size());
+			for(Transaction batched : trasaction.getTransactions()) {
+				Transaction appliedBatched = applyValue(shard, batched);
+				if(appliedBatched != null) {
+					applied.add(appliedBatched);
+				}
+			}
+			if(applied.isEmpty()) {
+				return null;
+			}
+			if(applied.size() < trasaction.getTransactions().size()) {
+				Transaction batch = new Transaction();
+				batch.setType("batch");
+				batch.setTransactions(applied);
+				return batch;
+			}
+		}
+		return trasaction;
+	}
+
+	// Moves the expiry wheel of every shard to now. The leader of a shard proposes the removal of its expired keys
+	// in batches. The other servers keep track of them and only propose the ones the leader didn't remove within
+	// expiryTakeoverMillis, through the leader or by taking over if it is gone. Removals go through the log, so
+	// every replica removes the same entries at the same slot whatever its own clock says.
+	private void expireEntries() {
+		long now = this.clock.millis();
+		for(Shard shard : this.shards) {
+			for(TimerWheel.Timer timer : shard.getExpiryWheel().advance(now)) {
+				// The timer of an entry written again since is stale
+				Long expiresAt = shard.getExpirations().get(timer.getKey());
+				if(expiresAt != null && expiresAt == timer.getDeadlineMillis()) {
+					shard.getExpiredKeys().add(timer.getKey());
+				}
+			}
+			long cutoff = this.serverID.equals(shard.getLeaderID()) ? now : now - this.expiryTakeoverMillis;
+
+			Iterator<String> keys = shard.getExpiredKeys().iterator();
+			while(keys.hasNext()) {
+				List<Transaction> expired = new ArrayList<Transaction>();
+				while(keys.hasNext() && expired.size() < this.maxExpireBatch) {
+					String key = keys.next();
+					Long expiresAt = shard.getExpirations().get(key);
+					if(expiresAt == null) {
+						keys.remove();
+						continue;
+					}
+					// Not due on this clock yet, it was set back since the timer fired
+					if(expiresAt > now) {
+						keys.remove();
+						shard.getExpiryWheel().schedule(key, expiresAt, now);
+						continue;
+					}
+					if(expiresAt > cutoff) {
+						continue;
+					}
+					Transaction expire = new Transaction();
+					expire.setType("expire");
+					expire.setKey(key);
+					expire.setExpiresAt(expiresAt);
+					expired.add(expire);
+				}
+				if(expired.isEmpty()) {
+					break;
+				}
+				Transaction batch = new Transaction();
+				batch.setType("batch");
+				batch.setTransactions(expired);
+				try {
+					// Keys stay in expiredKeys until the removal is applied, a failed round is retried on the next tick
+					invokeProposer(shard, batch, false);
+					logger.info("Expired "+expired.size()+" entries of shard "+shard.getId());
+				}
+				catch(RemoteException | TimeoutException e) {
+					logger.log(Level.WARNING, "Could not expire entries of shard "+shard.getId(), e);
+					break;
+				}
+			}
 		}
-		this.lastLearnedProposalNumber = accepted.getProposalNumber();
-		logger.info("Learned a new value: "+trasaction.toString());
+	}
+
+	// An entry past its expiry reads as missing until its removal is applied
+	private boolean isExpired(Shard shard, String key) {
+		Long expiresAt = shard.getExpirations().get(key);
+		return expiresAt != null && expiresAt <= this.clock.millis();
 	}
 
 
@@ -384,18 +2002,71 @@ public class Server extends UnicastRemoteObject implements DatastoreInterface
 			String currentServerID = createServerID(port);
 			Server server = new Server(currentServerID, registry, port);
 
-			registry.rebind("Server", server);
-
-			server.logger.info("Server started");
-
 			InputStream input = new FileInputStream("resources/config.properties");
 			Properties prop = new Properties();
 			// load a properties file
 			prop.load(input);
+			// Shards are created first, the settings below apply to every shard
+			server.setShardCount(Integer.parseInt(prop.getProperty("shards", "1")));
+			server.setStorageEngine(prop.getProperty("storage.engine", "skiplist"),
+					Long.parseLong(prop.getProperty("storage.mapped.segment.mb", "64")) * 1024 * 1024);
+			server.setScanLimits(Integer.parseInt(prop.getProperty("scan.page.entries", "1000")),
+					Integer.parseInt(prop.getProperty("scan.page.chars", "1048576")));
+			long expiryTickMillis = Long.parseLong(prop.getProperty("ttl.tick.ms", "100"));
+			if(expiryTickMillis > 0) {
+				server.setExpiration(expiryTickMillis, Integer.parseInt(prop.getProperty("ttl.expire.batch", "1000")),
+						Long.parseLong(prop.getProperty("ttl.takeover.ms", "5000")));
+			}
+			server.setMultiPaxosEnabled(Boolean.parseBoolean(prop.getProperty("paxos.multi", "true")));
+			server.setPipelineWindow(Integer.parseInt(prop.getProperty("paxos.pipeline.window", "32")));
+			server.setFanoutThreads(Integer.parseInt(prop.getProperty("paxos.fanout.threads", "16")));
+			server.setPhaseTimeouts(Long.parseLong(prop.getProperty("paxos.prepare.timeout.ms", "1000")),
+					Long.parseLong(prop.getProperty("paxos.accept.timeout.ms", "1000")),
+					Long.parseLong(prop.getProperty("paxos.learn.timeout.ms", "1000")));
+			if(Boolean.parseBoolean(prop.getProperty("wal.enabled", "true"))) {
+				server.openPersistence(new File(prop.getProperty("data.dir", "data"), currentServerID),
+						WriteAheadLog.SyncPolicy.valueOf(prop.getProperty("wal.sync", "always").toUpperCase()),
+						Long.parseLong(prop.getProperty("wal.sync.interval.ms", "10")),
+						Long.parseLong(prop.getProperty("snapshot.interval.slots", "10000")));
+			}
+			server.setStateTransfer(Integer.parseInt(prop.getProperty("statetransfer.chunk.entries", "1000")),
+					Integer.parseInt(prop.getProperty("statetransfer.chunk.chars", "1048576")),
+					Integer.parseInt(prop.getProperty("catchup.batch.slots", "500")),
+					Integer.parseInt(prop.getProperty("log.history.slots", "100000")));
+			server.setBatching(Long.parseLong(prop.getProperty("batch.window.ms", "2")), Integer.parseInt(prop.getProperty("batch.max.size", "64")));
+			server.setRetryBackoff(Long.parseLong(prop.getProperty("paxos.retry.base.us", "250")),
+					Long.parseLong(prop.getProperty("paxos.retry.max.ms", "200")),
+					Long.parseLong(prop.getProperty("paxos.retry.timeout.ms", "3000")));
+			if("lease".equalsIgnoreCase(prop.getProperty("read.mode", "local"))) {
+				server.setLeaseReads(Long.parseLong(prop.getProperty("lease.duration.ms", "2000")),
+						Long.parseLong(prop.getProperty("lease.drift.ms", "200")),
+						Long.parseLong(prop.getProperty("read.max.staleness.ms", "0")),
+						Long.parseLong(prop.getProperty("read.timeout.ms", "1000")));
+			}
+			server.setWatch(Integer.parseInt(prop.getProperty("watch.buffer.changes", "10000")),
+					Integer.parseInt(prop.getProperty("watch.replay.slots", "1000")),
+					Long.parseLong(prop.getProperty("watch.idle.ms", "60000")));
+			long catchUpIntervalMillis = Long.parseLong(prop.getProperty("catchup.interval.ms", "1000"));
+			if(catchUpIntervalMillis > 0) {
+				server.setCatchUp(catchUpIntervalMillis, Double.parseDouble(prop.getProperty("catchup.rate.slots", "5000")));
+			}
+			if("nio".equalsIgnoreCase(prop.getProperty("transport", "rmi"))) {
+				server.startNioTransport(Integer.parseInt(prop.getProperty("nio.port.offset", "1000")),
+						Integer.parseInt(prop.getProperty("nio.client.threads", "64")),
+						Integer.parseInt(prop.getProperty("nio.paxos.threads", "16")),
+						Integer.parseInt(prop.getProperty("nio.watch.threads", "64")),
+						Long.parseLong(prop.getProperty("nio.request.timeout.ms", "30000")));
+			}
+
+			registry.rebind(PeerDirectory.LOCAL_NAME, server);
+			server.getPeers().refresh();
+
+			server.logger.info("Server started");
 			// get discovery nodes to connect to cluster
 			String[] discoveryNodes = prop.getProperty("discovery.nodes").split(",");
 
 			boolean discoverySuccessful = false;
+			DatastoreInterface transferSource = null;
 			server.logger.info("Server trying to connect to a cluster");
 
 			for(String discoveryNode : discoveryNodes)
@@ -412,7 +2083,9 @@ public class Server extends UnicastRemoteObject implements DatastoreInterface
 							DatastoreInterface discoveredRegistryServer = (DatastoreInterface)discoveredRegistry.lookup(serverID);
 							if(!currentServerID.equals(discoveredRegistryServer.getServerID())) {
 								discoverySuccessful = true;
-								server.setStorage(discoveredRegistryServer.getStorage());
+								if(transferSource == null) {
+									transferSource = discoveredRegistryServer;
+								}
 								discoveredRegistryServer.registerNewServer(currentServerID, server);
 								server.logger.info("Registered current server with server: "+discoveredRegistryServer.getServerID());
 								registry.bind(discoveredRegistryServer.getServerID(), discoveredRegistryServer);
@@ -430,6 +2103,13 @@ public class Server extends UnicastRemoteObject implements DatastoreInterface
 				}
 			}
 
+			server.getPeers().refresh();
+
+			// Registered first so slots learned while the state is copied are buffered, not missed
+			if(transferSource != null) {
+				server.joinCluster(transferSource);
+			}
+
 			if(!discoverySuccessful) {
 				server.logger.info("Could not connect to any cluster, acting as a standalone cluster");
 			}
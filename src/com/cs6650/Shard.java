@@ -0,0 +1,277 @@
+package com.cs6650;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One partition of the key space with its own Paxos log, leader and storage. Shards don't share proposal
+// numbers, slots or locks, so writes to one never wait for writes to another.
+public class Shard {
+
+	private int id;
+
+	// Entries of this shard, readers never take a lock
+	private volatile StorageEngine storage;
+
+	// Expiry of every entry put with a TTL, part of the replicated state like storage and replaced with it
+	private volatile ConcurrentHashMap<String, Long> expirations = new ConcurrentHashMap<String, Long>();
+
+	// Expirations by deadline, filled as puts are applied
+	private volatile TimerWheel expiryWheel = new TimerWheel(100);
+
+	// Keys whose expiry passed, the leader proposes their removal. Every replica collects them in case it becomes leader
+	private Set<String> expiredKeys = ConcurrentHashMap.newKeySet();
+
+	// Acceptor and learner state of the slot indexed Paxos log
+	private ReplicatedLog log = new ReplicatedLog();
+
+	// Promises, accepts and learned values are persisted here before they are acknowledged, null when disabled
+	private WriteAheadLog wal;
+
+	// Periodic snapshots of storage, null when persistence is disabled
+	private SnapshotStore snapshots;
+
+	// Folder of the log, snapshots and mapped storage of this shard, null when persistence is disabled
+	private volatile File directory;
+
+	// Mapped storage replaced by a newer one, its files are deleted once a snapshot covers the replacement
+	private List<MappedStorageEngine> supersededStorage = new CopyOnWriteArrayList<MappedStorageEngine>();
+
+	// Slot of the newest snapshot written or loaded
+	private volatile long lastSnapshotSlot;
+
+	// Server ID of the distinguished proposer as last seen by this node
+	private volatile String leaderID;
+
+	// Proposal number this server won prepare with, 0 when it is not the leader
+	private volatile long leaderProposalNumber;
+
+	// Highest proposal number this server proposed or saw an acceptor promise, its next ballot outbids it
+	private AtomicLong highestProposalNumber = new AtomicLong();
+
+	// Spaces out the retries of rounds that lost against another proposer
+	private volatile RetryBackoff retryBackoff;
+
+	// Next slot this server proposes for
+	private AtomicLong nextSlot = new AtomicLong(1);
+
+	// Highest slot this server knows to be decided as leader, a read that waits for it sees every write acknowledged before it
+	private AtomicLong commitSlot = new AtomicLong();
+
+	// Read lease a quorum granted this server as leader, valid while leaderProposalNumber is still leaseProposalNumber
+	private volatile long leaseProposalNumber;
+
+	private volatile long leaseExpiresNanos;
+
+	// Commit slot the leader sent with its last lease renewal and when it arrived, for bounded-staleness reads
+	private volatile long knownCommitSlot;
+
+	private volatile long knownCommitNanos;
+
+	// Applied slot at the last background catch-up check, a shard that didn't move since asks a peer for decisions
+	private volatile long catchUpCheckedSlot;
+
+	// Set while a read fetches the decisions this server is missing, so concurrent reads don't all ask the leader
+	private AtomicBoolean fetchingDecisions = new AtomicBoolean();
+
+	// Bounds the number of slots in flight at the same time
+	private volatile Semaphore pipelineWindow;
+
+	// Groups concurrent writes into one proposal, null when batching is disabled
+	private volatile ProposalBatcher batcher;
+
+	// Only one prepare phase runs at a time
+	private final Object leadershipLock = new Object();
+
+	// Learned values are applied by one thread at a time so slots reach storage in order
+	private final Object applyLock = new Object();
+
+	private final Object snapshotLock = new Object();
+
+	public Shard(int id, int pipelineWindow, StorageEngine storage) {
+		this.id = id;
+		this.storage = storage;
+		this.pipelineWindow = new Semaphore(pipelineWindow, true);
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public StorageEngine getStorage() {
+		return storage;
+	}
+
+	public void setStorage(StorageEngine storage) {
+		this.storage = storage;
+	}
+
+	public ConcurrentHashMap<String, Long> getExpirations() {
+		return expirations;
+	}
+
+	public void setExpirations(ConcurrentHashMap<String, Long> expirations) {
+		this.expirations = expirations;
+	}
+
+	public TimerWheel getExpiryWheel() {
+		return expiryWheel;
+	}
+
+	public void setExpiryWheel(TimerWheel expiryWheel) {
+		this.expiryWheel = expiryWheel;
+	}
+
+	public Set<String> getExpiredKeys() {
+		return expiredKeys;
+	}
+
+	public ReplicatedLog getLog() {
+		return log;
+	}
+
+	public WriteAheadLog getWal() {
+		return wal;
+	}
+
+	public void setWal(WriteAheadLog wal) {
+		this.wal = wal;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	public List<MappedStorageEngine> getSupersededStorage() {
+		return supersededStorage;
+	}
+
+	public SnapshotStore getSnapshots() {
+		return snapshots;
+	}
+
+	public void setSnapshots(SnapshotStore snapshots) {
+		this.snapshots = snapshots;
+	}
+
+	public long getLastSnapshotSlot() {
+		return lastSnapshotSlot;
+	}
+
+	public void setLastSnapshotSlot(long lastSnapshotSlot) {
+		this.lastSnapshotSlot = lastSnapshotSlot;
+	}
+
+	public String getLeaderID() {
+		return leaderID;
+	}
+
+	public void setLeaderID(String leaderID) {
+		this.leaderID = leaderID;
+	}
+
+	public long getLeaderProposalNumber() {
+		return leaderProposalNumber;
+	}
+
+	public void setLeaderProposalNumber(long leaderProposalNumber) {
+		this.leaderProposalNumber = leaderProposalNumber;
+	}
+
+	public long getHighestProposalNumber() {
+		return highestProposalNumber.get();
+	}
+
+	public void observeProposalNumber(long proposalNumber) {
+		highestProposalNumber.accumulateAndGet(proposalNumber, Math::max);
+	}
+
+	public RetryBackoff getRetryBackoff() {
+		return retryBackoff;
+	}
+
+	public void setRetryBackoff(RetryBackoff retryBackoff) {
+		this.retryBackoff = retryBackoff;
+	}
+
+	public AtomicLong getNextSlot() {
+		return nextSlot;
+	}
+
+	public AtomicLong getCommitSlot() {
+		return commitSlot;
+	}
+
+	// True while this server is the leader and a quorum of acceptors promised to promise nobody else
+	public boolean holdsLease() {
+		long proposalNumber = this.leaderProposalNumber;
+		return proposalNumber != 0 && proposalNumber == this.leaseProposalNumber && System.nanoTime() - this.leaseExpiresNanos < 0;
+	}
+
+	public void setLease(long leaseProposalNumber, long leaseExpiresNanos) {
+		this.leaseProposalNumber = leaseProposalNumber;
+		this.leaseExpiresNanos = leaseExpiresNanos;
+	}
+
+	public long getKnownCommitSlot() {
+		return knownCommitSlot;
+	}
+
+	public long getKnownCommitNanos() {
+		return knownCommitNanos;
+	}
+
+	public void setKnownCommit(long knownCommitSlot, long knownCommitNanos) {
+		this.knownCommitSlot = knownCommitSlot;
+		this.knownCommitNanos = knownCommitNanos;
+	}
+
+	public long getCatchUpCheckedSlot() {
+		return catchUpCheckedSlot;
+	}
+
+	public void setCatchUpCheckedSlot(long catchUpCheckedSlot) {
+		this.catchUpCheckedSlot = catchUpCheckedSlot;
+	}
+
+	public AtomicBoolean getFetchingDecisions() {
+		return fetchingDecisions;
+	}
+
+	public Semaphore getPipelineWindow() {
+		return pipelineWindow;
+	}
+
+	public void setPipelineWindow(int pipelineWindow) {
+		this.pipelineWindow = new Semaphore(pipelineWindow, true);
+	}
+
+	public ProposalBatcher getBatcher() {
+		return batcher;
+	}
+
+	public void setBatcher(ProposalBatcher batcher) {
+		this.batcher = batcher;
+	}
+
+	public Object getLeadershipLock() {
+		return leadershipLock;
+	}
+
+	public Object getApplyLock() {
+		return applyLock;
+	}
+
+	public Object getSnapshotLock() {
+		return snapshotLock;
+	}
+}
@@ -0,0 +1,51 @@
+package com.cs6650;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Maps keys to shards with consistent hashing. Every shard owns several points on a hash ring and a key
+// belongs to the first point at or after its hash, so adding a shard would move only the keys of its points.
+public class ShardMap {
+
+	// Points every shard owns on the ring, more points spread keys more evenly
+	private static final int VIRTUAL_NODES = 64;
+
+	private int shardCount;
+
+	private TreeMap<Integer, Integer> ring = new TreeMap<Integer, Integer>();
+
+	public ShardMap(int shardCount) {
+		this.shardCount = shardCount;
+		for(int shard = 0; shard < shardCount; shard++) {
+			for(int point = 0; point < VIRTUAL_NODES; point++) {
+				this.ring.put(hash("shard-"+shard+"-"+point), shard);
+			}
+		}
+	}
+
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	public int shardOf(String key) {
+		if(this.shardCount == 1) {
+			return 0;
+		}
+		Map.Entry<Integer, Integer> owner = this.ring.ceilingEntry(hash(key));
+		return owner != null ? owner.getValue() : this.ring.firstEntry().getValue();
+	}
+
+	// FNV-1a over the UTF-8 bytes with a final mix, every server has to map a key to the same shard
+	private static int hash(String key) {
+		int hash = 0x811c9dc5;
+		for(byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x01000193;
+		}
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash;
+	}
+}
@@ -0,0 +1,185 @@
+package com.cs6650;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Network between servers running in one process. Every message is delayed by the latency of its link and can be
+// dropped at random, or because its sender or receiver crashed or sits on the other side of a partition.
+// Every link draws its delays and drops from its own random generator seeded from the network seed, so a link
+// sees the same sequence of faults on every run. The threads of the servers are still scheduled by the JVM,
+// which messages of concurrent senders get which draw is not reproducible.
+public class SimulatedNetwork {
+
+	private long seed;
+
+	// One way delay of every message, plus a uniform random jitter of up to jitterMillis
+	private long latencyMillis;
+
+	private long jitterMillis;
+
+	// Share of messages lost, a lost request or reply fails the call like a broken connection
+	private double dropRate;
+
+	private Map<String, Link> links = new ConcurrentHashMap<String, Link>();
+
+	// Added to the latency of every message to or from a slow server
+	private Map<String, Long> slowServers = new ConcurrentHashMap<String, Long>();
+
+	private Set<String> crashed = ConcurrentHashMap.newKeySet();
+
+	// Servers cut off from the others, empty when the network is whole
+	private volatile Set<String> partition = ConcurrentHashMap.newKeySet();
+
+	// Messages sent, by operation name
+	private Map<String, AtomicLong> messages = new ConcurrentHashMap<String, AtomicLong>();
+
+	private AtomicLong dropped = new AtomicLong();
+
+	public SimulatedNetwork(long seed, long latencyMillis, long jitterMillis, double dropRate) {
+		this.seed = seed;
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		this.dropRate = dropRate;
+	}
+
+	// Returns the view fromID has of target, every call made through it crosses the link between the two
+	public DatastoreInterface connect(String fromID, String toID, DatastoreInterface target) {
+		Link link = this.links.computeIfAbsent(fromID+"->"+toID, name -> new Link(fromID, toID));
+		return (DatastoreInterface) Proxy.newProxyInstance(DatastoreInterface.class.getClassLoader(),
+				new Class<?>[] {DatastoreInterface.class}, new LinkHandler(link, target));
+	}
+
+	public void setSlow(String serverID, long extraLatencyMillis) {
+		if(extraLatencyMillis > 0) {
+			this.slowServers.put(serverID, extraLatencyMillis);
+		}
+		else {
+			this.slowServers.remove(serverID);
+		}
+	}
+
+	// Messages to and from a crashed server fail until it is restored, the server itself keeps its state
+	public void crash(String serverID) {
+		this.crashed.add(serverID);
+	}
+
+	public void restore(String serverID) {
+		this.crashed.remove(serverID);
+	}
+
+	public boolean isCrashed(String serverID) {
+		return this.crashed.contains(serverID);
+	}
+
+	// The given servers can only reach each other, the rest of the cluster only the rest
+	public void partition(Collection<String> side) {
+		Set<String> partition = ConcurrentHashMap.newKeySet();
+		partition.addAll(side);
+		this.partition = partition;
+	}
+
+	public void heal() {
+		this.partition = ConcurrentHashMap.newKeySet();
+	}
+
+	public Map<String, AtomicLong> getMessages() {
+		return messages;
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	private boolean reachable(Link link) {
+		if(this.crashed.contains(link.fromID) || this.crashed.contains(link.toID)) {
+			return false;
+		}
+		Set<String> partition = this.partition;
+		return partition.contains(link.fromID) == partition.contains(link.toID);
+	}
+
+	private class Link {
+
+		private String fromID;
+
+		private String toID;
+
+		private Random random;
+
+		private Link(String fromID, String toID) {
+			this.fromID = fromID;
+			this.toID = toID;
+			// String hash codes are fixed by the language, the seed of a link doesn't change between runs
+			this.random = new Random(seed * 31 + (fromID+"->"+toID).hashCode());
+		}
+
+		// Waits out the delay of one message, throws if it is lost on the way
+		private void transmit(String what) throws RemoteException {
+			long delayMillis;
+			boolean lost;
+			synchronized(this.random) {
+				delayMillis = latencyMillis + (jitterMillis > 0 ? (long) (this.random.nextDouble() * jitterMillis) : 0);
+				lost = dropRate > 0 && this.random.nextDouble() < dropRate;
+			}
+			delayMillis += slowServers.getOrDefault(this.fromID, 0l) + slowServers.getOrDefault(this.toID, 0l);
+			if(delayMillis > 0) {
+				try {
+					TimeUnit.MILLISECONDS.sleep(delayMillis);
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RemoteException("Interrupted while sending "+what);
+				}
+			}
+			if(lost || !reachable(this)) {
+				dropped.incrementAndGet();
+				throw new ConnectException("Simulated network lost "+what+" from "+this.fromID+" to "+this.toID);
+			}
+		}
+	}
+
+	private class LinkHandler implements InvocationHandler {
+
+		private Link link;
+
+		private DatastoreInterface target;
+
+		private LinkHandler(Link link, DatastoreInterface target) {
+			this.link = link;
+			this.target = target;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if(method.getDeclaringClass() == Object.class) {
+				return method.invoke(this.target, args);
+			}
+			messages.computeIfAbsent(method.getName(), name -> new AtomicLong()).incrementAndGet();
+			this.link.transmit(method.getName());
+			Object result = null;
+			Throwable failure = null;
+			try {
+				result = method.invoke(this.target, args);
+			}
+			catch(InvocationTargetException e) {
+				failure = e.getCause();
+			}
+			// The reply takes the link back and can be lost as well, after the operation took effect
+			this.link.transmit("reply to "+method.getName());
+			if(failure != null) {
+				throw failure;
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.cs6650;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Storage in a concurrent skip list, lookups and range scans take O(log n) and never lock
+public class SkipListStorageEngine implements StorageEngine {
+
+	private ConcurrentSkipListMap<String, String> entries = new ConcurrentSkipListMap<String, String>();
+
+	public String get(String key) {
+		return this.entries.get(key);
+	}
+
+	public void put(String key, String value) {
+		this.entries.put(key, value);
+	}
+
+	public void remove(String key) {
+		this.entries.remove(key);
+	}
+
+	// Counts every entry, called for logging and reporting only
+	public int size() {
+		return this.entries.size();
+	}
+
+	public void clear() {
+		this.entries.clear();
+	}
+
+	public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey) {
+		ConcurrentNavigableMap<String, String> range = this.entries;
+		if(startKey != null) {
+			range = range.tailMap(startKey, true);
+		}
+		if(endKey != null) {
+			range = range.headMap(endKey, false);
+		}
+		return range.entrySet().iterator();
+	}
+}
@@ -0,0 +1,219 @@
+package com.cs6650;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Periodic snapshots of the storage in snapshot-<slot>.bin files.
+// Layout: [int magic][long slot] then entries [int key length][key UTF-8][int value length][value UTF-8][long expires at],
+// an entry with key length -1 ends the list, followed by [long crc32] of everything before it.
+// Snapshots written before expiries existed have the old magic and no expiry in their entries.
+public class SnapshotStore {
+
+	private static final int MAGIC = 0x4B565332;
+
+	private static final int MAGIC_WITHOUT_EXPIRY = 0x4B565331;
+
+	// Snapshots are read through windows of at most this many bytes so files can exceed 2GB
+	private static final long MAP_WINDOW = 256L * 1024 * 1024;
+
+	// Number of snapshots kept, older ones are deleted after a new one is written
+	private static final int RETAINED = 2;
+
+	private File directory;
+
+	private Logger logger;
+
+	public SnapshotStore(File directory, Logger logger) {
+		this.directory = directory;
+		this.logger = logger;
+	}
+
+	// Writes the entries of storage as the snapshot of the given slot. Storage may change while it is written,
+	// replaying the log after the slot makes the snapshot consistent again.
+	public void write(long slot, StorageEngine storage, Map<String, Long> expirations) throws IOException {
+		this.directory.mkdirs();
+		File temporary = new File(this.directory, "snapshot-"+slot+".tmp");
+		CRC32 crc = new CRC32();
+		FileOutputStream file = new FileOutputStream(temporary);
+		int entries = 0;
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeLong(slot);
+			Iterator<Map.Entry<String, String>> iterator = storage.scan(null, null);
+			while(iterator.hasNext()) {
+				Map.Entry<String, String> entry = iterator.next();
+				writeBytes(out, entry.getKey().getBytes(StandardCharsets.UTF_8));
+				writeBytes(out, entry.getValue().getBytes(StandardCharsets.UTF_8));
+				Long expiresAt = expirations.get(entry.getKey());
+				out.writeLong(expiresAt != null ? expiresAt : 0);
+				entries++;
+			}
+			out.writeInt(-1);
+			out.flush();
+			// The checksum goes straight to the file so it does not cover itself
+			new DataOutputStream(file).writeLong(crc.getValue());
+			file.getFD().sync();
+		}
+		Files.move(temporary.toPath(), snapshotFile(slot).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Wrote snapshot of "+entries+" entries at slot "+slot);
+
+		TreeMap<Long, File> snapshots = listSnapshots();
+		while(snapshots.size() > RETAINED) {
+			snapshots.pollFirstEntry().getValue().delete();
+		}
+	}
+
+	// Slot of the newest snapshot file, or 0 if there is none. The file is not read, it may turn out to be unreadable.
+	public long getLatestSlot() {
+		TreeMap<Long, File> snapshots = listSnapshots();
+		return snapshots.isEmpty() ? 0 : snapshots.lastKey();
+	}
+
+	// Loads the newest intact snapshot into storage and expirations and returns its slot, or 0 if there is none
+	public long loadLatest(StorageEngine storage, Map<String, Long> expirations) {
+		for(Map.Entry<Long, File> snapshot : listSnapshots().descendingMap().entrySet()) {
+			storage.clear();
+			expirations.clear();
+			try {
+				long entries = load(snapshot.getValue(), storage, expirations);
+				logger.info("Loaded snapshot of "+entries+" entries at slot "+snapshot.getKey());
+				return snapshot.getKey();
+			}
+			catch(IOException | RuntimeException e) {
+				logger.log(Level.WARNING, "Skipping unreadable snapshot "+snapshot.getValue(), e);
+			}
+		}
+		storage.clear();
+		expirations.clear();
+		return 0;
+	}
+
+	// Parses the file through memory-mapped windows, a window is remapped at the entry that crosses its end
+	private long load(File file, StorageEngine storage, Map<String, Long> expirations) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long bodyEnd = size - 8;
+			CRC32 crc = new CRC32();
+			long entries = 0;
+			long position = 0;
+			MappedByteBuffer window = map(channel, position, bodyEnd);
+
+			int magic = window.getInt();
+			if(magic != MAGIC && magic != MAGIC_WITHOUT_EXPIRY) {
+				throw new IOException("Not a snapshot file");
+			}
+			window.getLong();
+			updateChecksum(crc, window, 0, 12);
+			long entryStart = position + 12;
+
+			while(true) {
+				int offset = (int) (entryStart - position);
+				try {
+					window.position(offset);
+					byte[] key = readBytes(window);
+					if(key == null) {
+						updateChecksum(crc, window, offset, 4);
+						break;
+					}
+					byte[] value = readBytes(window);
+					if(value == null) {
+						throw new IOException("Corrupt snapshot entry at "+entryStart);
+					}
+					long expiresAt = magic == MAGIC ? window.getLong() : 0;
+					updateChecksum(crc, window, offset, window.position() - offset);
+					storage.put(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+					if(expiresAt != 0) {
+						expirations.put(new String(key, StandardCharsets.UTF_8), expiresAt);
+					}
+					entries++;
+					entryStart = position + window.position();
+				}
+				catch(BufferUnderflowException e) {
+					if(position + window.limit() >= bodyEnd) {
+						throw new IOException("Truncated snapshot", e);
+					}
+					if(entryStart == position) {
+						throw new IOException("Snapshot entry at "+entryStart+" is larger than a map window", e);
+					}
+					position = entryStart;
+					window = map(channel, position, bodyEnd);
+				}
+			}
+
+			MappedByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, bodyEnd, 8);
+			if(trailer.getLong() != crc.getValue()) {
+				throw new IOException("Snapshot checksum mismatch");
+			}
+			return entries;
+		}
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long position, long end) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, end - position));
+	}
+
+	private static void updateChecksum(CRC32 crc, MappedByteBuffer window, int offset, int length) {
+		ByteBuffer bytes = window.duplicate();
+		bytes.position(offset);
+		bytes.limit(offset + length);
+		crc.update(bytes);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	// Returns null for the end-of-entries marker
+	private static byte[] readBytes(MappedByteBuffer window) {
+		int length = window.getInt();
+		if(length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		window.get(bytes);
+		return bytes;
+	}
+
+	private File snapshotFile(long slot) {
+		return new File(this.directory, "snapshot-"+slot+".bin");
+	}
+
+	// Snapshot files by slot, oldest first
+	private TreeMap<Long, File> listSnapshots() {
+		TreeMap<Long, File> snapshots = new TreeMap<Long, File>();
+		File[] files = this.directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				String name = file.getName();
+				if(name.startsWith("snapshot-") && name.endsWith(".bin")) {
+					try {
+						snapshots.put(Long.parseLong(name.substring(9, name.length() - 4)), file);
+					}
+					catch(NumberFormatException e) {
+						continue;
+					}
+				}
+			}
+		}
+		return snapshots;
+	}
+}
@@ -0,0 +1,86 @@
+package com.cs6650;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+// One bounded page of a state transfer, entries are in key order
+public class StateChunk implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// Transfer session on the sending server, pass it back to get the next chunk
+	private long transferID;
+
+	// Every slot up to this one is reflected in the transfer, later slots have to be caught up from the log
+	private long startSlot;
+
+	private List<String> keys = new ArrayList<String>();
+
+	private List<String> values = new ArrayList<String>();
+
+	// Expiry of every entry, 0 for entries that never expire
+	private List<Long> expirations = new ArrayList<Long>();
+
+	// Last key of this chunk, the next chunk starts after it
+	private String cursor;
+
+	// True when this is the last chunk of the transfer
+	private boolean last;
+
+	public long getTransferID() {
+		return transferID;
+	}
+
+	public void setTransferID(long transferID) {
+		this.transferID = transferID;
+	}
+
+	public long getStartSlot() {
+		return startSlot;
+	}
+
+	public void setStartSlot(long startSlot) {
+		this.startSlot = startSlot;
+	}
+
+	public List<String> getKeys() {
+		return keys;
+	}
+
+	public List<String> getValues() {
+		return values;
+	}
+
+	public List<Long> getExpirations() {
+		return expirations;
+	}
+
+	public void addEntry(String key, String value, long expiresAt) {
+		this.keys.add(key);
+		this.values.add(value);
+		this.expirations.add(expiresAt);
+	}
+
+	public String getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+
+	public boolean isLast() {
+		return last;
+	}
+
+	public void setLast(boolean last) {
+		this.last = last;
+	}
+
+	@Override
+	public String toString() {
+		return "StateChunk [transferID=" + transferID + ", startSlot=" + startSlot + ", entries=" + keys.size()
+				+ ", cursor=" + cursor + ", last=" + last + "]";
+	}
+}
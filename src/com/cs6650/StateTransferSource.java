@@ -0,0 +1,97 @@
+package com.cs6650;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Serves the storage of this server to joining servers in bounded chunks.
+// A transfer walks the sorted storage live from the cursor of every chunk, without copying any keys, so the
+// chunks are a fuzzy snapshot. Replaying the log from the transfer's start slot makes it consistent,
+// every put and delete sets a key to its final value no matter what the joiner copied before.
+public class StateTransferSource {
+
+	private ConcurrentHashMap<Long, TransferSession> sessions = new ConcurrentHashMap<Long, TransferSession>();
+
+	private AtomicLong nextTransferID = new AtomicLong(1);
+
+	// A chunk stops growing once its keys and values reach this many characters
+	private int maxChunkChars;
+
+	// Transfers that are not continued for this long are dropped
+	private long sessionTimeoutMillis;
+
+	public StateTransferSource(int maxChunkChars, long sessionTimeoutMillis) {
+		this.maxChunkChars = maxChunkChars;
+		this.sessionTimeoutMillis = sessionTimeoutMillis;
+	}
+
+	// Storage must reflect every slot up to startSlot when this is called
+	public long open(long startSlot, StorageEngine storage, Map<String, Long> expirations) {
+		expireSessions();
+		long transferID = this.nextTransferID.getAndIncrement();
+		this.sessions.put(transferID, new TransferSession(startSlot, storage, expirations));
+		return transferID;
+	}
+
+	// Returns the entries after the cursor, null cursor starts from the first key. Returns null for a transfer
+	// that was never opened or expired
+	public StateChunk nextChunk(long transferID, String cursor, int maxEntries) {
+		TransferSession session = this.sessions.get(transferID);
+		if(session == null) {
+			return null;
+		}
+		session.lastAccess = System.currentTimeMillis();
+
+		StateChunk chunk = new StateChunk();
+		chunk.setTransferID(transferID);
+		chunk.setStartSlot(session.startSlot);
+		chunk.setCursor(cursor);
+		int chars = 0;
+		// Keys deleted since the transfer opened are not sent, the log replay deletes them anyway
+		Iterator<Map.Entry<String, String>> entries = session.storage.scan(cursor, null);
+		while(entries.hasNext() && chunk.getKeys().size() < maxEntries && chars < this.maxChunkChars) {
+			Map.Entry<String, String> entry = entries.next();
+			if(entry.getKey().equals(cursor)) {
+				continue;
+			}
+			chunk.setCursor(entry.getKey());
+			Long expiresAt = session.expirations.get(entry.getKey());
+			chunk.addEntry(entry.getKey(), entry.getValue(), expiresAt != null ? expiresAt : 0);
+			chars += entry.getKey().length() + entry.getValue().length();
+		}
+
+		if(!entries.hasNext()) {
+			chunk.setLast(true);
+			this.sessions.remove(transferID);
+		}
+		return chunk;
+	}
+
+	private void expireSessions() {
+		long now = System.currentTimeMillis();
+		Iterator<TransferSession> iterator = this.sessions.values().iterator();
+		while(iterator.hasNext()) {
+			if(now - iterator.next().lastAccess > this.sessionTimeoutMillis) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private static class TransferSession {
+
+		private long startSlot;
+
+		private StorageEngine storage;
+
+		private Map<String, Long> expirations;
+
+		private volatile long lastAccess = System.currentTimeMillis();
+
+		private TransferSession(long startSlot, StorageEngine storage, Map<String, Long> expirations) {
+			this.startSlot = startSlot;
+			this.storage = storage;
+			this.expirations = expirations;
+		}
+	}
+}
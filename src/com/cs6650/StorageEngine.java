@@ -0,0 +1,17 @@
+package com.cs6650;
+
+import java.util.Iterator;
+import java.util.Map;
+
+// Key-value storage of one shard. Readers never block and run concurrently with the thread applying learned
+// values, and keys are kept in sorted order so ranges can be scanned without copying the whole storage.
+public interface StorageEngine {
+	public String get(String key);
+	public void put(String key, String value);
+	public void remove(String key);
+	public int size();
+	public void clear();
+	// Entries from startKey (inclusive) to endKey (exclusive) in key order, a null bound is open.
+	// The iterator is weakly consistent, it sees some of the writes made after it was created.
+	public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey);
+}
@@ -0,0 +1,131 @@
+package com.cs6650;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Hierarchical timer wheel for key expirations. Level 0 has one bucket per tick, every level above covers
+// 64 buckets of the level below, so scheduling and expiring a timer take O(1) no matter how many are pending.
+// A timer moves down one level whenever the wheel reaches the bucket it sits in and fires from level 0.
+// Timers fire on the first tick at or after their deadline, never before it. Not thread-safe by itself,
+// every method synchronizes on the wheel.
+public class TimerWheel {
+
+	private static final int WHEEL_BITS = 6;
+
+	private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+	// Four levels cover 64^4 ticks, later deadlines wait in the last bucket of the top level and are placed again
+	private static final int LEVELS = 4;
+
+	private long tickMillis;
+
+	// Tick the wheel has advanced to, -1 until it is first used
+	private long currentTick = -1;
+
+	private List<Timer>[][] buckets;
+
+	// Timers scheduled at or before the current tick, fired by the next advance
+	private List<Timer> overdue = new ArrayList<Timer>();
+
+	private int size;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimerWheel(long tickMillis) {
+		this.tickMillis = tickMillis;
+		this.buckets = new List[LEVELS][WHEEL_SIZE];
+		for(int level = 0; level < LEVELS; level++) {
+			for(int bucket = 0; bucket < WHEEL_SIZE; bucket++) {
+				this.buckets[level][bucket] = new ArrayList<Timer>();
+			}
+		}
+	}
+
+	// The wheel runs on the clock of its caller, nowMillis is only used to start it and must come from the same
+	// clock as the times passed to advance
+	public synchronized void schedule(String key, long deadlineMillis, long nowMillis) {
+		if(this.currentTick < 0) {
+			this.currentTick = nowMillis / this.tickMillis;
+		}
+		place(new Timer(key, deadlineMillis));
+		this.size++;
+	}
+
+	// Moves the wheel to the given time and returns the timers whose deadline passed
+	public synchronized List<Timer> advance(long nowMillis) {
+		List<Timer> fired = this.overdue;
+		this.overdue = new ArrayList<Timer>();
+		long targetTick = nowMillis / this.tickMillis;
+		if(this.currentTick < 0) {
+			this.currentTick = targetTick;
+		}
+		while(this.currentTick < targetTick && this.size > fired.size()) {
+			this.currentTick++;
+			// Higher levels are moved down first so timers of this tick reach level 0 before it fires
+			for(int level = 1; level < LEVELS; level++) {
+				if((this.currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) {
+					break;
+				}
+				List<Timer> cascaded = this.buckets[level][index(this.currentTick, level)];
+				this.buckets[level][index(this.currentTick, level)] = new ArrayList<Timer>();
+				for(Timer timer : cascaded) {
+					place(timer);
+				}
+			}
+			fired.addAll(this.buckets[0][index(this.currentTick, 0)]);
+			this.buckets[0][index(this.currentTick, 0)].clear();
+			fired.addAll(this.overdue);
+			this.overdue.clear();
+		}
+		// Nothing is left to fire, the ticks in between are skipped
+		if(this.currentTick < targetTick) {
+			this.currentTick = targetTick;
+		}
+		this.size -= fired.size();
+		return fired;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private void place(Timer timer) {
+		long deadlineTick = (timer.deadlineMillis + this.tickMillis - 1) / this.tickMillis;
+		long delay = deadlineTick - this.currentTick;
+		if(delay <= 0) {
+			this.overdue.add(timer);
+			return;
+		}
+		for(int level = 0; level < LEVELS; level++) {
+			if(delay < 1L << (WHEEL_BITS * (level + 1))) {
+				this.buckets[level][index(deadlineTick, level)].add(timer);
+				return;
+			}
+		}
+		// Beyond the range of the wheel, the bucket reached last on the top level
+		this.buckets[LEVELS - 1][index(this.currentTick + (1L << (WHEEL_BITS * LEVELS)) - 1, LEVELS - 1)].add(timer);
+	}
+
+	private static int index(long tick, int level) {
+		return (int) ((tick >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1));
+	}
+
+	public static class Timer {
+
+		private String key;
+
+		private long deadlineMillis;
+
+		private Timer(String key, long deadlineMillis) {
+			this.key = key;
+			this.deadlineMillis = deadlineMillis;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public long getDeadlineMillis() {
+			return deadlineMillis;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.cs6650;
 
 import java.io.Serializable;
+import java.util.List;
 
 //The Request class contains information about the request sent from client to server
 public class Transaction implements Serializable{
@@ -14,6 +15,13 @@ public class Transaction implements Serializable{
 	private String key;
 	private String value;
 
+	// Transactions carried by a batch, applied in order as one Paxos value
+	private List<Transaction> transactions;
+
+	// Time in milliseconds a put's entry expires at, set once by the server that received the put so every
+	// replica expires the same entry. For an expire transaction the expiry the key must still have. 0 = never
+	private long expiresAt;
+
 	public String getType() {
 		return type;
 	}
@@ -32,10 +40,29 @@ public class Transaction implements Serializable{
 	public void setValue(String value) {
 		this.value = value;
 	}
+	public List<Transaction> getTransactions() {
+		return transactions;
+	}
+	public void setTransactions(List<Transaction> transactions) {
+		this.transactions = transactions;
+	}
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+	public void setExpiresAt(long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
 	@Override
 	public String toString() {
+		// Large batches are summarised, they would flood the log
+		if(transactions != null && transactions.size() > 16) {
+			return "Transaction [type=" + type + ", transactions=" + transactions.size() + "]";
+		}
+		if(transactions != null) {
+			return "Transaction [type=" + type + ", transactions=" + transactions + "]";
+		}
 		return "Transaction [type=" + type + ", key=" + key + ", value=" + value
-				+ "]";
+				+ (expiresAt != 0 ? ", expiresAt=" + expiresAt : "") + "]";
 	}
 	
 	
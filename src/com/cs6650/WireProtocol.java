@@ -0,0 +1,113 @@
+package com.cs6650;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// Operation codes and reply statuses of the binary NIO transport.
+// Request frame: [int length][long request id][byte opcode][arguments]
+// Reply frame: [int length][long request id][byte status][result or error message]
+// Replies may come back in any order, the request id matches them to their request.
+// Paxos messages, state transfer and leader lookups start their arguments with the int shard they are for.
+public class WireProtocol {
+
+	public static final byte PUT = 1;
+
+	public static final byte GET = 2;
+
+	public static final byte DELETE = 3;
+
+	public static final byte GET_STORAGE = 4;
+
+	public static final byte GET_STATE_CHUNK = 5;
+
+	public static final byte GET_DECISIONS = 6;
+
+	public static final byte GET_SERVER_ID = 7;
+
+	public static final byte GET_LEADER_ID = 8;
+
+	public static final byte PROPOSE = 9;
+
+	public static final byte PREPARE = 10;
+
+	public static final byte ACCEPT = 11;
+
+	public static final byte INVOKE_LEARNER = 12;
+
+	public static final byte MULTI_GET = 13;
+
+	public static final byte MULTI_PUT = 14;
+
+	public static final byte MULTI_DELETE = 15;
+
+	public static final byte GRANT_LEASE = 16;
+
+	public static final byte GET_READ_INDEX = 17;
+
+	public static final byte SCAN = 18;
+
+	public static final byte PUT_TTL = 19;
+
+	public static final byte WATCH = 20;
+
+	public static final byte POLL_CHANGES = 21;
+
+	public static final byte CANCEL_WATCH = 22;
+
+	public static final byte OK = 0;
+
+	// The operation threw a RemoteException, the payload is its message
+	public static final byte REMOTE_ERROR = 1;
+
+	// The operation threw a TimeoutException, the payload is its message
+	public static final byte TIMEOUT = 2;
+
+	// An acceptor declined a prepare, accept or lease, the payload is the message, the proposal number it promised,
+	// and the holder of the lease in the way (null if none) with the milliseconds it still runs
+	public static final byte REJECTED = 3;
+
+	// A server was forwarded a transaction of a shard another server leads, the payload is the message and that leader
+	public static final byte NOT_LEADER = 4;
+
+	// Bytes of a frame after the length field that are not payload
+	public static final int HEADER_LENGTH = 9;
+
+	// Anything longer is treated as a corrupt length field
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	private WireProtocol() {
+	}
+
+	// Reads the payload of a frame in place, without copying it out of the buffer
+	public static class ByteBufferInputStream extends InputStream {
+
+		private ByteBuffer buffer;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if(length == 0) {
+				return 0;
+			}
+			if(!this.buffer.hasRemaining()) {
+				return -1;
+			}
+			length = Math.min(length, this.buffer.remaining());
+			this.buffer.get(bytes, offset, length);
+			return length;
+		}
+
+		@Override
+		public int available() {
+			return this.buffer.remaining();
+		}
+	}
+}
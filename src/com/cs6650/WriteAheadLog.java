@@ -0,0 +1,376 @@
+package com.cs6650;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+// Append-only log of promises, accepts and learned values. Records of concurrent callers are
+// written and fsynced together by one writer thread (group commit).
+// The log is split into segment files wal-<number>.log so segments covered by a snapshot can be deleted.
+// Record layout: [int length][int crc32][byte type][payload]
+public class WriteAheadLog implements Runnable {
+
+	public static final byte PROMISE = 1;
+
+	public static final byte ACCEPT = 2;
+
+	public static final byte LEARN = 3;
+
+	// Anything longer is treated as a corrupt length field
+	private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+	public enum SyncPolicy {
+		// Callers wait until their record is fsynced, concurrent records share one fsync
+		ALWAYS,
+		// Callers return once the record is queued, the log is fsynced every sync interval
+		INTERVAL,
+		// Records are written but fsync is left to the operating system
+		NONE
+	}
+
+	// Receives the records of the log in the order they were written
+	public interface Replayer {
+		void promise(long proposalNumber);
+		void accept(long proposalNumber, long slot, Transaction value);
+		void learn(long slot, Transaction value);
+	}
+
+	private File directory;
+
+	// Segment the writer appends to
+	private long segment;
+
+	private FileChannel channel;
+
+	// Highest slot learned in each segment, a segment can go once a snapshot covers it
+	private TreeMap<Long, Long> segmentLearnedSlots = new TreeMap<Long, Long>();
+
+	private SyncPolicy syncPolicy;
+
+	private long syncIntervalMillis;
+
+	private Logger logger;
+
+	private final Object lock = new Object();
+
+	// Records appended since the writer last took the buffer
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	private long appendedSequence;
+
+	private long durableSequence;
+
+	// Set by roll(), the writer starts a new segment after writing the records appended up to then
+	private boolean rollRequested;
+
+	// Set when a write or fsync failed, every later append fails with it
+	private IOException failure;
+
+	public WriteAheadLog(File directory, SyncPolicy syncPolicy, long syncIntervalMillis, Logger logger) {
+		this.directory = directory;
+		this.syncPolicy = syncPolicy;
+		this.syncIntervalMillis = syncIntervalMillis;
+		this.logger = logger;
+	}
+
+	// Reads every intact record of every segment, cuts off a torn record left by a crash, and opens the
+	// newest segment for appending
+	public void open(Replayer replayer) throws IOException {
+		this.directory.mkdirs();
+		TreeMap<Long, File> segments = listSegments();
+		File unsegmented = new File(this.directory, "wal.log");
+		if(segments.isEmpty() && unsegmented.exists() && unsegmented.renameTo(segmentFile(0))) {
+			logger.info("Moved write-ahead log "+unsegmented+" to segment 0");
+		}
+		segments = listSegments();
+		if(segments.isEmpty()) {
+			segments.put(0l, segmentFile(0));
+		}
+
+		long validLength = 0;
+		int records = 0;
+		for(Map.Entry<Long, File> segment : segments.entrySet()) {
+			long learnedSlot = 0;
+			validLength = 0;
+			if(segment.getValue().exists()) {
+				try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.getValue())))) {
+					while(true) {
+						byte[] record = readRecord(in);
+						if(record == null) {
+							break;
+						}
+						learnedSlot = Math.max(learnedSlot, replay(record, replayer));
+						validLength += 8 + record.length;
+						records++;
+					}
+				}
+			}
+			this.segmentLearnedSlots.put(segment.getKey(), learnedSlot);
+		}
+		logger.info("Replayed "+records+" records from "+segments.size()+" write-ahead log segments in "+this.directory);
+
+		this.segment = segments.lastKey();
+		this.channel = FileChannel.open(segmentFile(this.segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		if(this.channel.size() > validLength) {
+			logger.warning("Truncating torn write-ahead log tail at "+validLength);
+			this.channel.truncate(validLength);
+		}
+		this.channel.position(validLength);
+
+		Thread writer = new Thread(this, "wal-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	// Closes the current segment once every record appended so far is written, later records go to a new one
+	public void roll() throws IOException {
+		synchronized(this.lock) {
+			this.rollRequested = true;
+			this.lock.notifyAll();
+			while(this.rollRequested && this.failure == null) {
+				try {
+					this.lock.wait();
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while rolling write-ahead log");
+				}
+			}
+			if(this.failure != null) {
+				throw this.failure;
+			}
+		}
+	}
+
+	// Deletes closed segments whose learned values are all covered by a snapshot at the given slot.
+	// Their promises and accepts must have been logged again after roll().
+	public void deleteSegmentsUpTo(long snapshotSlot) {
+		synchronized(this.lock) {
+			Iterator<Map.Entry<Long, Long>> iterator = this.segmentLearnedSlots.headMap(this.segment, false).entrySet().iterator();
+			while(iterator.hasNext()) {
+				Map.Entry<Long, Long> segment = iterator.next();
+				if(segment.getValue() > snapshotSlot) {
+					break;
+				}
+				if(segmentFile(segment.getKey()).delete()) {
+					logger.info("Deleted write-ahead log segment "+segment.getKey());
+				}
+				iterator.remove();
+			}
+		}
+	}
+
+	public void logPromise(long proposalNumber) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(PROMISE);
+		out.writeLong(proposalNumber);
+		append(bytes.toByteArray(), 0);
+	}
+
+	public void logAccept(long proposalNumber, long slot, Transaction value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ACCEPT);
+		out.writeLong(proposalNumber);
+		out.writeLong(slot);
+		BinaryCodec.writeTransaction(out, value);
+		append(bytes.toByteArray(), 0);
+	}
+
+	public void logLearn(long slot, Transaction value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(LEARN);
+		out.writeLong(slot);
+		BinaryCodec.writeTransaction(out, value);
+		append(bytes.toByteArray(), slot);
+	}
+
+	// Queues the record and, with the ALWAYS policy, waits until it is durable
+	private void append(byte[] record, long learnedSlot) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length);
+
+		long sequence;
+		synchronized(this.lock) {
+			if(this.failure != null) {
+				throw this.failure;
+			}
+			DataOutputStream out = new DataOutputStream(this.buffer);
+			out.writeInt(record.length);
+			out.writeInt((int) crc.getValue());
+			out.write(record);
+			sequence = ++this.appendedSequence;
+			if(learnedSlot > this.segmentLearnedSlots.get(this.segment)) {
+				this.segmentLearnedSlots.put(this.segment, learnedSlot);
+			}
+			this.lock.notifyAll();
+
+			if(this.syncPolicy != SyncPolicy.ALWAYS) {
+				return;
+			}
+			while(this.durableSequence < sequence && this.failure == null) {
+				try {
+					this.lock.wait();
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for write-ahead log sync");
+				}
+			}
+			if(this.durableSequence < sequence) {
+				throw this.failure;
+			}
+		}
+	}
+
+	public void run() {
+		long lastSync = System.nanoTime();
+		boolean unsynced = false;
+		while(true) {
+			byte[] pending;
+			long sequence;
+			boolean roll;
+			synchronized(this.lock) {
+				try {
+					while(this.buffer.size() == 0 && !this.rollRequested) {
+						this.lock.wait(this.syncPolicy == SyncPolicy.INTERVAL ? this.syncIntervalMillis : 0);
+						if(this.syncPolicy == SyncPolicy.INTERVAL && this.buffer.size() == 0) {
+							break;
+						}
+					}
+				}
+				catch(InterruptedException e) {
+					return;
+				}
+				pending = this.buffer.toByteArray();
+				this.buffer.reset();
+				sequence = this.appendedSequence;
+				roll = this.rollRequested;
+				if(roll) {
+					// Records appended from now on belong to the next segment
+					this.segment++;
+					this.segmentLearnedSlots.put(this.segment, 0l);
+				}
+			}
+
+			try {
+				ByteBuffer bytes = ByteBuffer.wrap(pending);
+				while(bytes.hasRemaining()) {
+					this.channel.write(bytes);
+				}
+				unsynced = unsynced || pending.length > 0;
+				boolean syncDue = System.nanoTime() - lastSync >= TimeUnit.MILLISECONDS.toNanos(this.syncIntervalMillis);
+				if(unsynced && (roll || this.syncPolicy == SyncPolicy.ALWAYS || (this.syncPolicy == SyncPolicy.INTERVAL && syncDue))) {
+					this.channel.force(false);
+					lastSync = System.nanoTime();
+					unsynced = false;
+				}
+				if(roll) {
+					this.channel.close();
+					this.channel = FileChannel.open(segmentFile(this.segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+					logger.info("Started write-ahead log segment "+this.segment);
+				}
+				synchronized(this.lock) {
+					this.durableSequence = sequence;
+					if(roll) {
+						this.rollRequested = false;
+					}
+					this.lock.notifyAll();
+				}
+			}
+			catch(IOException e) {
+				logger.log(Level.SEVERE, "Write-ahead log write failed", e);
+				synchronized(this.lock) {
+					this.failure = e;
+					this.lock.notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	private File segmentFile(long segment) {
+		return new File(this.directory, String.format("wal-%010d.log", segment));
+	}
+
+	// Segment files by number, oldest first
+	private TreeMap<Long, File> listSegments() {
+		TreeMap<Long, File> segments = new TreeMap<Long, File>();
+		File[] files = this.directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				String name = file.getName();
+				if(name.startsWith("wal-") && name.endsWith(".log")) {
+					try {
+						segments.put(Long.parseLong(name.substring(4, name.length() - 4)), file);
+					}
+					catch(NumberFormatException e) {
+						continue;
+					}
+				}
+			}
+		}
+		return segments;
+	}
+
+	// Returns null at the end of the log or at a torn or corrupt record
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if(length <= 0 || length > MAX_RECORD_LENGTH) {
+				return null;
+			}
+			byte[] record = new byte[length];
+			in.readFully(record);
+			CRC32 crc = new CRC32();
+			crc.update(record, 0, length);
+			if((int) crc.getValue() != checksum) {
+				return null;
+			}
+			return record;
+		}
+		catch(EOFException e) {
+			return null;
+		}
+	}
+
+	// Returns the slot of a learn record, 0 for other records
+	private static long replay(byte[] record, Replayer replayer) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		byte type = in.readByte();
+		if(type == PROMISE) {
+			replayer.promise(in.readLong());
+		}
+		else if(type == ACCEPT) {
+			long proposalNumber = in.readLong();
+			long slot = in.readLong();
+			replayer.accept(proposalNumber, slot, BinaryCodec.readTransaction(in));
+		}
+		else if(type == LEARN) {
+			long slot = in.readLong();
+			replayer.learn(slot, BinaryCodec.readTransaction(in));
+			return slot;
+		}
+		return 0;
+	}
+}
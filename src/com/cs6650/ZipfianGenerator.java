@@ -0,0 +1,56 @@
+package com.cs6650;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Draws item numbers 0..items-1 where item i is picked with probability proportional to 1/(i+1)^theta,
+// so the first items are hot. Uses the rejection-free method of Gray et al., "Quickly Generating
+// Billion-Record Synthetic Databases", as YCSB does.
+public class ZipfianGenerator {
+
+	// YCSB's default skew
+	public static final double DEFAULT_THETA = 0.99;
+
+	private long items;
+
+	private double theta;
+
+	private double alpha;
+
+	private double zetan;
+
+	private double eta;
+
+	// The method needs 0 < theta < 1, at 1 and above the exponent alpha divides by zero or turns negative
+	public ZipfianGenerator(long items, double theta) {
+		if(!(theta > 0 && theta < 1)) {
+			throw new IllegalArgumentException("Zipfian theta must be between 0 and 1 exclusive, was "+theta);
+		}
+		this.items = items;
+		this.theta = theta;
+		double zeta2 = zeta(2, theta);
+		this.zetan = zeta(items, theta);
+		this.alpha = 1.0 / (1.0 - theta);
+		this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / this.zetan);
+	}
+
+	public long next() {
+		double u = ThreadLocalRandom.current().nextDouble();
+		double uz = u * this.zetan;
+		if(uz < 1.0) {
+			return 0;
+		}
+		if(uz < 1.0 + Math.pow(0.5, this.theta)) {
+			return 1;
+		}
+		long item = (long) (this.items * Math.pow(this.eta * u - this.eta + 1, this.alpha));
+		return Math.min(item, this.items - 1);
+	}
+
+	private static double zeta(long n, double theta) {
+		double sum = 0;
+		for(long i = 1; i <= n; i++) {
+			sum += 1 / Math.pow(i, theta);
+		}
+		return sum;
+	}
+}